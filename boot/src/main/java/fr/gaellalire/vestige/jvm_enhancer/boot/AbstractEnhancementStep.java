@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+/**
+ * Base of the built-in {@link EnhancementStep}s.
+ * @author Gael Lalire
+ */
+public abstract class AbstractEnhancementStep implements EnhancementStep {
+
+    private final String name;
+
+    private final EnhancementPhase phase;
+
+    private final String[] dependencies;
+
+    /**
+     * @param name the name used in properties, dependencies and logs
+     * @param phase the phase of the step
+     * @param dependencies the names of the steps which must be completed before this one starts
+     */
+    public AbstractEnhancementStep(final String name, final EnhancementPhase phase, final String... dependencies) {
+        this.name = name;
+        this.phase = phase;
+        this.dependencies = dependencies;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public EnhancementPhase getPhase() {
+        return phase;
+    }
+
+    public String[] getDependencies() {
+        return dependencies;
+    }
+
+}
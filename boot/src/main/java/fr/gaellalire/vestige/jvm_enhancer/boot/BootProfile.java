@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link JVMEnhancer#boot(String)} cost, step by step. It is built when the boot properties set <tt>profile=true</tt>, written as JSON next to the properties file and
+ * kept for the process by {@link #getLast()}, so startup regressions can be tracked across JDK upgrades.
+ * @author Gael Lalire
+ */
+public final class BootProfile {
+
+    /**
+     * Name of the JSON file written next to the properties file.
+     */
+    public static final String FILE_NAME = "jvm_enhancer-profile.json";
+
+    private static volatile BootProfile last;
+
+    private final String javaVersion;
+
+    private final String javaVendor;
+
+    private final long bootNanos;
+
+    private final List<EnhancementStepMetrics> steps;
+
+    public BootProfile(final long bootNanos, final List<EnhancementStepMetrics> steps) {
+        javaVersion = System.getProperty("java.version");
+        javaVendor = System.getProperty("java.vendor");
+        this.bootNanos = bootNanos;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return the profile of the last profiled boot of this process, or null
+     */
+    public static BootProfile getLast() {
+        return last;
+    }
+
+    static void setLast(final BootProfile bootProfile) {
+        last = bootProfile;
+    }
+
+    public String getJavaVersion() {
+        return javaVersion;
+    }
+
+    public String getJavaVendor() {
+        return javaVendor;
+    }
+
+    /**
+     * @return the time from the start of the boot to the end of its steps
+     */
+    public long getBootNanos() {
+        return bootNanos;
+    }
+
+    /**
+     * @return the steps in completion order
+     */
+    public List<EnhancementStepMetrics> getSteps() {
+        return steps;
+    }
+
+    private static void appendString(final StringBuilder sb, final String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                String hex = Integer.toHexString(c);
+                sb.append("\\u");
+                for (int j = hex.length(); j < 4; j++) {
+                    sb.append('0');
+                }
+                sb.append(hex);
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"javaVersion\": ");
+        appendString(sb, javaVersion);
+        sb.append(",\n  \"javaVendor\": ");
+        appendString(sb, javaVendor);
+        sb.append(",\n  \"bootNanos\": ").append(bootNanos);
+        sb.append(",\n  \"steps\": [");
+        String separator = "\n";
+        for (EnhancementStepMetrics step : steps) {
+            sb.append(separator);
+            separator = ",\n";
+            sb.append("    {\"name\": ");
+            appendString(sb, step.getName());
+            sb.append(", \"elapsedNanos\": ").append(step.getWallNanos());
+            sb.append(", \"cpuNanos\": ").append(step.getCpuNanos());
+            sb.append(", \"loadedClasses\": ").append(step.getLoadedClassCount());
+            sb.append(", \"allocatedBytes\": ").append(step.getAllocatedBytes());
+            sb.append(", \"success\": ").append(step.isSuccess());
+            sb.append(", \"failure\": ");
+            appendString(sb, step.getFailureType());
+            sb.append('}');
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * @param file the file to write, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public void write(final File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the classes defined by some class loaders after the boot, in the order they were defined. The list is written once the duration is elapsed, so nothing is
+ * written if the JVM stops before. Each line holds the name of the class loader and the name of the class, as read by {@link ClassPreloader}.
+ * @author Gael Lalire
+ */
+final class ClassPreloadRecorder implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassPreloadRecorder.class);
+
+    /**
+     * The declared types of the <tt>classes</tt> field of {@link ClassLoader}: a {@link Vector} up to Java 11 and in some later releases, an {@link ArrayList} in the others.
+     */
+    private static final Class<?>[] CLASSES_FIELD_TYPES = new Class<?>[] {Vector.class, ArrayList.class};
+
+    private final File file;
+
+    private final long durationMillis;
+
+    private final Map<String, List<Class<?>>> definedClassesByName = new LinkedHashMap<String, List<Class<?>>>();
+
+    private final Map<String, Integer> startIndexByName = new LinkedHashMap<String, Integer>();
+
+    /**
+     * The classes already defined by the class loaders are not recorded.
+     * @param file the file to write
+     * @param classLoaderByName the class loaders to record
+     * @param durationMillis how long to record
+     * @throws Exception if the classes defined by a class loader cannot be read
+     */
+    ClassPreloadRecorder(final File file, final Map<String, ClassLoader> classLoaderByName, final long durationMillis) throws Exception {
+        this.file = file;
+        this.durationMillis = durationMillis;
+        for (Entry<String, ClassLoader> entry : classLoaderByName.entrySet()) {
+            List<Class<?>> definedClasses = getDefinedClasses(entry.getValue());
+            definedClassesByName.put(entry.getKey(), definedClasses);
+            // the JVM adds classes while holding the list lock
+            synchronized (definedClasses) {
+                startIndexByName.put(entry.getKey(), definedClasses.size());
+            }
+        }
+    }
+
+    /**
+     * Returns the <tt>classes</tt> field of the class loader. Since Java 12 the fields of {@link ClassLoader} are hidden from reflection, so a private lookup is used instead,
+     * which needs <tt>java.lang</tt> to be opened. The lookup needs the declared type of the field, so each known type is tried.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Class<?>> getDefinedClasses(final ClassLoader classLoader) throws Exception {
+        try {
+            Field classesField = ClassLoader.class.getDeclaredField("classes");
+            classesField.setAccessible(true);
+            return (List<Class<?>>) classesField.get(classLoader);
+        } catch (NoSuchFieldException e) {
+            // no MethodHandle API in Java 6 source
+            Class<?> methodHandlesClass = Class.forName("java.lang.invoke.MethodHandles");
+            Class<?> lookupClass = Class.forName("java.lang.invoke.MethodHandles$Lookup");
+            Object lookup = methodHandlesClass.getMethod("lookup").invoke(null);
+            Object privateLookup = methodHandlesClass.getMethod("privateLookupIn", Class.class, lookupClass).invoke(null, ClassLoader.class, lookup);
+            Method findGetterMethod = lookupClass.getMethod("findGetter", Class.class, String.class, Class.class);
+            for (Class<?> fieldType : CLASSES_FIELD_TYPES) {
+                Object getter;
+                try {
+                    getter = findGetterMethod.invoke(privateLookup, ClassLoader.class, "classes", fieldType);
+                } catch (InvocationTargetException ite) {
+                    if (ite.getCause() instanceof NoSuchFieldException) {
+                        // declared with another type
+                        continue;
+                    }
+                    throw ite;
+                }
+                return (List<Class<?>>) Class.forName("java.lang.invoke.MethodHandle").getMethod("invokeWithArguments", Object[].class).invoke(getter,
+                        new Object[] {new Object[] {classLoader}});
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the daemon thread recording the classes. It inherits the context of the calling thread, so this method is called by a worker of the executor.
+     */
+    void start() {
+        Thread thread = new Thread(this, "bootstrap-preload-recorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(durationMillis);
+        } catch (InterruptedException e) {
+            LOGGER.debug("Class preload recording interrupted");
+            return;
+        }
+        int count = 0;
+        try {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            try {
+                for (Entry<String, List<Class<?>>> entry : definedClassesByName.entrySet()) {
+                    String name = entry.getKey();
+                    List<Class<?>> definedClasses = entry.getValue();
+                    List<Class<?>> recordedClasses;
+                    synchronized (definedClasses) {
+                        recordedClasses = new ArrayList<Class<?>>(definedClasses.subList(startIndexByName.get(name), definedClasses.size()));
+                    }
+                    for (Class<?> recordedClass : recordedClasses) {
+                        String className = recordedClass.getName();
+                        if (className.indexOf('/') != -1) {
+                            // hidden class, cannot be loaded by name
+                            continue;
+                        }
+                        writer.write(name);
+                        writer.write(' ');
+                        writer.write(className);
+                        writer.newLine();
+                        count++;
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write class preload list", e);
+            return;
+        }
+        LOGGER.debug("{} classes recorded to {}", count, file);
+    }
+
+}
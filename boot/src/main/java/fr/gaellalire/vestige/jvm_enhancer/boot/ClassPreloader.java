@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the classes recorded by {@link ClassPreloadRecorder} on low priority daemon threads, while the main class starts. Classes are loaded without being initialized, so no
+ * static initializer runs out of its expected order. The workers take the classes in the recorded order, a class which cannot be loaded anymore is skipped.
+ * @author Gael Lalire
+ */
+final class ClassPreloader implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassPreloader.class);
+
+    /**
+     * Name of the file written next to the properties file.
+     */
+    static final String FILE_NAME = "jvm_enhancer-preload.list";
+
+    private final List<ClassLoader> classLoaders;
+
+    private final List<String> classNames;
+
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    private final AtomicInteger loadedCount = new AtomicInteger();
+
+    private AtomicInteger runningWorkerCount;
+
+    private long startNanos;
+
+    private ClassPreloader(final List<ClassLoader> classLoaders, final List<String> classNames) {
+        this.classLoaders = classLoaders;
+        this.classNames = classNames;
+    }
+
+    /**
+     * @param file a file written by {@link ClassPreloadRecorder}
+     * @param classLoaderByName the class loaders, lines of other class loaders are ignored
+     * @return the preloader of the file classes
+     * @throws IOException if the file cannot be read
+     */
+    static ClassPreloader read(final File file, final Map<String, ClassLoader> classLoaderByName) throws IOException {
+        List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
+        List<String> classNames = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                int space = line.indexOf(' ');
+                if (space != -1) {
+                    ClassLoader classLoader = classLoaderByName.get(line.substring(0, space));
+                    if (classLoader != null) {
+                        classLoaders.add(classLoader);
+                        classNames.add(line.substring(space + 1));
+                    }
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return new ClassPreloader(classLoaders, classNames);
+    }
+
+    /**
+     * The threads inherit the context of the calling thread, so this method is called by a worker of the executor.
+     * @param workerCount the number of threads loading classes
+     */
+    void start(final int workerCount) {
+        runningWorkerCount = new AtomicInteger(workerCount);
+        startNanos = System.nanoTime();
+        for (int i = 0; i < workerCount; i++) {
+            Thread thread = new Thread(this, "bootstrap-preload-" + i);
+            thread.setDaemon(true);
+            // only use otherwise idle cores
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        int index = nextIndex.getAndIncrement();
+        while (index < classNames.size()) {
+            String className = classNames.get(index);
+            try {
+                Class.forName(className, false, classLoaders.get(index));
+                loadedCount.incrementAndGet();
+            } catch (ClassNotFoundException e) {
+                LOGGER.trace("Unable to preload " + className, e);
+            } catch (LinkageError e) {
+                LOGGER.trace("Unable to preload " + className, e);
+            }
+            index = nextIndex.getAndIncrement();
+        }
+        if (runningWorkerCount.decrementAndGet() == 0) {
+            LOGGER.debug("{} of {} classes preloaded in {} ms", new Object[] {loadedCount.get(), classNames.size(), (System.nanoTime() - startNanos) / 1000000L});
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.io.File;
+import java.util.Properties;
+
+import fr.gaellalire.vestige.jpms.JPMSModuleAccessor;
+
+/**
+ * What {@link JVMEnhancer#boot(String)} gives to its {@link EnhancementStep}s.
+ * @author Gael Lalire
+ */
+public class EnhancementContext {
+
+    private final File directory;
+
+    private final Properties properties;
+
+    private final ClassLoader systemClassLoader;
+
+    private final ClassLoader vestigeClassLoader;
+
+    private final JPMSModuleAccessor javaBaseModule;
+
+    public EnhancementContext(final File directory, final Properties properties, final ClassLoader systemClassLoader, final ClassLoader vestigeClassLoader,
+            final JPMSModuleAccessor javaBaseModule) {
+        this.directory = directory;
+        this.properties = properties;
+        this.systemClassLoader = systemClassLoader;
+        this.vestigeClassLoader = vestigeClassLoader;
+        this.javaBaseModule = javaBaseModule;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public ClassLoader getSystemClassLoader() {
+        return systemClassLoader;
+    }
+
+    /**
+     * @return the class loader of the runtime jar, null during {@link EnhancementPhase#WARM_UP}
+     */
+    public ClassLoader getVestigeClassLoader() {
+        return vestigeClassLoader;
+    }
+
+    /**
+     * @return the java.base module, null before Java 9
+     */
+    public JPMSModuleAccessor getJavaBaseModule() {
+        return javaBaseModule;
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+/**
+ * When an {@link EnhancementStep} runs during {@link JVMEnhancer#boot(String)}.
+ * @author Gael Lalire
+ */
+public enum EnhancementPhase {
+
+    /**
+     * Before the runtime class loader is created. The steps of this phase load JDK classes or call JDK methods, so what the JDK keeps in static fields is taken from a clean
+     * worker thread. They may run in parallel.
+     */
+    WARM_UP,
+
+    /**
+     * Once the runtime class loader is created, to replace JDK fields by runtime classes. These steps do not run if no runtime jar is configured.
+     */
+    RUNTIME
+
+}
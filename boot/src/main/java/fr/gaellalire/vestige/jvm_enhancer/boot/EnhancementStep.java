@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import fr.gaellalire.vestige.core.executor.VestigeWorker;
+
+/**
+ * A step of {@link JVMEnhancer#boot(String)}. Steps are listed in <tt>META-INF/services/fr.gaellalire.vestige.jvm_enhancer.boot.EnhancementStep</tt> files of the class path of
+ * the enhancer, and run after the built-in steps of their phase.
+ * <p>
+ * A step is disabled by setting <tt>enhancement.&lt;name&gt;.enabled=false</tt> in the boot properties. A failure of a step is logged as a warning and does not stop the boot.
+ * The wall time of each step is logged at debug level, its CPU time, loaded classes and allocated bytes too with <tt>enhancement.metrics=true</tt> or <tt>profile=true</tt>.
+ * @author Gael Lalire
+ */
+public interface EnhancementStep {
+
+    /**
+     * @return the name of the step, used in properties, dependencies and logs
+     */
+    String getName();
+
+    EnhancementPhase getPhase();
+
+    /**
+     * A dependency which is unknown, disabled or of another phase is ignored.
+     * @return the names of the steps of the same phase which must be completed before this one starts
+     */
+    String[] getDependencies();
+
+    /**
+     * @param vestigeWorker the worker of the lane running this step
+     * @param enhancementContext the context of the boot
+     * @throws Exception if the step fails
+     */
+    void run(VestigeWorker vestigeWorker, EnhancementContext enhancementContext) throws Exception;
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.gaellalire.vestige.core.executor.VestigeWorker;
+
+/**
+ * Measures a step from its creation to {@link #stop(String, Throwable)}. The wall time is always measured, the other values only by a detailed meter because the MXBeans add
+ * class loading and native setup to the boot. The CPU time and allocated bytes are those of the calling thread and of the worker thread, if any. The MXBeans are looked up by
+ * reflection, so the boot module does not require <tt>java.management</tt>: without it, or without <tt>com.sun.management.ThreadMXBean</tt> for allocated bytes, the values
+ * which cannot be measured are -1, as the values of a meter which is not detailed.
+ * @author Gael Lalire
+ */
+final class EnhancementStepMeter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnhancementStepMeter.class);
+
+    private static boolean initialized;
+
+    private static Object threadMXBean;
+
+    private static Object classLoadingMXBean;
+
+    /**
+     * Null if loaded classes are not measured.
+     */
+    private static Method getTotalLoadedClassCountMethod;
+
+    /**
+     * Null if CPU time is not measured.
+     */
+    private static Method getCurrentThreadCpuTimeMethod;
+
+    private static Method getThreadCpuTimeMethod;
+
+    /**
+     * Null if allocated bytes are not measured.
+     */
+    private static Method getThreadAllocatedBytesMethod;
+
+    private final Thread workerThread;
+
+    private final long wallStart;
+
+    private final long cpuStart;
+
+    private final long loadedClassStart;
+
+    private final long allocatedStart;
+
+    private final boolean detailed;
+
+    /**
+     * @param workerThread the thread of the worker used by the step, or null
+     * @param detailed if the CPU time, loaded classes and allocated bytes are measured
+     */
+    EnhancementStepMeter(final Thread workerThread, final boolean detailed) {
+        this.detailed = detailed;
+        this.workerThread = workerThread;
+        if (detailed) {
+            init();
+            loadedClassStart = getLoadedClassCount();
+            allocatedStart = getAllocatedBytes();
+            cpuStart = getCpuTime();
+        } else {
+            loadedClassStart = -1;
+            allocatedStart = -1;
+            cpuStart = -1;
+        }
+        wallStart = System.nanoTime();
+    }
+
+    private static synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        try {
+            Class<?> managementFactoryClass = Class.forName("java.lang.management.ManagementFactory");
+            Class<?> classLoadingMXBeanClass = Class.forName("java.lang.management.ClassLoadingMXBean");
+            classLoadingMXBean = managementFactoryClass.getMethod("getClassLoadingMXBean").invoke(null);
+            getTotalLoadedClassCountMethod = classLoadingMXBeanClass.getMethod("getTotalLoadedClassCount");
+
+            Class<?> threadMXBeanClass = Class.forName("java.lang.management.ThreadMXBean");
+            threadMXBean = managementFactoryClass.getMethod("getThreadMXBean").invoke(null);
+            if (((Boolean) threadMXBeanClass.getMethod("isThreadCpuTimeSupported").invoke(threadMXBean)).booleanValue()) {
+                getCurrentThreadCpuTimeMethod = threadMXBeanClass.getMethod("getCurrentThreadCpuTime");
+                getThreadCpuTimeMethod = threadMXBeanClass.getMethod("getThreadCpuTime", long.class);
+            }
+        } catch (Exception e) {
+            LOGGER.trace("Loaded classes and CPU time are not measured", e);
+            return;
+        } catch (LinkageError e) {
+            LOGGER.trace("Loaded classes and CPU time are not measured", e);
+            return;
+        }
+        try {
+            Class<?> sunThreadMXBeanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (sunThreadMXBeanClass.isInstance(threadMXBean) && ((Boolean) sunThreadMXBeanClass.getMethod("isThreadAllocatedMemoryEnabled").invoke(threadMXBean)).booleanValue()) {
+                getThreadAllocatedBytesMethod = sunThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            LOGGER.trace("Allocated bytes are not measured", e);
+        } catch (LinkageError e) {
+            LOGGER.trace("Allocated bytes are not measured", e);
+        }
+    }
+
+    /**
+     * @return the value returned by the method, or -1 if it fails
+     */
+    private static long invokeLong(final Method method, final Object target, final Object... args) {
+        if (method == null) {
+            return -1;
+        }
+        try {
+            return ((Number) method.invoke(target, args)).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the thread running the calls of the worker, or null if it cannot be known
+     */
+    static Thread getWorkerThread(final VestigeWorker vestigeWorker, final ClassLoader classLoader) {
+        try {
+            return (Thread) vestigeWorker.invoke(classLoader, Thread.class.getMethod("currentThread"), null);
+        } catch (Exception e) {
+            LOGGER.trace("Worker thread lookup failed, its CPU time is not measured", e);
+            return null;
+        }
+    }
+
+    private static long sum(final long current, final long worker) {
+        if (current == -1 || worker == -1) {
+            return -1;
+        }
+        return current + worker;
+    }
+
+    private boolean hasWorkerThread() {
+        return workerThread != null && workerThread != Thread.currentThread();
+    }
+
+    private static long getLoadedClassCount() {
+        return invokeLong(getTotalLoadedClassCountMethod, classLoadingMXBean);
+    }
+
+    private long getCpuTime() {
+        long cpuTime = invokeLong(getCurrentThreadCpuTimeMethod, threadMXBean);
+        if (hasWorkerThread()) {
+            cpuTime = sum(cpuTime, invokeLong(getThreadCpuTimeMethod, threadMXBean, workerThread.getId()));
+        }
+        return cpuTime;
+    }
+
+    private long getAllocatedBytes() {
+        long allocatedBytes = invokeLong(getThreadAllocatedBytesMethod, threadMXBean, Thread.currentThread().getId());
+        if (hasWorkerThread()) {
+            allocatedBytes = sum(allocatedBytes, invokeLong(getThreadAllocatedBytesMethod, threadMXBean, workerThread.getId()));
+        }
+        return allocatedBytes;
+    }
+
+    private static long delta(final long start, final long end) {
+        if (start == -1 || end == -1) {
+            return -1;
+        }
+        return end - start;
+    }
+
+    /**
+     * @param name the name of the step
+     * @param failure what the step threw, or null if it succeeded
+     * @return the metrics of the step
+     */
+    EnhancementStepMetrics stop(final String name, final Throwable failure) {
+        long wallNanos = System.nanoTime() - wallStart;
+        long cpuNanos = -1;
+        long allocatedBytes = -1;
+        long loadedClassCount = -1;
+        if (detailed) {
+            cpuNanos = delta(cpuStart, getCpuTime());
+            allocatedBytes = delta(allocatedStart, getAllocatedBytes());
+            loadedClassCount = delta(loadedClassStart, getLoadedClassCount());
+        }
+        String failureType = null;
+        if (failure != null) {
+            failureType = failure.getClass().getName();
+        }
+        EnhancementStepMetrics stepMetrics = new EnhancementStepMetrics(name, wallNanos, cpuNanos, loadedClassCount, allocatedBytes, failureType);
+        LOGGER.debug("Enhancement step {}", stepMetrics);
+        return stepMetrics;
+    }
+
+}
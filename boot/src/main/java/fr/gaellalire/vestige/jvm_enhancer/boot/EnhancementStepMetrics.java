@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+/**
+ * What an {@link EnhancementStep} cost.
+ * @author Gael Lalire
+ */
+public class EnhancementStepMetrics {
+
+    private final String name;
+
+    private final long wallNanos;
+
+    private final long cpuNanos;
+
+    private final long loadedClassCount;
+
+    private final long allocatedBytes;
+
+    private final String failureType;
+
+    public EnhancementStepMetrics(final String name, final long wallNanos, final long cpuNanos, final long loadedClassCount, final long allocatedBytes,
+            final String failureType) {
+        this.name = name;
+        this.wallNanos = wallNanos;
+        this.cpuNanos = cpuNanos;
+        this.loadedClassCount = loadedClassCount;
+        this.allocatedBytes = allocatedBytes;
+        this.failureType = failureType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @return the CPU time of the lane thread and of its worker, -1 if it is not measured
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * @return the number of classes loaded by the JVM while the step ran, the steps of other lanes are included, -1 if it is not measured
+     */
+    public long getLoadedClassCount() {
+        return loadedClassCount;
+    }
+
+    /**
+     * @return the bytes allocated by the lane thread and by its worker, -1 if they are not measured
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public boolean isSuccess() {
+        return failureType == null;
+    }
+
+    /**
+     * @return the class name of what the step threw, null if it succeeded
+     */
+    public String getFailureType() {
+        return failureType;
+    }
+
+    @Override
+    public String toString() {
+        String cpu = "unknown CPU";
+        if (cpuNanos >= 0) {
+            cpu = (cpuNanos / 1000000L) + " ms CPU";
+        }
+        String result = name + " : " + (wallNanos / 1000000L) + " ms wall, " + cpu;
+        if (loadedClassCount >= 0) {
+            result += ", " + loadedClassCount + " classes loaded";
+        }
+        if (allocatedBytes >= 0) {
+            result += ", " + allocatedBytes + " bytes allocated";
+        }
+        if (failureType != null) {
+            result += ", failed with " + failureType;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.gaellalire.vestige.core.executor.VestigeExecutor;
+import fr.gaellalire.vestige.core.executor.VestigeWorker;
+
+/**
+ * Runs the {@link EnhancementStep}s of a phase, either one after another on a single worker, or on several lanes, each lane driving its own worker. A lane takes the first
+ * pending step whose dependencies are completed. A step may only depend on steps added before it, so the steps are in an order which is valid for a sequential run, and a lane
+ * waiting for a dependency always has a running step to wait for.
+ * <p>
+ * The wall time and failure of each step are recorded, and with {@link #setDetailedMetrics(boolean)} its CPU time, class-load count and allocated bytes.
+ * @author Gael Lalire
+ */
+public final class EnhancementStepRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnhancementStepRunner.class);
+
+    /**
+     * A step with its resolved dependencies.
+     * @author Gael Lalire
+     */
+    private static final class ScheduledStep {
+
+        private final EnhancementStep step;
+
+        private final List<ScheduledStep> dependencies;
+
+        private final boolean builtIn;
+
+        ScheduledStep(final EnhancementStep step, final List<ScheduledStep> dependencies, final boolean builtIn) {
+            this.step = step;
+            this.dependencies = dependencies;
+            this.builtIn = builtIn;
+        }
+
+    }
+
+    private final EnhancementContext enhancementContext;
+
+    private final List<ScheduledStep> pendingSteps = new ArrayList<ScheduledStep>();
+
+    private final Map<String, ScheduledStep> addedSteps = new HashMap<String, ScheduledStep>();
+
+    private final Set<ScheduledStep> completedSteps = new HashSet<ScheduledStep>();
+
+    private final List<EnhancementStepMetrics> metrics = new ArrayList<EnhancementStepMetrics>();
+
+    private boolean detailedMetrics;
+
+    public EnhancementStepRunner(final EnhancementContext enhancementContext) {
+        this.enhancementContext = enhancementContext;
+    }
+
+    /**
+     * @param detailedMetrics if the CPU time, class-load count and allocated bytes of the steps are measured, which initializes the management MXBeans
+     */
+    public void setDetailedMetrics(final boolean detailedMetrics) {
+        this.detailedMetrics = detailedMetrics;
+    }
+
+    /**
+     * The failures of the step are logged as warnings.
+     * @param step a step whose name is not already added
+     * @throws IllegalArgumentException if a step with the same name is already added
+     */
+    public void add(final EnhancementStep step) {
+        add(step, false);
+    }
+
+    /**
+     * Adds a step of the enhancer, whose failures are expected on some JDK and only traced.
+     */
+    void addBuiltIn(final EnhancementStep step) {
+        add(step, true);
+    }
+
+    private void add(final EnhancementStep step, final boolean builtIn) {
+        String name = step.getName();
+        if (addedSteps.containsKey(name)) {
+            throw new IllegalArgumentException("Enhancement step " + name + " is already added");
+        }
+        List<ScheduledStep> dependencies = new ArrayList<ScheduledStep>();
+        for (String dependencyName : step.getDependencies()) {
+            ScheduledStep dependency = addedSteps.get(dependencyName);
+            if (dependency == null) {
+                if (builtIn) {
+                    LOGGER.debug("Dependency {} of enhancement step {} is not added before it, ignored", dependencyName, name);
+                } else {
+                    LOGGER.warn("Dependency {} of enhancement step {} is not added before it, ignored", dependencyName, name);
+                }
+            } else {
+                dependencies.add(dependency);
+            }
+        }
+        ScheduledStep scheduledStep = new ScheduledStep(step, dependencies, builtIn);
+        addedSteps.put(name, scheduledStep);
+        pendingSteps.add(scheduledStep);
+    }
+
+    /**
+     * Runs the steps in the order they were added.
+     * @param vestigeWorker the worker running all steps
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void runSequentially(final VestigeWorker vestigeWorker) throws InterruptedException {
+        runLane(vestigeWorker);
+    }
+
+    /**
+     * Runs the steps on workerCount lanes and returns once all steps are completed. The first lane is run by the calling thread with the given worker, the workers of the
+     * other lanes are created from the executor and stopped before this method returns.
+     * @param vestigeExecutor the executor creating the workers of the other lanes
+     * @param vestigeWorker the worker of the first lane
+     * @param workerCount the number of lanes
+     * @throws Exception if a worker cannot be created or the calling thread is interrupted
+     */
+    public void runInParallel(final VestigeExecutor vestigeExecutor, final VestigeWorker vestigeWorker, final int workerCount) throws Exception {
+        List<VestigeWorker> createdWorkers = new ArrayList<VestigeWorker>();
+        try {
+            List<VestigeWorker> laneWorkers = new ArrayList<VestigeWorker>();
+            laneWorkers.add(vestigeWorker);
+            for (int i = 1; i < workerCount; i++) {
+                VestigeWorker laneWorker = vestigeExecutor.createWorker("bootstrap-sun-worker-" + i, true, 0);
+                createdWorkers.add(laneWorker);
+                laneWorkers.add(laneWorker);
+            }
+            runLanes(laneWorkers);
+        } finally {
+            for (VestigeWorker createdWorker : createdWorkers) {
+                createdWorker.interrupt();
+                createdWorker.join();
+            }
+        }
+    }
+
+    /**
+     * Runs a lane per worker and returns once all steps are completed. The first lane is run by the calling thread, each other lane by a thread which only drives its worker.
+     * @param laneWorkers the workers of the lanes
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    void runLanes(final List<VestigeWorker> laneWorkers) throws InterruptedException {
+        List<Thread> laneThreads = new ArrayList<Thread>();
+        try {
+            for (int i = 1; i < laneWorkers.size(); i++) {
+                final VestigeWorker laneWorker = laneWorkers.get(i);
+                // only drives its worker, the JDK sees the context of the worker thread
+                Thread laneThread = new Thread("bootstrap-warm-up-lane-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            runLane(laneWorker);
+                        } catch (InterruptedException e) {
+                            // boot interrupted
+                        }
+                    }
+                };
+                laneThread.setDaemon(true);
+                laneThreads.add(laneThread);
+                laneThread.start();
+            }
+            runLane(laneWorkers.get(0));
+            for (Thread laneThread : laneThreads) {
+                laneThread.join();
+            }
+        } finally {
+            for (Thread laneThread : laneThreads) {
+                laneThread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the metrics of the completed steps, in completion order
+     */
+    public synchronized List<EnhancementStepMetrics> getMetrics() {
+        return new ArrayList<EnhancementStepMetrics>(metrics);
+    }
+
+    private void runLane(final VestigeWorker laneWorker) throws InterruptedException {
+        Thread workerThread = null;
+        if (detailedMetrics) {
+            workerThread = EnhancementStepMeter.getWorkerThread(laneWorker, enhancementContext.getSystemClassLoader());
+        }
+        ScheduledStep scheduledStep = nextStep();
+        while (scheduledStep != null) {
+            EnhancementStepMetrics stepMetrics = null;
+            try {
+                stepMetrics = runStep(scheduledStep, laneWorker, workerThread);
+            } finally {
+                complete(scheduledStep, stepMetrics);
+            }
+            scheduledStep = nextStep();
+        }
+    }
+
+    private EnhancementStepMetrics runStep(final ScheduledStep scheduledStep, final VestigeWorker laneWorker, final Thread workerThread) {
+        EnhancementStep step = scheduledStep.step;
+        EnhancementStepMeter meter = new EnhancementStepMeter(workerThread, detailedMetrics);
+        Throwable failure = null;
+        try {
+            step.run(laneWorker, enhancementContext);
+        } catch (Throwable e) {
+            // a failed step never stops the boot, nor its lane
+            failure = e;
+            if (scheduledStep.builtIn) {
+                LOGGER.trace("Enhancement step " + step.getName() + " failed", e);
+            } else {
+                LOGGER.warn("Enhancement step " + step.getName() + " failed", e);
+            }
+        }
+        return meter.stop(step.getName(), failure);
+    }
+
+    private synchronized ScheduledStep nextStep() throws InterruptedException {
+        for (;;) {
+            if (pendingSteps.isEmpty()) {
+                return null;
+            }
+            Iterator<ScheduledStep> iterator = pendingSteps.iterator();
+            while (iterator.hasNext()) {
+                ScheduledStep scheduledStep = iterator.next();
+                if (completedSteps.containsAll(scheduledStep.dependencies)) {
+                    iterator.remove();
+                    return scheduledStep;
+                }
+            }
+            wait();
+        }
+    }
+
+    private synchronized void complete(final ScheduledStep scheduledStep, final EnhancementStepMetrics stepMetrics) {
+        completedSteps.add(scheduledStep);
+        if (stepMetrics != null) {
+            metrics.add(stepMetrics);
+        }
+        notifyAll();
+    }
+
+}
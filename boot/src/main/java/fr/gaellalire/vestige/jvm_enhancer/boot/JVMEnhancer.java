@@ -16,8 +16,11 @@
 
 package fr.gaellalire.vestige.jvm_enhancer.boot;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -26,10 +29,14 @@ import java.net.ProxySelector;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
@@ -56,14 +63,17 @@ import fr.gaellalire.vestige.core.resource.VestigeResourceLocator;
 import fr.gaellalire.vestige.jpms.JPMSAccessorLoader;
 import fr.gaellalire.vestige.jpms.JPMSModuleAccessor;
 import fr.gaellalire.vestige.jpms.JPMSModuleLayerAccessor;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ConcurrentWeakIdentityHashMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ConcurrentWeakLevelMap;
 import fr.gaellalire.vestige.jvm_enhancer.runtime.JULBackend;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper;
 import fr.gaellalire.vestige.jvm_enhancer.runtime.SystemProxySelector;
 import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakArrayList;
-import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakHashtable;
-import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakIdentityHashMap;
-import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakJceSecurityHashMap;
-import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakLevelMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentHashtable;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentJceSecurityHashMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakIntLevelMap;
 import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakProviderConcurrentHashMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakSoftCacheFactory;
 import fr.gaellalire.vestige.jvm_enhancer.runtime.windows.WindowsShutdownHook;
 
 /**
@@ -73,6 +83,11 @@ public class JVMEnhancer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JVMEnhancer.class);
 
+    /**
+     * Compiled for Java 8, so it is not referenced by class.
+     */
+    private static final String JAVA8_WEAK_PROVIDER_CONCURRENT_HASH_MAP = "fr.gaellalire.vestige.jvm_enhancer.runtime.Java8WeakProviderConcurrentHashMap";
+
     private static Object getField(final Field field) throws Exception {
         Callable<Object> callable = new Callable<Object>() {
 
@@ -136,6 +151,8 @@ public class JVMEnhancer {
 
     private Function<Thread, Void, RuntimeException> removeShutdownHook;
 
+    private List<EnhancementStepMetrics> enhancementStepMetrics = Collections.emptyList();
+
     public Object runEnhancedMain() throws Exception {
         try {
             Method method = mainClass.getMethod("vestigeEnhancedCoreMain", VestigeCoreContext.class, Function.class, Function.class, List.class, String[].class);
@@ -188,6 +205,13 @@ public class JVMEnhancer {
         return directory;
     }
 
+    /**
+     * @return the metrics of the enhancement steps run by {@link #boot(String)}
+     */
+    public List<EnhancementStepMetrics> getEnhancementStepMetrics() {
+        return enhancementStepMetrics;
+    }
+
     public ClassLoader createClassLoader(final VestigeWorker vestigeWorker, final String runtimePaths) throws Exception {
         List<File> urlList = new ArrayList<File>();
         Vestige.addClasspath(directory, urlList, runtimePaths);
@@ -204,138 +228,133 @@ public class JVMEnhancer {
         return vestigeWorker.createVestigeClassLoader(ClassLoader.getSystemClassLoader(), vestigeClassLoaderConfigurationsArray, stringParser, stringParser, null, urls);
     }
 
-    @SuppressWarnings("unchecked")
-    public Object boot(final String propertyPath) throws Exception {
-        JPMSModuleAccessor javaBaseModule;
-        if (JPMSAccessorLoader.INSTANCE != null) {
-            JPMSModuleLayerAccessor bootLayer = JPMSAccessorLoader.INSTANCE.bootLayer();
-            bootLayer.findModule("java.desktop").addExports("sun.awt", InvokeMethod.class);
-            javaBaseModule = bootLayer.findModule("java.base");
-            javaBaseModule.addExports("sun.security.jca", InvokeMethod.class);
-            javaBaseModule.addOpens("java.lang.reflect", JVMEnhancer.class);
-            javaBaseModule.addOpens("javax.crypto", JVMEnhancer.class);
-            javaBaseModule.addOpens("java.net", JVMEnhancer.class);
-        } else {
-            javaBaseModule = null;
-        }
-
-        Properties properties = new Properties();
-        if (propertyPath.length() != 0) {
-            FileInputStream fileInputStream = new FileInputStream(propertyPath);
-            try {
-                properties.load(fileInputStream);
-            } finally {
-                fileInputStream.close();
+    /**
+     * The built-in warm-up steps. A dependency is declared between steps which initialize the same part of the JDK, so they keep the order of the sequential boot.
+     */
+    private static List<EnhancementStep> createWarmUpSteps() {
+        List<EnhancementStep> steps = new ArrayList<EnhancementStep>();
+        EnhancementStep appContextStep = new AbstractEnhancementStep("sun.awt.AppContext.getAppContext", EnhancementPhase.WARM_UP) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                LOGGER.debug("Calling sun.awt.AppContext.getAppContext");
+                // keep the context classloader in static field (mainAppContext.contextClassLoader)
+                Class<?> appContextClass = vestigeWorker.classForName(systemClassLoader, "sun.awt.AppContext");
+                vestigeWorker.invoke(systemClassLoader, appContextClass.getMethod("getAppContext"), null);
             }
+        };
+        steps.add(appContextStep);
+        EnhancementStep policyStep = new AbstractEnhancementStep("javax.security.auth.Policy", EnhancementPhase.WARM_UP) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                LOGGER.debug("Loading javax.security.auth.Policy");
+                // keep the context classloader in static field
+                vestigeWorker.classForName(systemClassLoader, "javax.security.auth.Policy");
+            }
+        };
+        steps.add(policyStep);
+        for (final String className : new String[] {"com.sun.org.apache.xerces.internal.dom.DOMNormalizer", "com.sun.org.apache.xml.internal.serialize.DOMSerializerImpl",
+                "com.sun.org.apache.xerces.internal.parsers.AbstractDOMParser", "javax.management.remote.JMXServiceURL"}) {
+            steps.add(new AbstractEnhancementStep(className, EnhancementPhase.WARM_UP) {
+                @Override
+                public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                    ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                    LOGGER.debug("Loading {}", className);
+                    // keep an exception in static field
+                    vestigeWorker.classForName(systemClassLoader, className);
+                }
+            });
         }
+        steps.add(new AbstractEnhancementStep("sun.java2d.Disposer", EnhancementPhase.WARM_UP, appContextStep.getName()) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                LOGGER.debug("Loading sun.java2d.Disposer");
+                // create thread
+                vestigeWorker.classForName(systemClassLoader, "sun.java2d.Disposer");
+            }
+        });
+        EnhancementStep configurationStep = new AbstractEnhancementStep("javax.security.auth.login.Configuration.getConfiguration", EnhancementPhase.WARM_UP, policyStep.getName()) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                LOGGER.debug("Calling javax.security.auth.login.Configuration.getConfiguration");
+                // keep the context classloader in static field
+                Class<?> configurationClass = vestigeWorker.classForName(systemClassLoader, "javax.security.auth.login.Configuration");
+                vestigeWorker.invoke(systemClassLoader, configurationClass.getMethod("getConfiguration"), null);
+            }
+        };
+        steps.add(configurationStep);
+        steps.add(new AbstractEnhancementStep("sun.security.jca.ProviderList.getService", EnhancementPhase.WARM_UP, configurationStep.getName()) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                LOGGER.debug("Calling sun.security.jca.ProviderList.getService");
+                // sun.security.pkcs11.SunPKCS11 create thread (with the context
+                // classloader of parent thread) and sun.security.jca.Providers keep
+                // it in static field
+                Class<?> providersClass = vestigeWorker.classForName(systemClassLoader, "sun.security.jca.Providers");
+                Object providerList = vestigeWorker.invoke(systemClassLoader, providersClass.getMethod("getProviderList"), null);
+                Class<?> providerListClass = vestigeWorker.classForName(systemClassLoader, "sun.security.jca.ProviderList");
+                vestigeWorker.invoke(systemClassLoader, providerListClass.getMethod("getService", String.class, String.class), providerList, "MessageDigest", "SHA");
+            }
+        });
+        steps.add(new AbstractEnhancementStep("sun.misc.GC.requestLatency", EnhancementPhase.WARM_UP) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                LOGGER.debug("Calling sun.misc.GC.requestLatency");
+                // sun.misc.GC create thread (with the context classloader of parent
+                // thread)
+                Class<?> gcClass = vestigeWorker.classForName(systemClassLoader, "sun.misc.GC");
+                vestigeWorker.invoke(systemClassLoader, gcClass.getMethod("requestLatency", long.class), null, Long.valueOf(Long.MAX_VALUE - 1));
+            }
+        });
+        steps.add(new AbstractEnhancementStep("com.sun.jndi.ldap.LdapPoolManager", EnhancementPhase.WARM_UP) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader systemClassLoader = enhancementContext.getSystemClassLoader();
+                LOGGER.debug("Loading com.sun.jndi.ldap.LdapPoolManager");
+                // com.sun.jndi.ldap.LdapPoolManager may create thread (with the
+                // context
+                // classloader of parent thread)
+                vestigeWorker.classForName(systemClassLoader, "com.sun.jndi.ldap.LdapPoolManager");
+            }
+        });
+        return steps;
+    }
 
-        VestigeWorker vestigeWorker = vestigeCoreContext.getVestigeExecutor().createWorker("bootstrap-sun-worker", true, 0);
-
-        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
-
-        LOGGER.debug("Calling sun.awt.AppContext.getAppContext");
-        try {
-            // synchronization issue with -XstartOnFirstThread (java.awt.Toolkit needs to be loaded by first thread)
-            Class.forName("java.awt.Toolkit", true, systemClassLoader);
-            // keep the context classloader in static field (mainAppContext.contextClassLoader)
-            Class<?> appContextClass = vestigeWorker.classForName(systemClassLoader, "sun.awt.AppContext");
-            vestigeWorker.invoke(systemClassLoader, appContextClass.getMethod("getAppContext"), null);
-        } catch (Exception e) {
-            LOGGER.trace("sun.awt.AppContext.getAppContext call failed", e);
-        }
-        LOGGER.debug("Loading javax.security.auth.Policy");
-        try {
-            // keep the context classloader in static field
-            vestigeWorker.classForName(systemClassLoader, "javax.security.auth.Policy");
-        } catch (Exception e) {
-            LOGGER.trace("javax.security.auth.Policy load failed", e);
-        }
-        LOGGER.debug("Loading com.sun.org.apache.xerces.internal.dom.DOMNormalizer");
-        try {
-            // keep an exception in static field
-            vestigeWorker.classForName(systemClassLoader, "com.sun.org.apache.xerces.internal.dom.DOMNormalizer");
-        } catch (Exception e) {
-            LOGGER.trace("com.sun.org.apache.xerces.internal.dom.DOMNormalizer load failed", e);
-        }
-        LOGGER.debug("Loading com.sun.org.apache.xml.internal.serialize.DOMSerializerImpl");
-        try {
-            // keep an exception in static field
-            vestigeWorker.classForName(systemClassLoader, "com.sun.org.apache.xml.internal.serialize.DOMSerializerImpl");
-        } catch (Exception e) {
-            LOGGER.trace("com.sun.org.apache.xml.internal.serialize.DOMSerializerImpl load failed", e);
-        }
-        LOGGER.debug("Loading com.sun.org.apache.xerces.internal.parsers.AbstractDOMParser");
-        try {
-            // keep an exception in static field
-            vestigeWorker.classForName(systemClassLoader, "com.sun.org.apache.xerces.internal.parsers.AbstractDOMParser");
-        } catch (Exception e) {
-            LOGGER.trace("com.sun.org.apache.xerces.internal.parsers.AbstractDOMParser load failed", e);
-        }
-        LOGGER.debug("Loading javax.management.remote.JMXServiceURL");
-        try {
-            // keep an exception in static field
-            vestigeWorker.classForName(systemClassLoader, "javax.management.remote.JMXServiceURL");
-        } catch (Exception e) {
-            LOGGER.trace("javax.management.remote.JMXServiceURL load failed", e);
-        }
-        LOGGER.debug("Loading sun.java2d.Disposer");
-        try {
-            // create thread
-            vestigeWorker.classForName(systemClassLoader, "sun.java2d.Disposer");
-        } catch (Exception e) {
-            LOGGER.trace("sun.java2d.Disposer load failed", e);
-        }
-        LOGGER.debug("Calling javax.security.auth.login.Configuration.getConfiguration");
-        try {
-            // keep the context classloader in static field
-            Class<?> configurationClass = vestigeWorker.classForName(systemClassLoader, "javax.security.auth.login.Configuration");
-            vestigeWorker.invoke(systemClassLoader, configurationClass.getMethod("getConfiguration"), null);
-        } catch (Throwable e) {
-            LOGGER.trace("javax.security.auth.login.Configuration.getConfiguration call failed", e);
-        }
-        LOGGER.debug("Calling sun.security.jca.ProviderList.getService");
-        try {
-            // sun.security.pkcs11.SunPKCS11 create thread (with the context
-            // classloader of parent thread) and sun.security.jca.Providers keep
-            // it in static field
-            Class<?> providersClass = vestigeWorker.classForName(systemClassLoader, "sun.security.jca.Providers");
-            Object providerList = vestigeWorker.invoke(systemClassLoader, providersClass.getMethod("getProviderList"), null);
-            Class<?> providerListClass = vestigeWorker.classForName(systemClassLoader, "sun.security.jca.ProviderList");
-            vestigeWorker.invoke(systemClassLoader, providerListClass.getMethod("getService", String.class, String.class), providerList, "MessageDigest", "SHA");
-        } catch (Exception e) {
-            LOGGER.trace("sun.security.jca.ProviderList.getService call failed", e);
-        }
-        LOGGER.debug("Calling sun.misc.GC.requestLatency");
-        try {
-            // sun.misc.GC create thread (with the context classloader of parent
-            // thread)
-            Class<?> gcClass = vestigeWorker.classForName(systemClassLoader, "sun.misc.GC");
-            vestigeWorker.invoke(systemClassLoader, gcClass.getMethod("requestLatency", long.class), null, Long.valueOf(Long.MAX_VALUE - 1));
-        } catch (Exception e) {
-            LOGGER.trace("sun.misc.GC.requestLatency call failed", e);
-        }
-        LOGGER.debug("Loading com.sun.jndi.ldap.LdapPoolManager");
-        try {
-            // com.sun.jndi.ldap.LdapPoolManager may create thread (with the
-            // context
-            // classloader of parent thread)
-            vestigeWorker.classForName(systemClassLoader, "com.sun.jndi.ldap.LdapPoolManager");
-        } catch (Exception e) {
-            LOGGER.trace("com.sun.jndi.ldap.LdapPoolManager load failed", e);
-        }
-
-        String runtimePaths = properties.getProperty("runtime.jar");
-
-        if (runtimePaths == null) {
-            privilegedClassloaders = Collections.emptyList();
-        } else {
-            ClassLoader vestigeClassLoader = createClassLoader(vestigeWorker, runtimePaths);
-
-            LOGGER.debug("Replacing javax.crypto.JceSecurity.verificationResults");
-            try {
+    /**
+     * The built-in runtime steps. They replace JDK fields by classes of the runtime jar.
+     */
+    private List<EnhancementStep> createRuntimeSteps() {
+        List<EnhancementStep> steps = new ArrayList<EnhancementStep>();
+        steps.add(new AbstractEnhancementStep("fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper", EnhancementPhase.RUNTIME) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                LOGGER.debug("Starting reference reaper");
+                Class<?> referenceReaperClass = vestigeClassLoader.loadClass(ReferenceReaper.class.getName());
+                vestigeWorker.invoke(vestigeClassLoader, referenceReaperClass.getMethod("start"), null);
+            }
+        });
+        steps.add(new AbstractEnhancementStep("javax.crypto.JceSecurity.verificationResults", EnhancementPhase.RUNTIME) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                JPMSModuleAccessor javaBaseModule = enhancementContext.getJavaBaseModule();
+                LOGGER.debug("Replacing javax.crypto.JceSecurity.verificationResults");
                 Field verificationResultsField = Class.forName("javax.crypto.JceSecurity").getDeclaredField("verificationResults");
                 if (getField(verificationResultsField) instanceof ConcurrentHashMap) {
-                    Class<?> weakProviderConcurrentHashMapClass = vestigeClassLoader.loadClass(WeakProviderConcurrentHashMap.class.getName());
+                    String weakProviderConcurrentHashMapClassName;
+                    if (isClassPresent("java.util.function.Function")) {
+                        // since JDK 21, computeIfAbsent is called without the JceSecurity class lock
+                        weakProviderConcurrentHashMapClassName = JAVA8_WEAK_PROVIDER_CONCURRENT_HASH_MAP;
+                    } else {
+                        weakProviderConcurrentHashMapClassName = WeakProviderConcurrentHashMap.class.getName();
+                    }
+                    Class<?> weakProviderConcurrentHashMapClass = vestigeClassLoader.loadClass(weakProviderConcurrentHashMapClassName);
                     if (javaBaseModule != null) {
                         // Properties
                         javaBaseModule.addOpens("java.util", weakProviderConcurrentHashMapClass);
@@ -344,163 +363,184 @@ public class JVMEnhancer {
                     }
                     setField(verificationResultsField, weakProviderConcurrentHashMapClass.getConstructor().newInstance());
                 } else {
-                    Class<?> weakIdentityHashMapClass = vestigeClassLoader.loadClass(WeakIdentityHashMap.class.getName());
-                    setField(verificationResultsField, weakIdentityHashMapClass.getConstructor().newInstance());
+                    Class<?> concurrentWeakIdentityHashMapClass = vestigeClassLoader.loadClass(ConcurrentWeakIdentityHashMap.class.getName());
+                    setField(verificationResultsField, concurrentWeakIdentityHashMapClass.getConstructor().newInstance());
                 }
-            } catch (Exception e) {
-                LOGGER.trace("javax.crypto.JceSecurity.verificationResults replacement failed", e);
-            } catch (NoClassDefFoundError e) {
-                LOGGER.trace("javax.crypto.JceSecurity.verificationResults replacement failed", e);
             }
-
-            LOGGER.debug("Replacing javax.crypto.JceSecurity.codeBaseCacheRef");
-            try {
-                Class<?> weakJceSecurityHashMapClass = vestigeClassLoader.loadClass(WeakJceSecurityHashMap.class.getName());
-                setField(Class.forName("javax.crypto.JceSecurity").getDeclaredField("codeBaseCacheRef"), weakJceSecurityHashMapClass.getConstructor().newInstance());
-            } catch (Exception e) {
-                LOGGER.trace("javax.crypto.JceSecurity.codeBaseCacheRef replacement failed", e);
-            } catch (NoClassDefFoundError e) {
-                LOGGER.trace("javax.crypto.JceSecurity.codeBaseCacheRef replacement failed", e);
+        });
+        steps.add(new AbstractEnhancementStep("javax.crypto.JceSecurity.codeBaseCacheRef", EnhancementPhase.RUNTIME) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                LOGGER.debug("Replacing javax.crypto.JceSecurity.codeBaseCacheRef");
+                Class<?> weakConcurrentJceSecurityHashMapClass = vestigeClassLoader.loadClass(WeakConcurrentJceSecurityHashMap.class.getName());
+                setField(Class.forName("javax.crypto.JceSecurity").getDeclaredField("codeBaseCacheRef"), weakConcurrentJceSecurityHashMapClass.getConstructor().newInstance());
             }
-
-            LOGGER.debug("Replacing javax.crypto.JceSecurity.verifyingProviders");
-            try {
-                Class<?> weakIdentityHashMapClass = vestigeClassLoader.loadClass(WeakIdentityHashMap.class.getName());
-                setField(Class.forName("javax.crypto.JceSecurity").getDeclaredField("verifyingProviders"), weakIdentityHashMapClass.getConstructor().newInstance());
-            } catch (Exception e) {
-                LOGGER.trace("javax.crypto.JceSecurity.verifyingProviders replacement failed", e);
-            } catch (NoClassDefFoundError e) {
-                LOGGER.trace("javax.crypto.JceSecurity.verifyingProviders replacement failed", e);
+        });
+        steps.add(new AbstractEnhancementStep("javax.crypto.JceSecurity.verifyingProviders", EnhancementPhase.RUNTIME) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                LOGGER.debug("Replacing javax.crypto.JceSecurity.verifyingProviders");
+                // thread-safe by itself, it does not rely on the JceSecurity class lock
+                Class<?> concurrentWeakIdentityHashMapClass = vestigeClassLoader.loadClass(ConcurrentWeakIdentityHashMap.class.getName());
+                setField(Class.forName("javax.crypto.JceSecurity").getDeclaredField("verifyingProviders"), concurrentWeakIdentityHashMapClass.getConstructor().newInstance());
             }
-
-            LOGGER.debug("Replacing java.net.URL.handlers");
-            try {
-                Class<?> weakHashtableClass = vestigeClassLoader.loadClass(WeakHashtable.class.getName());
-                setField(Class.forName("java.net.URL").getDeclaredField("handlers"), weakHashtableClass.getConstructor().newInstance());
-            } catch (Exception e) {
-                LOGGER.trace("java.net.URL.handlers replacement failed", e);
-            } catch (NoClassDefFoundError e) {
-                LOGGER.trace("java.net.URL.handlers replacement failed", e);
+        });
+        steps.add(new AbstractEnhancementStep("java.net.URL.handlers", EnhancementPhase.RUNTIME) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                LOGGER.debug("Replacing java.net.URL.handlers");
+                // read without lock by every new URL
+                Class<?> weakConcurrentHashtableClass = vestigeClassLoader.loadClass(WeakConcurrentHashtable.class.getName());
+                setField(Class.forName("java.net.URL").getDeclaredField("handlers"), weakConcurrentHashtableClass.getConstructor().newInstance());
             }
-
-            LOGGER.debug("Replacing java.lang.Thread.subclassAudits");
-            try {
-                // WeakSoftCache is hard to compile : the .class is in resources
-                Class<?> weakSoftCacheClass = vestigeClassLoader.loadClass("fr.gaellalire.vestige.jvm_enhancer.runtime.WeakSoftCache");
-                setField(Thread.class.getDeclaredField("subclassAudits"), weakSoftCacheClass.getConstructor().newInstance());
-            } catch (Exception e) {
-                LOGGER.trace("java.lang.Thread.subclassAudits replacement failed", e);
-            } catch (NoClassDefFoundError e) {
-                LOGGER.trace("java.lang.Thread.subclassAudits replacement failed", e);
+        });
+        steps.add(new AbstractEnhancementStep("java.lang.Thread.subclassAudits", EnhancementPhase.RUNTIME) {
+            @Override
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                LOGGER.debug("Replacing java.lang.Thread.subclassAudits");
+                Field subclassAuditsField = Thread.class.getDeclaredField("subclassAudits");
+                // since Java 7 the field is a ConcurrentMap with weak keys
+                if (!subclassAuditsField.getType().isInterface()) {
+                    Class<?> weakSoftCacheFactoryClass = vestigeClassLoader.loadClass(WeakSoftCacheFactory.class.getName());
+                    setField(subclassAuditsField, weakSoftCacheFactoryClass.getMethod("create", Class.class).invoke(null, subclassAuditsField.getType()));
+                }
             }
-
-            // keep levels in static field
-            LOGGER.debug("Replacing java.util.logging.Level.known");
-            try {
+        });
+        steps.add(new AbstractEnhancementStep("java.util.logging.Level.known", EnhancementPhase.RUNTIME) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                // keep levels in static field
+                LOGGER.debug("Replacing java.util.logging.Level.known");
+                // before Java 7, fails with NoSuchFieldException on later JDK
                 Field declaredField = Level.class.getDeclaredField("known");
                 List<Level> known = (List<Level>) getField(declaredField);
 
                 Class<?> weakArrayListClass = vestigeClassLoader.loadClass(WeakArrayList.class.getName());
-                List<Level> weakArrayList = (List<Level>) weakArrayListClass.getConstructor(Level.class).newInstance(Level.OFF);
+                // the parameter of the constructor is erased to Object
+                List<Level> weakArrayList = (List<Level>) weakArrayListClass.getConstructor(Object.class).newInstance(Level.OFF);
                 weakArrayList.addAll(known);
                 setField(declaredField, weakArrayList);
-            } catch (NoSuchFieldException nsfe) {
+            }
+        });
+        steps.add(new AbstractEnhancementStep("java.util.logging.Level$KnownLevel", EnhancementPhase.RUNTIME) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
                 LOGGER.debug("Replacing java.util.logging.Level$KnownLevel");
-                try {
-                    Class<?> forName = Class.forName("java.util.logging.Level$KnownLevel");
-                    Field nameToLevelsField = forName.getDeclaredField("nameToLevels");
-                    Field intToLevelsField = forName.getDeclaredField("intToLevels");
-                    Field levelObjectField = forName.getDeclaredField("levelObject");
-                    Constructor<?> constructor = forName.getDeclaredConstructor(Level.class);
-                    levelObjectField.setAccessible(true);
-                    constructor.setAccessible(true);
-
-                    Map<String, List<Object>> initialNameToLevels = (Map<String, List<Object>>) getField(nameToLevelsField);
-
-                    Class<?> weakLevelMapClass = vestigeClassLoader.loadClass(WeakLevelMap.class.getName());
-                    Constructor<?> weakLevelMapConstructor = weakLevelMapClass.getConstructor(Field.class, Constructor.class);
-
-                    Map<String, List<Object>> nameToLevels = (Map<String, List<Object>>) weakLevelMapConstructor.newInstance(levelObjectField, constructor);
-                    for (Entry<String, List<Object>> entry : initialNameToLevels.entrySet()) {
-                        List<Object> list = nameToLevels.get(entry.getKey());
-                        list.addAll(entry.getValue());
-                    }
-                    Map<Integer, List<Object>> initialIntToLevels = (Map<Integer, List<Object>>) getField(intToLevelsField);
-                    Map<Integer, List<Object>> intToLevels = (Map<Integer, List<Object>>) weakLevelMapConstructor.newInstance(levelObjectField, constructor);
-                    for (Entry<Integer, List<Object>> entry : initialIntToLevels.entrySet()) {
-                        List<Object> list = intToLevels.get(entry.getKey());
-                        list.addAll(entry.getValue());
-                    }
-                    setField(nameToLevelsField, nameToLevels);
-                    setField(intToLevelsField, intToLevels);
-                } catch (Exception e) {
-                    LOGGER.trace("java.util.logging.Level$KnownLevel replacement failed", e);
+                // since Java 7, fails with ClassNotFoundException on earlier JDK
+                Class<?> forName = Class.forName("java.util.logging.Level$KnownLevel");
+                Field nameToLevelsField = forName.getDeclaredField("nameToLevels");
+                Field intToLevelsField = forName.getDeclaredField("intToLevels");
+                Field levelObjectField = forName.getDeclaredField("levelObject");
+                Constructor<?> constructor = forName.getDeclaredConstructor(Level.class);
+                levelObjectField.setAccessible(true);
+                constructor.setAccessible(true);
+
+                Map<String, List<Object>> initialNameToLevels = (Map<String, List<Object>>) getField(nameToLevelsField);
+
+                // logging threads look levels up by name without locking
+                Class<?> weakLevelMapClass = vestigeClassLoader.loadClass(ConcurrentWeakLevelMap.class.getName());
+                Constructor<?> weakLevelMapConstructor = weakLevelMapClass.getConstructor(Field.class, Constructor.class);
+
+                Map<String, List<Object>> nameToLevels = (Map<String, List<Object>>) weakLevelMapConstructor.newInstance(levelObjectField, constructor);
+                for (Entry<String, List<Object>> entry : initialNameToLevels.entrySet()) {
+                    List<Object> list = nameToLevels.get(entry.getKey());
+                    list.addAll(entry.getValue());
                 }
-            } catch (Exception e) {
-                LOGGER.trace("java.util.logging.Level.known replacement failed", e);
-            }
-
-            String osName = System.getProperty("os.name").toLowerCase();
-            boolean windows = osName.contains("windows");
-            boolean mac = osName.contains("mac");
-            String arch = "x86";
-            if (!System.getProperty("os.arch").equals("w32")) {
-                arch = System.getProperty("os.arch");
-                if (arch.equals("x86_64")) {
-                    arch = "amd64";
+                Map<Integer, List<Object>> initialIntToLevels = (Map<Integer, List<Object>>) getField(intToLevelsField);
+                // int keys are looked up without Integer hashing
+                Class<?> weakIntLevelMapClass = vestigeClassLoader.loadClass(WeakIntLevelMap.class.getName());
+                Constructor<?> weakIntLevelMapConstructor = weakIntLevelMapClass.getConstructor(Field.class, Constructor.class);
+                Map<Integer, List<Object>> intToLevels = (Map<Integer, List<Object>>) weakIntLevelMapConstructor.newInstance(levelObjectField, constructor);
+                for (Entry<Integer, List<Object>> entry : initialIntToLevels.entrySet()) {
+                    List<Object> list = intToLevels.get(entry.getKey());
+                    list.addAll(entry.getValue());
                 }
+                setField(nameToLevelsField, nameToLevels);
+                setField(intToLevelsField, intToLevels);
             }
-
-            // install proxy selector
-            try {
-                synchronized (ProxySelector.class) {
-                    if (windows) {
-                        String proxyUtilPath = properties.getProperty("proxy_vole.proxy_util." + arch);
-                        if (proxyUtilPath != null) {
-                            File proxyUtilFile = new File(directory, proxyUtilPath);
-                            Class<?> win32ProxyUtilsClass = vestigeClassLoader.loadClass(Win32ProxyUtils.class.getName());
-                            Method method = win32ProxyUtilsClass.getMethod("init", String.class);
-                            try {
-                                vestigeWorker.invoke(vestigeClassLoader, method, null, proxyUtilFile.getAbsolutePath());
-                            } catch (Exception e) {
-                                LOGGER.warn("Unable to load windows proxy accessor", e);
+        });
+        steps.add(new AbstractEnhancementStep("java.net.ProxySelector", EnhancementPhase.RUNTIME) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                Properties properties = enhancementContext.getProperties();
+                String arch = getArch();
+                String osName = System.getProperty("os.name").toLowerCase();
+                boolean windows = osName.contains("windows");
+                boolean mac = osName.contains("mac");
+                // install proxy selector
+                try {
+                    synchronized (ProxySelector.class) {
+                        if (windows) {
+                            String proxyUtilPath = properties.getProperty("proxy_vole.proxy_util." + arch);
+                            if (proxyUtilPath != null) {
+                                File proxyUtilFile = new File(enhancementContext.getDirectory(), proxyUtilPath);
+                                Class<?> win32ProxyUtilsClass = vestigeClassLoader.loadClass(Win32ProxyUtils.class.getName());
+                                Method method = win32ProxyUtilsClass.getMethod("init", String.class);
+                                try {
+                                    vestigeWorker.invoke(vestigeClassLoader, method, null, proxyUtilFile.getAbsolutePath());
+                                } catch (Exception e) {
+                                    LOGGER.warn("Unable to load windows proxy accessor", e);
+                                }
                             }
-                        }
-                    } else if (!mac) {
-                        String gsettingsPath = properties.getProperty("proxy_vole.gsettings." + arch);
-                        if (gsettingsPath != null) {
-                            File gsettingsFile = new File(directory, gsettingsPath);
-                            Class<?> proxySchemasGSettingsAccessClass = vestigeClassLoader.loadClass(ProxySchemasGSettingsAccess.class.getName());
-                            Method method = proxySchemasGSettingsAccessClass.getMethod("init", String.class);
-                            try {
-                                vestigeWorker.invoke(vestigeClassLoader, method, null, gsettingsFile.getAbsolutePath());
-                            } catch (Exception e) {
-                                LOGGER.warn("Unable to load linux proxy accessor", e);
+                        } else if (!mac) {
+                            String gsettingsPath = properties.getProperty("proxy_vole.gsettings." + arch);
+                            if (gsettingsPath != null) {
+                                File gsettingsFile = new File(enhancementContext.getDirectory(), gsettingsPath);
+                                Class<?> proxySchemasGSettingsAccessClass = vestigeClassLoader.loadClass(ProxySchemasGSettingsAccess.class.getName());
+                                Method method = proxySchemasGSettingsAccessClass.getMethod("init", String.class);
+                                try {
+                                    vestigeWorker.invoke(vestigeClassLoader, method, null, gsettingsFile.getAbsolutePath());
+                                } catch (Exception e) {
+                                    LOGGER.warn("Unable to load linux proxy accessor", e);
+                                }
                             }
                         }
-                    }
 
-                    // redirect log to JUL
-                    Class<?> julBackendClass = vestigeClassLoader.loadClass(JULBackend.class.getName());
-                    Class<?> loggerClass = vestigeClassLoader.loadClass(com.btr.proxy.util.Logger.class.getName());
-                    loggerClass.getMethod("setBackend", vestigeClassLoader.loadClass(LogBackEnd.class.getName())).invoke(null, julBackendClass.getConstructor().newInstance());
+                        // redirect log to JUL
+                        Class<?> julBackendClass = vestigeClassLoader.loadClass(JULBackend.class.getName());
+                        Class<?> loggerClass = vestigeClassLoader.loadClass(com.btr.proxy.util.Logger.class.getName());
+                        loggerClass.getMethod("setBackend", vestigeClassLoader.loadClass(LogBackEnd.class.getName())).invoke(null, julBackendClass.getConstructor().newInstance());
 
-                    ProxySelector proxySelector = ProxySelector.getDefault();
-                    Class<?> systemProxySelectorClass = vestigeClassLoader.loadClass(SystemProxySelector.class.getName());
-                    Object systemProxySelector = systemProxySelectorClass.getConstructor().newInstance();
-                    ((StackedHandler<ProxySelector>) systemProxySelector).setNextHandler(proxySelector);
-                    ProxySelector.setDefault((ProxySelector) systemProxySelector);
+                        ProxySelector proxySelector = ProxySelector.getDefault();
+                        Class<?> systemProxySelectorClass = vestigeClassLoader.loadClass(SystemProxySelector.class.getName());
+                        Object systemProxySelector = systemProxySelectorClass.getConstructor().newInstance();
+                        ((StackedHandler<ProxySelector>) systemProxySelector).setNextHandler(proxySelector);
+                        ProxySelector.setDefault((ProxySelector) systemProxySelector);
+                    }
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to install proxy vole", e);
+                    throw e;
+                } catch (Error e) {
+                    LOGGER.warn("Unable to install proxy vole", e);
+                    throw e;
                 }
-            } catch (Throwable e) {
-                LOGGER.warn("Unable to install proxy vole", e);
             }
-
-            // install exit handler
-            if (windows) {
+        });
+        steps.add(new AbstractEnhancementStep("windows.shutdownHook", EnhancementPhase.RUNTIME) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+                if (!System.getProperty("os.name").toLowerCase().contains("windows")) {
+                    return;
+                }
+                ClassLoader vestigeClassLoader = enhancementContext.getVestigeClassLoader();
+                Properties properties = enhancementContext.getProperties();
+                String arch = getArch();
+                // install exit handler
                 try {
                     String shutdownHookPath = properties.getProperty("shutdownHook." + arch);
                     if (shutdownHookPath != null) {
-                        File shutdownHookFile = new File(directory, shutdownHookPath);
+                        File shutdownHookFile = new File(enhancementContext.getDirectory(), shutdownHookPath);
 
                         Class<?> windowsShutdownHookClass = vestigeClassLoader.loadClass(WindowsShutdownHook.class.getName());
                         Method method = windowsShutdownHookClass.getMethod("init", String.class);
@@ -508,12 +548,321 @@ public class JVMEnhancer {
                         addShutdownHook = (Function<Thread, Void, RuntimeException>) windowsShutdownHookClass.getField("ADD_SHUTDOWN_HOOK_FUNCTION").get(null);
                         removeShutdownHook = (Function<Thread, Void, RuntimeException>) windowsShutdownHookClass.getField("REMOVE_SHUTDOWN_HOOK_FUNCTION").get(null);
                     }
-                } catch (Throwable e) {
+                } catch (Exception e) {
                     LOGGER.warn("Unable to install windows shutdown hook", e);
+                    throw e;
+                } catch (Error e) {
+                    LOGGER.warn("Unable to install windows shutdown hook", e);
+                    throw e;
                 }
             }
+        });
+        return steps;
+    }
+
+    private static String getArch() {
+        String arch = "x86";
+        if (!System.getProperty("os.arch").equals("w32")) {
+            arch = System.getProperty("os.arch");
+            if (arch.equals("x86_64")) {
+                arch = "amd64";
+            }
+        }
+        return arch;
+    }
+
+    private static boolean isClassPresent(final String className) {
+        try {
+            Class.forName(className, false, null);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a strictly positive integer property, a missing or invalid value gives the default value.
+     */
+    private static int getPositiveInt(final Properties properties, final String name, final int defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        int intValue;
+        try {
+            intValue = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid {} {}, using {}", new Object[] {name, value, defaultValue});
+            return defaultValue;
+        }
+        if (intValue < 1) {
+            LOGGER.warn("Invalid {} {}, using {}", new Object[] {name, value, defaultValue});
+            return defaultValue;
+        }
+        return intValue;
+    }
+
+    /**
+     * A step runs unless it is disabled by the properties or it failed on this JVM according to the patch plan.
+     */
+    private static boolean shouldRun(final Properties properties, final PatchPlan patchPlan, final String stepName) {
+        if ("false".equals(properties.getProperty("enhancement." + stepName + ".enabled"))) {
+            LOGGER.debug("Enhancement step {} disabled", stepName);
+            return false;
+        }
+        if (patchPlan != null && patchPlan.isSkipped(stepName)) {
+            LOGGER.debug("Enhancement step {} skipped, it failed on this JVM", stepName);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the enabled steps of the phase, the built-in steps first.
+     */
+    private static void addSteps(final EnhancementStepRunner enhancementStepRunner, final Properties properties, final PatchPlan patchPlan, final EnhancementPhase phase,
+            final List<EnhancementStep> builtInSteps, final List<EnhancementStep> providedSteps) {
+        for (EnhancementStep step : builtInSteps) {
+            if (step.getPhase() == phase && shouldRun(properties, patchPlan, step.getName())) {
+                enhancementStepRunner.addBuiltIn(step);
+            }
+        }
+        for (EnhancementStep step : providedSteps) {
+            if (step.getPhase() == phase && shouldRun(properties, patchPlan, step.getName())) {
+                enhancementStepRunner.add(step);
+            }
+        }
+    }
+
+    /**
+     * Reads the <tt>META-INF/services</tt> files of {@link EnhancementStep}, as {@link java.util.ServiceLoader} would. A step which cannot be created is logged and skipped.
+     */
+    private static List<EnhancementStep> loadEnhancementSteps(final ClassLoader classLoader) {
+        List<EnhancementStep> steps = new ArrayList<EnhancementStep>();
+        if (classLoader == null) {
+            return steps;
+        }
+        Set<String> classNames = new LinkedHashSet<String>();
+        try {
+            Enumeration<URL> resources = classLoader.getResources("META-INF/services/" + EnhancementStep.class.getName());
+            while (resources.hasMoreElements()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(resources.nextElement().openStream(), "UTF-8"));
+                try {
+                    String line = reader.readLine();
+                    while (line != null) {
+                        int comment = line.indexOf('#');
+                        if (comment != -1) {
+                            line = line.substring(0, comment);
+                        }
+                        line = line.trim();
+                        if (line.length() != 0) {
+                            classNames.add(line);
+                        }
+                        line = reader.readLine();
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to list enhancement steps", e);
+        }
+        for (String className : classNames) {
+            try {
+                steps.add(Class.forName(className, true, classLoader).asSubclass(EnhancementStep.class).newInstance());
+            } catch (Exception e) {
+                LOGGER.warn("Unable to create enhancement step " + className, e);
+            } catch (LinkageError e) {
+                LOGGER.warn("Unable to create enhancement step " + className, e);
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * With <tt>preload=record</tt> the classes defined by the system and runtime class loaders during the first <tt>preload.seconds</tt> are recorded, with
+     * <tt>preload=replay</tt> the recorded classes are loaded by <tt>preload.workers</tt> threads while the main class starts.
+     */
+    private void startClassPreload(final VestigeWorker vestigeWorker, final Properties properties, final File bootDirectory, final JPMSModuleAccessor javaBaseModule,
+            final ClassLoader systemClassLoader) {
+        String preload = properties.getProperty("preload");
+        if (preload == null) {
+            return;
+        }
+        Map<String, ClassLoader> classLoaderByName = new LinkedHashMap<String, ClassLoader>();
+        classLoaderByName.put("system", systemClassLoader);
+        if (!privilegedClassloaders.isEmpty()) {
+            classLoaderByName.put("runtime", privilegedClassloaders.get(0));
+        }
+        File preloadFile = new File(bootDirectory, ClassPreloader.FILE_NAME);
+        if ("record".equals(preload)) {
+            if (javaBaseModule != null) {
+                javaBaseModule.addOpens("java.lang", ClassPreloadRecorder.class);
+            }
+            long durationMillis = getPositiveInt(properties, "preload.seconds", 30) * 1000L;
+            try {
+                final ClassPreloadRecorder classPreloadRecorder = new ClassPreloadRecorder(preloadFile, classLoaderByName, durationMillis);
+                // the thread is created by the worker, so it does not inherit the context of the boot thread
+                vestigeWorker.invoke(systemClassLoader, Runnable.class.getMethod("run"), new Runnable() {
+                    @Override
+                    public void run() {
+                        classPreloadRecorder.start();
+                    }
+                });
+            } catch (Exception e) {
+                LOGGER.warn("Unable to record class preload list", e);
+            }
+        } else if ("replay".equals(preload)) {
+            if (!preloadFile.isFile()) {
+                LOGGER.debug("No class preload list, run once with preload=record");
+                return;
+            }
+            int defaultWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            final int preloadWorkers = getPositiveInt(properties, "preload.workers", defaultWorkers);
+            try {
+                final ClassPreloader classPreloader = ClassPreloader.read(preloadFile, classLoaderByName);
+                // the threads are created by the worker, so they do not inherit the context of the boot thread
+                vestigeWorker.invoke(systemClassLoader, Runnable.class.getMethod("run"), new Runnable() {
+                    @Override
+                    public void run() {
+                        classPreloader.start(preloadWorkers);
+                    }
+                });
+            } catch (Exception e) {
+                LOGGER.warn("Unable to start class preload", e);
+            }
+        } else {
+            LOGGER.warn("Unknown preload mode {}", preload);
+        }
+    }
+
+    public Object boot(final String propertyPath) throws Exception {
+        long bootStart = System.nanoTime();
+        JPMSModuleAccessor javaBaseModule;
+        if (JPMSAccessorLoader.INSTANCE != null) {
+            JPMSModuleLayerAccessor bootLayer = JPMSAccessorLoader.INSTANCE.bootLayer();
+            bootLayer.findModule("java.desktop").addExports("sun.awt", InvokeMethod.class);
+            javaBaseModule = bootLayer.findModule("java.base");
+            javaBaseModule.addExports("sun.security.jca", InvokeMethod.class);
+            javaBaseModule.addOpens("java.lang.reflect", JVMEnhancer.class);
+            javaBaseModule.addOpens("javax.crypto", JVMEnhancer.class);
+            javaBaseModule.addOpens("java.net", JVMEnhancer.class);
+        } else {
+            javaBaseModule = null;
+        }
+
+        Properties properties = new Properties();
+        if (propertyPath.length() != 0) {
+            FileInputStream fileInputStream = new FileInputStream(propertyPath);
+            try {
+                properties.load(fileInputStream);
+            } finally {
+                fileInputStream.close();
+            }
+        }
+
+        // the profile and the patch plan are written next to the properties file
+        File bootDirectory = directory;
+        if (propertyPath.length() != 0) {
+            bootDirectory = new File(propertyPath).getAbsoluteFile().getParentFile();
+        }
+
+        PatchPlan patchPlan = null;
+        if ("true".equals(properties.getProperty("plan"))) {
+            try {
+                patchPlan = new PatchPlan(new File(bootDirectory, PatchPlan.FILE_NAME));
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read patch plan, all enhancement steps will run", e);
+            }
+        }
+
+        VestigeWorker vestigeWorker = vestigeCoreContext.getVestigeExecutor().createWorker("bootstrap-sun-worker", true, 0);
+
+        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
+
+        List<EnhancementStep> providedSteps = loadEnhancementSteps(JVMEnhancer.class.getClassLoader());
+        List<EnhancementStepMetrics> stepMetrics = new ArrayList<EnhancementStepMetrics>();
+        boolean profile = "true".equals(properties.getProperty("profile"));
+        // the management MXBeans slow down the boot, they are only initialized on demand
+        boolean detailedMetrics = profile || "true".equals(properties.getProperty("enhancement.metrics"));
+
+        if (shouldRun(properties, patchPlan, "java.awt.Toolkit")) {
+            EnhancementStepMeter toolkitMeter = new EnhancementStepMeter(null, detailedMetrics);
+            Exception toolkitFailure = null;
+            try {
+                // synchronization issue with -XstartOnFirstThread (java.awt.Toolkit needs to be loaded by first thread)
+                Class.forName("java.awt.Toolkit", true, systemClassLoader);
+            } catch (Exception e) {
+                toolkitFailure = e;
+                LOGGER.trace("java.awt.Toolkit load failed", e);
+            }
+            stepMetrics.add(toolkitMeter.stop("java.awt.Toolkit", toolkitFailure));
+        }
+
+        EnhancementStepRunner warmUpRunner = new EnhancementStepRunner(new EnhancementContext(directory, properties, systemClassLoader, null, javaBaseModule));
+        warmUpRunner.setDetailedMetrics(detailedMetrics);
+        addSteps(warmUpRunner, properties, patchPlan, EnhancementPhase.WARM_UP, createWarmUpSteps(), providedSteps);
+        int warmUpWorkers = getPositiveInt(properties, "warmup.workers", 1);
+        long warmUpStart = System.nanoTime();
+        if (warmUpWorkers > 1) {
+            warmUpRunner.runInParallel(vestigeCoreContext.getVestigeExecutor(), vestigeWorker, warmUpWorkers);
+        } else {
+            warmUpRunner.runSequentially(vestigeWorker);
+        }
+        LOGGER.debug("Warm-up done in {} ms with {} worker(s)", (System.nanoTime() - warmUpStart) / 1000000L, warmUpWorkers);
+        stepMetrics.addAll(warmUpRunner.getMetrics());
+
+        String runtimePaths = properties.getProperty("runtime.jar");
+
+        if (runtimePaths == null) {
+            privilegedClassloaders = Collections.emptyList();
+        } else {
+            Thread workerThread = null;
+            if (detailedMetrics) {
+                workerThread = EnhancementStepMeter.getWorkerThread(vestigeWorker, systemClassLoader);
+            }
+            EnhancementStepMeter classLoaderMeter = new EnhancementStepMeter(workerThread, detailedMetrics);
+            ClassLoader vestigeClassLoader;
+            try {
+                vestigeClassLoader = createClassLoader(vestigeWorker, runtimePaths);
+            } catch (Exception e) {
+                stepMetrics.add(classLoaderMeter.stop("createClassLoader", e));
+                throw e;
+            }
+            stepMetrics.add(classLoaderMeter.stop("createClassLoader", null));
+
+            EnhancementStepRunner runtimeRunner = new EnhancementStepRunner(new EnhancementContext(directory, properties, systemClassLoader, vestigeClassLoader, javaBaseModule));
+            runtimeRunner.setDetailedMetrics(detailedMetrics);
+            addSteps(runtimeRunner, properties, patchPlan, EnhancementPhase.RUNTIME, createRuntimeSteps(), providedSteps);
+            runtimeRunner.runSequentially(vestigeWorker);
+            stepMetrics.addAll(runtimeRunner.getMetrics());
+
             privilegedClassloaders = Collections.singletonList(vestigeClassLoader);
         }
+        enhancementStepMetrics = stepMetrics;
+
+        if (patchPlan != null) {
+            patchPlan.record(stepMetrics);
+            try {
+                patchPlan.save();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to write patch plan", e);
+            }
+        }
+
+        if (profile) {
+            BootProfile bootProfile = new BootProfile(System.nanoTime() - bootStart, stepMetrics);
+            BootProfile.setLast(bootProfile);
+            File profileFile = new File(bootDirectory, BootProfile.FILE_NAME);
+            try {
+                bootProfile.write(profileFile);
+                LOGGER.debug("Boot profile written to {}", profileFile);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to write boot profile", e);
+            }
+        }
+
+        startClassPreload(vestigeWorker, properties, bootDirectory, javaBaseModule, systemClassLoader);
 
         vestigeWorker.interrupt();
         vestigeWorker.join();
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Remembers which enhancement steps do not apply to a JVM, so later boots on the same JVM skip them instead of probing the JDK again. Only the failures telling that the JDK
+ * does not have the patched member or type are remembered, other failures may depend on the configuration or the environment and are retried on each boot. A plan is
+ * identified by the version and home of the JVM and by the version of the enhancer, a plan recorded for another JVM or another enhancer is dropped. Deleting the file makes the
+ * next boot run every step again.
+ * @author Gael Lalire
+ */
+final class PatchPlan {
+
+    /**
+     * Name of the file written next to the properties file.
+     */
+    static final String FILE_NAME = "jvm_enhancer-plan.properties";
+
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    private static final String STEP_PREFIX = "step.";
+
+    /**
+     * Failures of a probe of a JDK member or type.
+     */
+    private static final Set<String> PROBE_FAILURE_TYPES = new HashSet<String>(Arrays.asList(NoSuchFieldException.class.getName(), NoSuchMethodException.class.getName(),
+            ClassNotFoundException.class.getName(), ClassCastException.class.getName()));
+
+    private final File file;
+
+    private final String fingerprint;
+
+    private final Map<String, Boolean> results = new TreeMap<String, Boolean>();
+
+    private boolean modified;
+
+    /**
+     * @param file the plan file, it may not exist
+     * @throws IOException if the file exists and cannot be read
+     */
+    PatchPlan(final File file) throws IOException {
+        this.file = file;
+        fingerprint = System.getProperty("java.runtime.version") + "|" + System.getProperty("java.vm.version") + "|" + System.getProperty("java.home") + "|"
+                + getEnhancerVersion();
+        if (!file.isFile()) {
+            modified = true;
+            return;
+        }
+        Properties properties = new Properties();
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            properties.load(fileInputStream);
+        } finally {
+            fileInputStream.close();
+        }
+        if (!fingerprint.equals(properties.getProperty(FINGERPRINT_KEY))) {
+            modified = true;
+            return;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(STEP_PREFIX)) {
+                results.put(key.substring(STEP_PREFIX.length()), Boolean.valueOf(properties.getProperty(key)));
+            }
+        }
+    }
+
+    /**
+     * The implementation version is not set by every build, so the modification time of the enhancer jar is added.
+     */
+    private static String getEnhancerVersion() {
+        String version = null;
+        Package enhancerPackage = PatchPlan.class.getPackage();
+        if (enhancerPackage != null) {
+            version = enhancerPackage.getImplementationVersion();
+        }
+        if (version == null) {
+            version = "unknown";
+        }
+        try {
+            CodeSource codeSource = PatchPlan.class.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null || !"file".equals(codeSource.getLocation().getProtocol())) {
+                return version;
+            }
+            return version + "@" + new File(codeSource.getLocation().toURI()).lastModified();
+        } catch (Exception e) {
+            return version;
+        }
+    }
+
+    /**
+     * @param stepName the name of a step
+     * @return true if the step does not apply to this JVM
+     */
+    boolean isSkipped(final String stepName) {
+        return Boolean.FALSE.equals(results.get(stepName));
+    }
+
+    /**
+     * @param stepMetrics the metrics of the steps which ran
+     */
+    void record(final List<EnhancementStepMetrics> stepMetrics) {
+        for (EnhancementStepMetrics metrics : stepMetrics) {
+            String name = metrics.getName();
+            if (metrics.isSuccess()) {
+                if (!Boolean.TRUE.equals(results.put(name, Boolean.TRUE))) {
+                    modified = true;
+                }
+            } else if (PROBE_FAILURE_TYPES.contains(metrics.getFailureType())) {
+                if (!Boolean.FALSE.equals(results.put(name, Boolean.FALSE))) {
+                    modified = true;
+                }
+            } else if (results.remove(name) != null) {
+                // retried on next boot
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the plan if a step result changed. The plan is written to a temporary file which is then renamed, so a concurrent boot never reads a partial plan.
+     * @throws IOException if the file cannot be written
+     */
+    void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(FINGERPRINT_KEY, fingerprint);
+        for (Entry<String, Boolean> entry : results.entrySet()) {
+            properties.setProperty(STEP_PREFIX + entry.getKey(), entry.getValue().toString());
+        }
+        File tmpFile = File.createTempFile(FILE_NAME, ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+            try {
+                properties.store(fileOutputStream, "Enhancement steps which apply to this JVM, the ones which do not are skipped");
+            } finally {
+                fileOutputStream.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                // Windows does not rename over an existing file
+                if (!file.delete() || !tmpFile.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmpFile + " to " + file);
+                }
+            }
+        } finally {
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                tmpFile.deleteOnExit();
+            }
+        }
+        modified = false;
+    }
+
+}
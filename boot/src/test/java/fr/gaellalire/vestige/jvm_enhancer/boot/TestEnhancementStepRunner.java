@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.core.executor.VestigeWorker;
+
+/**
+ * The steps do not use their worker, so the lanes are given null workers.
+ * @author Gael Lalire
+ */
+public class TestEnhancementStepRunner {
+
+    /**
+     * Records its start and its end in a shared event list.
+     * @author Gael Lalire
+     */
+    private static class RecordingStep extends AbstractEnhancementStep {
+
+        private final List<String> events;
+
+        RecordingStep(final List<String> events, final String name, final String... dependencies) {
+            super(name, EnhancementPhase.WARM_UP, dependencies);
+            this.events = events;
+        }
+
+        public void run(final VestigeWorker vestigeWorker, final EnhancementContext enhancementContext) throws Exception {
+            events.add("start " + getName());
+            runStep();
+            events.add("end " + getName());
+        }
+
+        protected void runStep() throws Exception {
+        }
+
+    }
+
+    private static EnhancementStepRunner createRunner() {
+        return new EnhancementStepRunner(new EnhancementContext(null, null, null, null, null));
+    }
+
+    private static List<String> getNames(final List<EnhancementStepMetrics> metrics) {
+        List<String> names = new ArrayList<String>();
+        for (EnhancementStepMetrics stepMetrics : metrics) {
+            names.add(stepMetrics.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testSequentialOrder() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        EnhancementStepRunner runner = createRunner();
+        runner.add(new RecordingStep(events, "a"));
+        runner.add(new RecordingStep(events, "b", "a"));
+        runner.add(new RecordingStep(events, "c"));
+
+        runner.runSequentially(null);
+
+        Assert.assertEquals(Arrays.asList("start a", "end a", "start b", "end b", "start c", "end c"), events);
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), getNames(runner.getMetrics()));
+    }
+
+    @Test
+    public void testLaneOrder() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch independentStarted = new CountDownLatch(1);
+        final boolean[] ranInParallel = new boolean[1];
+        EnhancementStepRunner runner = createRunner();
+        runner.add(new RecordingStep(events, "slow") {
+            @Override
+            protected void runStep() throws Exception {
+                // only another lane can start the independent step while this one runs
+                ranInParallel[0] = independentStarted.await(10, TimeUnit.SECONDS);
+            }
+        });
+        runner.add(new RecordingStep(events, "dependent", "slow"));
+        runner.add(new RecordingStep(events, "independent") {
+            @Override
+            protected void runStep() throws Exception {
+                independentStarted.countDown();
+            }
+        });
+
+        runner.runLanes(Arrays.<VestigeWorker> asList(null, null));
+
+        Assert.assertTrue(ranInParallel[0]);
+        Assert.assertTrue(events.indexOf("end slow") < events.indexOf("start dependent"));
+        Assert.assertTrue(events.indexOf("end independent") < events.indexOf("end slow"));
+        Assert.assertEquals(6, events.size());
+        Assert.assertEquals(3, runner.getMetrics().size());
+    }
+
+    @Test
+    public void testLateDependencyIgnored() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        EnhancementStepRunner runner = createRunner();
+        // a dependency added after its dependent step cannot be waited for
+        runner.add(new RecordingStep(events, "dependent", "late"));
+        runner.add(new RecordingStep(events, "late"));
+
+        runner.runLanes(Arrays.<VestigeWorker> asList(null, null));
+
+        Assert.assertEquals(4, events.size());
+        Assert.assertEquals(2, runner.getMetrics().size());
+    }
+
+    @Test
+    public void testDuplicateName() throws Exception {
+        List<String> events = new ArrayList<String>();
+        EnhancementStepRunner runner = createRunner();
+        runner.add(new RecordingStep(events, "a"));
+        try {
+            runner.add(new RecordingStep(events, "a"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailureDoesNotStopLane() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        EnhancementStepRunner runner = createRunner();
+        runner.add(new RecordingStep(events, "failing") {
+            @Override
+            protected void runStep() throws Exception {
+                throw new NoSuchFieldException("missing");
+            }
+        });
+        runner.add(new RecordingStep(events, "broken") {
+            @Override
+            protected void runStep() throws Exception {
+                throw new AssertionError("broken");
+            }
+        });
+        runner.add(new RecordingStep(events, "next", "failing", "broken"));
+
+        runner.runSequentially(null);
+
+        Assert.assertEquals(Arrays.asList("start failing", "start broken", "start next", "end next"), events);
+        List<EnhancementStepMetrics> metrics = runner.getMetrics();
+        Assert.assertEquals(NoSuchFieldException.class.getName(), metrics.get(0).getFailureType());
+        Assert.assertEquals(AssertionError.class.getName(), metrics.get(1).getFailureType());
+        Assert.assertTrue(metrics.get(2).isSuccess());
+        // without detailed metrics only the wall time is measured
+        Assert.assertEquals(-1, metrics.get(2).getCpuNanos());
+        Assert.assertTrue(metrics.get(2).getWallNanos() >= 0);
+    }
+
+}
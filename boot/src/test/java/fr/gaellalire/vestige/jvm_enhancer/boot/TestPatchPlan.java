@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fr.gaellalire.vestige.jvm_enhancer.boot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestPatchPlan {
+
+    private File directory;
+
+    private File file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("jvm_enhancer", "plan");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdir());
+        file = new File(directory, PatchPlan.FILE_NAME);
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static EnhancementStepMetrics createMetrics(final String name, final Class<? extends Throwable> failure) {
+        String failureType = null;
+        if (failure != null) {
+            failureType = failure.getName();
+        }
+        return new EnhancementStepMetrics(name, 1, -1, -1, -1, failureType);
+    }
+
+    private Properties load() throws IOException {
+        Properties properties = new Properties();
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            properties.load(fileInputStream);
+        } finally {
+            fileInputStream.close();
+        }
+        return properties;
+    }
+
+    private void store(final Properties properties) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        try {
+            properties.store(fileOutputStream, null);
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    private void recordAndSave() throws IOException {
+        PatchPlan patchPlan = new PatchPlan(file);
+        patchPlan.record(Arrays.asList(createMetrics("applied", null), createMetrics("probe", NoSuchFieldException.class),
+                createMetrics("broken", IllegalStateException.class)));
+        patchPlan.save();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        recordAndSave();
+        Assert.assertTrue(file.isFile());
+        Assert.assertEquals(1, directory.listFiles().length);
+
+        PatchPlan patchPlan = new PatchPlan(file);
+        Assert.assertFalse(patchPlan.isSkipped("applied"));
+        Assert.assertTrue(patchPlan.isSkipped("probe"));
+        // not a probe failure, so the step is retried
+        Assert.assertFalse(patchPlan.isSkipped("broken"));
+        Assert.assertFalse(patchPlan.isSkipped("unknown"));
+    }
+
+    @Test
+    public void testFingerprintMismatch() throws Exception {
+        recordAndSave();
+        Properties properties = load();
+        Assert.assertNotNull(properties.getProperty("fingerprint"));
+        properties.setProperty("fingerprint", "another JVM");
+        store(properties);
+
+        PatchPlan patchPlan = new PatchPlan(file);
+        Assert.assertFalse(patchPlan.isSkipped("probe"));
+
+        // the plan of the other JVM is replaced
+        patchPlan.save();
+        Assert.assertFalse("another JVM".equals(load().getProperty("fingerprint")));
+        Assert.assertNull(load().getProperty("step.probe"));
+    }
+
+    @Test
+    public void testNonProbeFailureRetried() throws Exception {
+        recordAndSave();
+        PatchPlan patchPlan = new PatchPlan(file);
+        Assert.assertTrue(patchPlan.isSkipped("probe"));
+        patchPlan.record(Arrays.asList(createMetrics("probe", IllegalStateException.class), createMetrics("applied", ClassCastException.class)));
+        patchPlan.save();
+
+        patchPlan = new PatchPlan(file);
+        Assert.assertFalse(patchPlan.isSkipped("probe"));
+        Assert.assertTrue(patchPlan.isSkipped("applied"));
+        Assert.assertNull(load().getProperty("step.probe"));
+    }
+
+    @Test
+    public void testUnmodifiedNotWritten() throws Exception {
+        recordAndSave();
+        Assert.assertTrue(file.setLastModified(0));
+        PatchPlan patchPlan = new PatchPlan(file);
+        patchPlan.record(Arrays.asList(createMetrics("applied", null), createMetrics("probe", NoSuchFieldException.class)));
+        patchPlan.save();
+        Assert.assertEquals(0, file.lastModified());
+    }
+
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 The Apache Software Foundation.
+ * Copyright 2020 The Apache Software Foundation.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -13,28 +13,20 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package fr.gaellalire.vestige.jvm_enhancer.runtime;
 
-import java.util.Map;
-import java.util.WeakHashMap;
-
 /**
+ * Stores values in the classes they are attached to, so a value is not reachable once its class is unloaded.
  * @author Gael Lalire
+ * @param <V> value type
  */
-@SuppressWarnings("restriction")
-public class WeakSoftCache extends sun.misc.SoftCache {
-
-    private Map<Object, Object> map = new WeakHashMap<Object, Object>();
+interface ClassLocalStore<V> {
 
-    @Override
-    public Object get(final Object arg0) {
-        return map.get(arg0);
-    }
+    V getValue(Class<?> clazz);
 
-    @Override
-    public Object put(final Object arg0, final Object arg1) {
-        return map.put(arg0, arg1);
-    }
+    /**
+     * @return the previous value
+     */
+    V setValue(Class<?> clazz, V value);
 
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+/**
+ * Creates the {@link ClassLocalStore} supported by the running JVM.
+ * @author Gael Lalire
+ */
+final class ClassLocalStores {
+
+    private static final String CLASS_VALUE_STORE_CLASS_NAME = "fr.gaellalire.vestige.jvm_enhancer.runtime.ClassValueStore";
+
+    private ClassLocalStores() {
+    }
+
+    /**
+     * @param <V> value type
+     * @return a new store or null if {@link ClassValue} is not available (before Java 7)
+     */
+    @SuppressWarnings("unchecked")
+    static <V> ClassLocalStore<V> create() {
+        try {
+            Class.forName("java.lang.ClassValue");
+            // loaded by name, ClassValueStore cannot be linked before Java 7
+            return (ClassLocalStore<V>) Class.forName(CLASS_VALUE_STORE_CLASS_NAME).newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link ClassLocalStore} backed by a {@link ClassValue}. This class requires Java 7, instances are created by {@link ClassLocalStores#create()}.
+ * @author Gael Lalire
+ * @param <V> value type
+ */
+final class ClassValueStore<V> extends ClassValue<AtomicReference<V>> implements ClassLocalStore<V> {
+
+    @Override
+    protected AtomicReference<V> computeValue(final Class<?> type) {
+        return new AtomicReference<V>();
+    }
+
+    public V getValue(final Class<?> clazz) {
+        return get(clazz).get();
+    }
+
+    public V setValue(final Class<?> clazz, final V value) {
+        return get(clazz).getAndSet(value);
+    }
+
+}
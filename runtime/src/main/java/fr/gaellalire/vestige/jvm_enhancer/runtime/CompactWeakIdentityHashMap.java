@@ -0,0 +1,402 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map with weak keys compared with <tt>==</tt>, stored in a linear probing table like {@link java.util.IdentityHashMap}. Unlike {@link WeakIdentityHashMap}, a mapping is a
+ * single weak reference holding the value, there is no hash nor next field: the value field fits in the alignment padding of the reference, so a mapping costs the size of a
+ * bare {@link WeakReference} plus its slot.
+ * <p>
+ * Lookups do not purge the reclaimed mappings, they only skip them. Updates drain the reference queue and, if a key was reclaimed, replace the reclaimed mappings with
+ * tombstones, which are reused by later insertions and dropped when the table is rebuilt.
+ * <p>
+ * This map is not synchronized.
+ * @author Gael Lalire
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class CompactWeakIdentityHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private static final Object NULL_KEY = new Object();
+
+    /**
+     * Replaces a removed mapping, lookups continue past it.
+     */
+    private static final WeakEntry TOMBSTONE = new WeakEntry(null, null, null);
+
+    /**
+     * A mapping.
+     * @author Gael Lalire
+     */
+    private static final class WeakEntry extends WeakReference<Object> {
+
+        private Object value;
+
+        WeakEntry(final Object key, final Object value, final ReferenceQueue<Object> queue) {
+            super(key, queue);
+            this.value = value;
+        }
+
+    }
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /**
+     * Null for a free slot. The length is a power of two.
+     */
+    private WeakEntry[] table = new WeakEntry[MINIMUM_CAPACITY];
+
+    /**
+     * Number of mappings, including the reclaimed ones which are not purged yet.
+     */
+    private int size;
+
+    private int tombstones;
+
+    private int modCount;
+
+    private transient Set<Map.Entry<K, V>> entrySet;
+
+    private static Object maskNull(final Object key) {
+        if (key == null) {
+            return NULL_KEY;
+        }
+        return key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> K unmaskNull(final Object key) {
+        if (key == NULL_KEY) {
+            return null;
+        }
+        return (K) key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V valueOf(final WeakEntry entry) {
+        return (V) entry.value;
+    }
+
+    private static int slot(final Object key, final int mask) {
+        int h = System.identityHashCode(key);
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the slot of the key, or -1
+     */
+    private int find(final Object key) {
+        WeakEntry[] tab = table;
+        int mask = tab.length - 1;
+        int i = slot(key, mask);
+        WeakEntry entry = tab[i];
+        while (entry != null) {
+            // reclaimed keys and tombstones are null
+            if (entry.get() == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+            entry = tab[i];
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if a key was reclaimed since the last call
+     */
+    private boolean drainQueue() {
+        boolean reclaimed = false;
+        while (queue.poll() != null) {
+            reclaimed = true;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Replaces the mappings of reclaimed keys with tombstones, if a key was reclaimed since the last call. One sweep purges them all.
+     */
+    private void expungeStaleEntries() {
+        if (!drainQueue()) {
+            return;
+        }
+        WeakEntry[] tab = table;
+        for (int i = 0; i < tab.length; i++) {
+            WeakEntry entry = tab[i];
+            if (entry != null && entry != TOMBSTONE && entry.get() == null) {
+                entry.value = null;
+                tab[i] = TOMBSTONE;
+                size--;
+                tombstones++;
+            }
+        }
+    }
+
+    @Override
+    public V get(final Object key) {
+        int i = find(maskNull(key));
+        if (i == -1) {
+            return null;
+        }
+        return valueOf(table[i]);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return find(maskNull(key)) != -1;
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        expungeStaleEntries();
+        Object k = maskNull(key);
+        WeakEntry[] tab = table;
+        int mask = tab.length - 1;
+        int i = slot(k, mask);
+        int free = -1;
+        WeakEntry entry = tab[i];
+        while (entry != null) {
+            if (entry.get() == k) {
+                V oldValue = valueOf(entry);
+                entry.value = value;
+                return oldValue;
+            }
+            if (free == -1 && entry == TOMBSTONE) {
+                free = i;
+            }
+            i = (i + 1) & mask;
+            entry = tab[i];
+        }
+        if (free == -1) {
+            free = i;
+        } else {
+            tombstones--;
+        }
+        tab[free] = new WeakEntry(k, value, queue);
+        size++;
+        modCount++;
+        // keep the used slots, tombstones included, under 3/4
+        if ((size + tombstones) * 4 > tab.length * 3) {
+            rebuild();
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds the table without the tombstones and the reclaimed mappings, with a load of at most 1/2.
+     */
+    private void rebuild() {
+        WeakEntry[] oldTable = table;
+        int live = 0;
+        for (WeakEntry entry : oldTable) {
+            if (entry != null && entry.get() != null) {
+                live++;
+            }
+        }
+        int capacity = MINIMUM_CAPACITY;
+        while (live * 2 > capacity) {
+            capacity <<= 1;
+        }
+        WeakEntry[] tab = new WeakEntry[capacity];
+        int mask = capacity - 1;
+        for (WeakEntry entry : oldTable) {
+            if (entry != null) {
+                Object key = entry.get();
+                if (key != null) {
+                    int i = slot(key, mask);
+                    while (tab[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    tab[i] = entry;
+                }
+            }
+        }
+        table = tab;
+        size = live;
+        tombstones = 0;
+        modCount++;
+    }
+
+    private Object removeSlot(final int i) {
+        WeakEntry entry = table[i];
+        Object oldValue = entry.value;
+        // a cleared reference is not enqueued
+        entry.clear();
+        entry.value = null;
+        table[i] = TOMBSTONE;
+        size--;
+        tombstones++;
+        modCount++;
+        return oldValue;
+    }
+
+    @Override
+    public V remove(final Object key) {
+        expungeStaleEntries();
+        int i = find(maskNull(key));
+        if (i == -1) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        V oldValue = (V) removeSlot(i);
+        return oldValue;
+    }
+
+    @Override
+    public void clear() {
+        drainQueue();
+        table = new WeakEntry[MINIMUM_CAPACITY];
+        size = 0;
+        tombstones = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        expungeStaleEntries();
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * A live mapping, its key is strongly held.
+     * @author Gael Lalire
+     */
+    private final class Entry extends SimpleEntry<K, V> {
+
+        private static final long serialVersionUID = 2917359423402541876L;
+
+        private final WeakEntry weakEntry;
+
+        Entry(final K key, final WeakEntry weakEntry) {
+            super(key, CompactWeakIdentityHashMap.<V> valueOf(weakEntry));
+            this.weakEntry = weakEntry;
+        }
+
+        @Override
+        public V setValue(final V value) {
+            weakEntry.value = value;
+            return super.setValue(value);
+        }
+
+    }
+
+    /**
+     * Iterates over the live mappings.
+     * @author Gael Lalire
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final WeakEntry[] tab = table;
+
+        private int expectedModCount = modCount;
+
+        private int index;
+
+        private int nextIndex = -1;
+
+        /**
+         * Strongly held between hasNext and next.
+         */
+        private Object nextKey;
+
+        private int lastIndex = -1;
+
+        public boolean hasNext() {
+            while (nextKey == null && index < tab.length) {
+                WeakEntry entry = tab[index];
+                if (entry != null) {
+                    nextKey = entry.get();
+                    nextIndex = index;
+                }
+                index++;
+            }
+            return nextKey != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            K key = unmaskNull(nextKey);
+            nextKey = null;
+            lastIndex = nextIndex;
+            return new Entry(key, tab[lastIndex]);
+        }
+
+        public void remove() {
+            if (lastIndex == -1) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (tab[lastIndex] != TOMBSTONE) {
+                removeSlot(lastIndex);
+            }
+            expectedModCount = modCount;
+            lastIndex = -1;
+        }
+
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es = entrySet;
+        if (es == null) {
+            es = new AbstractSet<Map.Entry<K, V>>() {
+
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return CompactWeakIdentityHashMap.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    CompactWeakIdentityHashMap.this.clear();
+                }
+
+            };
+            entrySet = es;
+        }
+        return es;
+    }
+
+}
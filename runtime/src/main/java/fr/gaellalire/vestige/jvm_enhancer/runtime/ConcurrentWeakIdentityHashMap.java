@@ -0,0 +1,325 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe map with weak keys compared with <tt>==</tt>. Mappings are spread by {@link System#identityHashCode(Object)} over segments, each one a
+ * {@link CompactWeakIdentityHashMap} guarded by its own lock, so threads working on different keys rarely contend and no <tt>hashCode</tt> of the keys is called. A segment
+ * is only created by the first write of a key it holds, so a map of a few keys only allocates a few segments.
+ * <p>
+ * Views are snapshots: an iterator sees the mappings present when it was created. Like {@link java.util.concurrent.ConcurrentHashMap}, this map does not allow <tt>null</tt>
+ * keys or values.
+ * @author Gael Lalire
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ConcurrentWeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private static final int MAXIMUM_SEGMENT_COUNT = 64;
+
+    /**
+     * A slot is null until a key of the segment is written.
+     */
+    private final AtomicReferenceArray<CompactWeakIdentityHashMap<K, V>> segments;
+
+    private transient Set<Map.Entry<K, V>> entrySet;
+
+    /**
+     * Creates a map with a segment per processor.
+     */
+    public ConcurrentWeakIdentityHashMap() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param concurrencyLevel the estimated number of concurrently updating threads
+     */
+    public ConcurrentWeakIdentityHashMap(final int concurrencyLevel) {
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel && segmentCount < MAXIMUM_SEGMENT_COUNT) {
+            segmentCount <<= 1;
+        }
+        segments = new AtomicReferenceArray<CompactWeakIdentityHashMap<K, V>>(segmentCount);
+    }
+
+    private int segmentIndexFor(final Object key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        // the segments select slots with the low bits of the identity hash code, use other bits
+        int h = System.identityHashCode(key) * 0x9E3779B9;
+        return (h >>> 16) & (segments.length() - 1);
+    }
+
+    /**
+     * @return the segment of the key, or null if no key of the segment was written
+     */
+    private CompactWeakIdentityHashMap<K, V> segmentFor(final Object key) {
+        return segments.get(segmentIndexFor(key));
+    }
+
+    private CompactWeakIdentityHashMap<K, V> segmentForWrite(final Object key) {
+        int index = segmentIndexFor(key);
+        CompactWeakIdentityHashMap<K, V> segment = segments.get(index);
+        if (segment == null) {
+            CompactWeakIdentityHashMap<K, V> newSegment = new CompactWeakIdentityHashMap<K, V>();
+            if (segments.compareAndSet(index, null, newSegment)) {
+                segment = newSegment;
+            } else {
+                segment = segments.get(index);
+            }
+        }
+        return segment;
+    }
+
+    private static void checkValue(final Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    @Override
+    public V get(final Object key) {
+        CompactWeakIdentityHashMap<K, V> segment = segmentFor(key);
+        if (segment == null) {
+            return null;
+        }
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        CompactWeakIdentityHashMap<K, V> segment = segmentFor(key);
+        if (segment == null) {
+            return false;
+        }
+        synchronized (segment) {
+            return segment.containsKey(key);
+        }
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        checkValue(value);
+        CompactWeakIdentityHashMap<K, V> segment = segmentForWrite(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    public V putIfAbsent(final K key, final V value) {
+        checkValue(value);
+        CompactWeakIdentityHashMap<K, V> segment = segmentForWrite(key);
+        synchronized (segment) {
+            V oldValue = segment.get(key);
+            if (oldValue == null) {
+                segment.put(key, value);
+            }
+            return oldValue;
+        }
+    }
+
+    @Override
+    public V remove(final Object key) {
+        CompactWeakIdentityHashMap<K, V> segment = segmentFor(key);
+        if (segment == null) {
+            return null;
+        }
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    public boolean remove(final Object key, final Object value) {
+        if (value == null) {
+            return false;
+        }
+        CompactWeakIdentityHashMap<K, V> segment = segmentFor(key);
+        if (segment == null) {
+            return false;
+        }
+        synchronized (segment) {
+            if (value.equals(segment.get(key))) {
+                segment.remove(key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public V replace(final K key, final V value) {
+        checkValue(value);
+        CompactWeakIdentityHashMap<K, V> segment = segmentFor(key);
+        if (segment == null) {
+            return null;
+        }
+        synchronized (segment) {
+            if (segment.containsKey(key)) {
+                return segment.put(key, value);
+            }
+            return null;
+        }
+    }
+
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        checkValue(oldValue);
+        checkValue(newValue);
+        CompactWeakIdentityHashMap<K, V> segment = segmentFor(key);
+        if (segment == null) {
+            return false;
+        }
+        synchronized (segment) {
+            if (oldValue.equals(segment.get(key))) {
+                segment.put(key, newValue);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < segments.length(); i++) {
+            CompactWeakIdentityHashMap<K, V> segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            }
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < segments.length(); i++) {
+            CompactWeakIdentityHashMap<K, V> segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            }
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < segments.length(); i++) {
+            CompactWeakIdentityHashMap<K, V> segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            }
+            synchronized (segment) {
+                if (!segment.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the live mappings, their keys are strongly held by the copy
+     */
+    private List<Map.Entry<K, V>> snapshot() {
+        List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>();
+        for (int i = 0; i < segments.length(); i++) {
+            CompactWeakIdentityHashMap<K, V> segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            }
+            synchronized (segment) {
+                for (Map.Entry<K, V> entry : segment.entrySet()) {
+                    entries.add(new SimpleEntry<K, V>(entry));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Iterates over a snapshot, removals are done on the map.
+     * @author Gael Lalire
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Iterator<Map.Entry<K, V>> delegate = snapshot().iterator();
+
+        private Map.Entry<K, V> last;
+
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        public Map.Entry<K, V> next() {
+            last = delegate.next();
+            return last;
+        }
+
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            ConcurrentWeakIdentityHashMap.this.remove(last.getKey(), last.getValue());
+            last = null;
+        }
+
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es = entrySet;
+        if (es == null) {
+            es = new AbstractSet<Map.Entry<K, V>>() {
+
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ConcurrentWeakIdentityHashMap.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    ConcurrentWeakIdentityHashMap.this.clear();
+                }
+
+            };
+            entrySet = es;
+        }
+        return es;
+    }
+
+}
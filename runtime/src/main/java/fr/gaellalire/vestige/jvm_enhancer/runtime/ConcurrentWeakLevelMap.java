@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link WeakLevelMap} whose lists are stored in a {@link ConcurrentHashMap}. Logging threads look levels up without taking any lock, and the map stays consistent even if
+ * it is updated outside of the <tt>KnownLevel</tt> class lock.
+ * @param <K> key of map
+ * @author Gael Lalire
+ */
+public class ConcurrentWeakLevelMap<K> extends WeakLevelMap<K> {
+
+    private static final long serialVersionUID = 4120931866484361652L;
+
+    /**
+     * Replaced in clones.
+     */
+    private volatile ConcurrentMap<K, KnowLevelArrayList> concurrentLevelByKey;
+
+    public ConcurrentWeakLevelMap(final Field levelField, final Constructor<?> knownLevelConstructor) {
+        super(levelField, knownLevelConstructor);
+        resetLists();
+    }
+
+    @Override
+    KnowLevelArrayList findList(final Object key) {
+        if (key == null) {
+            return null;
+        }
+        return concurrentLevelByKey.get(key);
+    }
+
+    @Override
+    KnowLevelArrayList registerListIfAbsent(final K key, final KnowLevelArrayList list) {
+        return concurrentLevelByKey.putIfAbsent(key, list);
+    }
+
+    @Override
+    void unregisterList(final K key, final KnowLevelArrayList list) {
+        concurrentLevelByKey.remove(key, list);
+    }
+
+    @Override
+    List<KnowLevelArrayList> getRegisteredLists() {
+        return new ArrayList<KnowLevelArrayList>(concurrentLevelByKey.values());
+    }
+
+    @Override
+    void resetLists() {
+        concurrentLevelByKey = new ConcurrentHashMap<K, KnowLevelArrayList>();
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+/**
+ * Matches a lookup probe against the keys of a {@link WeakConcurrentHashMap}, so the caller does not have to wrap the probe in an instance of the key type.
+ * @author Gael Lalire
+ * @param <P> probe type
+ */
+public interface KeyEquivalence<P> {
+
+    /**
+     * @param probe the object passed to the lookup
+     * @param key a live key of the map with the same hash code
+     * @return true if the probe designates this key
+     */
+    boolean equivalent(P probe, Object key);
+
+}
@@ -27,6 +27,10 @@ public class ProviderEntry {
         this.key = key;
     }
 
+    public Object getKey() {
+        return key;
+    }
+
     @Override
     public int hashCode() {
         return key.hashCode();
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+/**
+ * Implemented by the references registered with the {@link ReferenceReaper} queue.
+ * @author Gael Lalire
+ */
+public interface Reclaimable {
+
+    /**
+     * Called once the reference is enqueued. It may be called by any thread, so the owner of the reference must be synchronized accordingly.
+     */
+    void reclaim();
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the reference queue shared by the weak collections of the runtime. Each enqueued reference must implement {@link Reclaimable}. Once {@link #start()} is called a daemon
+ * thread drains the queue, before that (or if the thread could not start) the queue is drained by the callers of {@link #expunge()}. The collections only call it when they
+ * write, so reads never run the cleanup of other collections.
+ * @author Gael Lalire
+ */
+public final class ReferenceReaper {
+
+    public static final String THREAD_NAME = "vestige-reference-reaper";
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+    private static final AtomicLong RECLAIMED_COUNT = new AtomicLong();
+
+    private static final AtomicLong FAILURE_COUNT = new AtomicLong();
+
+    private static final AtomicLong BATCH_COUNT = new AtomicLong();
+
+    private static final AtomicLong DRAIN_TIME_NANOS = new AtomicLong();
+
+    private static final AtomicInteger MAX_BATCH_SIZE = new AtomicInteger();
+
+    private static volatile int lastBatchSize;
+
+    private static volatile Thread reaperThread;
+
+    private ReferenceReaper() {
+    }
+
+    public static ReferenceQueue<Object> getQueue() {
+        return QUEUE;
+    }
+
+    /**
+     * Starts the reaper thread. The thread inherits the context of the caller, so it should be called from a thread which does not hold any application class loader.
+     */
+    public static synchronized void start() {
+        if (reaperThread != null) {
+            return;
+        }
+        Thread thread = new Thread(THREAD_NAME) {
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (InterruptedException e) {
+                    // stopped
+                } finally {
+                    synchronized (ReferenceReaper.class) {
+                        if (reaperThread == this) {
+                            reaperThread = null;
+                        }
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setContextClassLoader(null);
+        reaperThread = thread;
+        thread.start();
+    }
+
+    public static boolean isRunning() {
+        return reaperThread != null;
+    }
+
+    private static void reap() throws InterruptedException {
+        while (true) {
+            Reference<?> reference = QUEUE.remove();
+            drain(reference);
+        }
+    }
+
+    /**
+     * Drains the queue in the caller thread, unless the reaper thread is running. Cheap if there is nothing to drain. It runs the cleanup of every collection, so it must only be
+     * called by writers.
+     */
+    public static void expunge() {
+        if (reaperThread != null) {
+            return;
+        }
+        Reference<?> reference = QUEUE.poll();
+        if (reference != null) {
+            drain(reference);
+        }
+    }
+
+    private static void drain(final Reference<?> first) {
+        long start = System.nanoTime();
+        int batchSize = 0;
+        Reference<?> reference = first;
+        while (reference != null) {
+            try {
+                ((Reclaimable) reference).reclaim();
+            } catch (Throwable e) {
+                // an error of a collection must not stop the drain of the others
+                FAILURE_COUNT.incrementAndGet();
+            }
+            batchSize++;
+            reference = QUEUE.poll();
+        }
+        DRAIN_TIME_NANOS.addAndGet(System.nanoTime() - start);
+        RECLAIMED_COUNT.addAndGet(batchSize);
+        BATCH_COUNT.incrementAndGet();
+        lastBatchSize = batchSize;
+        int max = MAX_BATCH_SIZE.get();
+        while (batchSize > max && !MAX_BATCH_SIZE.compareAndSet(max, batchSize)) {
+            max = MAX_BATCH_SIZE.get();
+        }
+    }
+
+    /**
+     * @return the number of references drained
+     */
+    public static long getReclaimedCount() {
+        return RECLAIMED_COUNT.get();
+    }
+
+    /**
+     * @return the number of reclaim calls which threw an exception or an error
+     */
+    public static long getFailureCount() {
+        return FAILURE_COUNT.get();
+    }
+
+    /**
+     * @return the number of drains, a drain processes all the references enqueued when it runs
+     */
+    public static long getBatchCount() {
+        return BATCH_COUNT.get();
+    }
+
+    /**
+     * @return the time spent draining in nanoseconds, divide the reclaimed count by this value to get the drain rate
+     */
+    public static long getDrainTimeNanos() {
+        return DRAIN_TIME_NANOS.get();
+    }
+
+    /**
+     * @return the number of references processed by the last drain, which is the backlog found by the drain
+     */
+    public static int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    /**
+     * @return the largest backlog found by a drain
+     */
+    public static int getMaxBatchSize() {
+        return MAX_BATCH_SIZE.get();
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A long counter which stays cheap to update under contention. Updates are first tried on a base value, a thread which fails to update it is moved to one of the padded
+ * cells, which are added to the base value by {@link #sum()}. This is the algorithm of the <tt>LongAdder</tt> of Java 8, restricted to the operations needed by
+ * {@link WeakConcurrentHashMap}.
+ * @author Gael Lalire
+ */
+final class StripedCounter {
+
+    /**
+     * A cell padded to avoid false sharing with its neighbours.
+     * @author Gael Lalire
+     */
+    @SuppressWarnings("unused")
+    private static final class Cell {
+
+        private static final AtomicLongFieldUpdater<Cell> VALUE = AtomicLongFieldUpdater.newUpdater(Cell.class, "value");
+
+        private volatile long p0, p1, p2, p3, p4, p5, p6;
+
+        private volatile long value;
+
+        private volatile long q0, q1, q2, q3, q4, q5, q6;
+
+        Cell(final long value) {
+            this.value = value;
+        }
+
+        boolean cas(final long expect, final long update) {
+            return VALUE.compareAndSet(this, expect, update);
+        }
+
+    }
+
+    private static final AtomicLongFieldUpdater<StripedCounter> BASE = AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+
+    private static final AtomicIntegerFieldUpdater<StripedCounter> CELLS_BUSY = AtomicIntegerFieldUpdater.newUpdater(StripedCounter.class, "cellsBusy");
+
+    private static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Per-thread probe used to select a cell, rehashed when the selected cell is contended. Held in an array so it can be updated without allocation.
+     */
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+
+        @Override
+        protected int[] initialValue() {
+            int probe = mix((int) Thread.currentThread().getId());
+            if (probe == 0) {
+                probe = 1;
+            }
+            return new int[] {probe};
+        }
+
+    };
+
+    private volatile long base;
+
+    /**
+     * Spin lock taken when creating or growing {@link #cells}.
+     */
+    private volatile int cellsBusy;
+
+    /**
+     * Null until contention is detected. The length is a power of two.
+     */
+    private volatile Cell[] cells;
+
+    private static int mix(final int h) {
+        int x = h * 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+
+    private static int advanceProbe(final int probe) {
+        int x = probe;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return x;
+    }
+
+    /**
+     * Adds the given value.
+     * @param x the value to add
+     */
+    public void add(final long x) {
+        Cell[] as = cells;
+        if (as == null) {
+            long b = base;
+            if (BASE.compareAndSet(this, b, b + x)) {
+                return;
+            }
+        }
+        int[] probeHolder = PROBE.get();
+        if (as != null) {
+            Cell a = as[probeHolder[0] & (as.length - 1)];
+            if (a != null) {
+                long v = a.value;
+                if (a.cas(v, v + x)) {
+                    return;
+                }
+            }
+        }
+        slowAdd(x, probeHolder);
+    }
+
+    /**
+     * Handles the creation of cells, the initialization of new cells and contention on existing ones.
+     */
+    private void slowAdd(final long x, final int[] probeHolder) {
+        int probe = probeHolder[0];
+        boolean collide = false;
+        for (;;) {
+            Cell[] as = cells;
+            if (as != null) {
+                int n = as.length;
+                Cell a = as[probe & (n - 1)];
+                if (a == null) {
+                    if (cellsBusy == 0) {
+                        Cell r = new Cell(x);
+                        if (cellsBusy == 0 && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+                            boolean created = false;
+                            try {
+                                Cell[] rs = cells;
+                                int j = probe & (rs.length - 1);
+                                if (rs[j] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            if (created) {
+                                break;
+                            }
+                            continue;
+                        }
+                    }
+                    collide = false;
+                } else {
+                    long v = a.value;
+                    if (a.cas(v, v + x)) {
+                        break;
+                    }
+                    if (n >= NCPU || cells != as) {
+                        // at max size or stale
+                        collide = false;
+                    } else if (!collide) {
+                        collide = true;
+                    } else if (cellsBusy == 0 && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+                        try {
+                            if (cells == as) {
+                                Cell[] rs = new Cell[n << 1];
+                                System.arraycopy(as, 0, rs, 0, n);
+                                cells = rs;
+                            }
+                        } finally {
+                            cellsBusy = 0;
+                        }
+                        collide = false;
+                        // retry with expanded table
+                        continue;
+                    }
+                }
+                probe = advanceProbe(probe);
+                probeHolder[0] = probe;
+            } else if (cellsBusy == 0 && cells == as && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+                boolean init = false;
+                try {
+                    if (cells == as) {
+                        Cell[] rs = new Cell[2];
+                        rs[probe & 1] = new Cell(x);
+                        cells = rs;
+                        init = true;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+                if (init) {
+                    break;
+                }
+            } else {
+                long b = base;
+                if (BASE.compareAndSet(this, b, b + x)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the current sum. The returned value is not an atomic snapshot, concurrent updates may or may not be included.
+     * @return the sum
+     */
+    public long sum() {
+        long sum = base;
+        Cell[] as = cells;
+        if (as != null) {
+            for (Cell a : as) {
+                if (a != null) {
+                    sum += a.value;
+                }
+            }
+        }
+        return sum;
+    }
+
+}
@@ -19,17 +19,57 @@ package fr.gaellalire.vestige.jvm_enhancer.runtime;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * A list of weak items. The JDK reads it by index, so the index of an item only changes when the list is compacted, and the list is only compacted by {@link #add(Object)}.
+ * A reclaimed item is read as the <tt>gcValue</tt> until then. {@link #size()} counts the slots of the list without scanning it, {@link #getLiveCount()} counts the items which
+ * are not reclaimed yet.
  * @param <E> item type
  * @author Gael Lalire
  */
 public class WeakArrayList<E> extends ArrayList<E> {
 
+    /**
+     * The list is compacted when at least this number of slots hold a reclaimed item and they are more than half of the slots.
+     */
+    private static final int MIN_COMPACTION_SIZE = 8;
+
+    /**
+     * Counts its reclamation in its list.
+     * @author Gael Lalire
+     * @param <E> item type
+     */
+    private static final class ItemReference<E> extends WeakReference<E> implements Reclaimable {
+
+        private final WeakArrayList<E> owner;
+
+        ItemReference(final WeakArrayList<E> owner, final E item) {
+            super(item, ReferenceReaper.getQueue());
+            this.owner = owner;
+        }
+
+        public void reclaim() {
+            owner.reclaimedCount.incrementAndGet();
+        }
+
+    }
+
     private ArrayList<WeakReference<E>> weakReferences = new ArrayList<WeakReference<E>>();
 
+    /**
+     * Number of items added, guarded by this.
+     */
+    private volatile int addedCount;
+
+    /**
+     * Number of items reclaimed, updated by the reaper without lock.
+     */
+    private AtomicInteger reclaimedCount = new AtomicInteger();
+
     private static final long serialVersionUID = 1L;
 
     private E gcValue;
@@ -38,22 +78,32 @@ public class WeakArrayList<E> extends ArrayList<E> {
         this.gcValue = gcValue;
     }
 
-    public List<E> createStrongList() {
+    /**
+     * @return the live items, in order
+     */
+    public synchronized List<E> createStrongList() {
         List<E> sList = new ArrayList<E>(weakReferences.size());
-        Iterator<WeakReference<E>> iterator = weakReferences.iterator();
-        while (iterator.hasNext()) {
-            WeakReference<E> next = iterator.next();
-            E e = next.get();
-            if (e == null) {
-                iterator.remove();
-            } else {
+        for (WeakReference<E> weakReference : weakReferences) {
+            E e = weakReference.get();
+            if (e != null) {
                 sList.add(e);
             }
         }
         return sList;
     }
 
-    public void expunge() {
+    /**
+     * @return the number of items which are not reclaimed yet, a reclaimed item is counted until the reaper thread, or the next add when the thread is not running, processes it
+     */
+    public int getLiveCount() {
+        return addedCount - reclaimedCount.get();
+    }
+
+    /**
+     * Removes the slots of reclaimed items, which shifts the index of the following items.
+     */
+    public synchronized void expunge() {
+        ReferenceReaper.expunge();
         Iterator<WeakReference<E>> iterator = weakReferences.iterator();
         while (iterator.hasNext()) {
             WeakReference<E> next = iterator.next();
@@ -63,12 +113,25 @@ public class WeakArrayList<E> extends ArrayList<E> {
         }
     }
 
+    private void compactIfNeeded() {
+        ReferenceReaper.expunge();
+        int slotCount = weakReferences.size();
+        int reclaimedSlotCount = slotCount - (addedCount - reclaimedCount.get());
+        if (reclaimedSlotCount >= MIN_COMPACTION_SIZE && reclaimedSlotCount * 2 > slotCount) {
+            expunge();
+        }
+    }
+
     @Override
     public int size() {
-        expunge();
         return weakReferences.size();
     }
 
+    @Override
+    public boolean isEmpty() {
+        return weakReferences.isEmpty();
+    }
+
     @Override
     public E get(final int index) {
         E e = weakReferences.get(index).get();
@@ -79,8 +142,10 @@ public class WeakArrayList<E> extends ArrayList<E> {
     }
 
     @Override
-    public boolean add(final E e) {
-        weakReferences.add(new WeakReference<E>(e));
+    public synchronized boolean add(final E e) {
+        compactIfNeeded();
+        weakReferences.add(new ItemReference<E>(this, e));
+        addedCount++;
         return true;
     }
 
@@ -92,11 +157,30 @@ public class WeakArrayList<E> extends ArrayList<E> {
         return true;
     }
 
+    /**
+     * @return an iterator over a snapshot of the live items, it is not affected by later changes of the list
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return Collections.unmodifiableList(createStrongList()).iterator();
+    }
+
     @SuppressWarnings("unchecked")
     @Override
-    public Object clone() {
+    public synchronized Object clone() {
         WeakArrayList<E> weakArrayList = (WeakArrayList<E>) super.clone();
-        weakArrayList.weakReferences = (ArrayList<WeakReference<E>>) weakReferences.clone();
+        // the references of the clone must count in the clone
+        weakArrayList.weakReferences = new ArrayList<WeakReference<E>>(weakReferences.size());
+        weakArrayList.reclaimedCount = new AtomicInteger();
+        int liveCount = 0;
+        for (WeakReference<E> weakReference : weakReferences) {
+            E e = weakReference.get();
+            if (e != null) {
+                weakArrayList.weakReferences.add(new ItemReference<E>(weakArrayList, e));
+                liveCount++;
+            }
+        }
+        weakArrayList.addedCount = liveCount;
         return weakArrayList;
     }
 
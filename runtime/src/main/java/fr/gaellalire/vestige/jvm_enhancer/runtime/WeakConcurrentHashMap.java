@@ -9,7 +9,10 @@ package fr.gaellalire.vestige.jvm_enhancer.runtime;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
@@ -23,10 +26,12 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * A hash table supporting full concurrency of retrievals and adjustable expected concurrency for updates. This class obeys the same functional specification as
+ * A hash table with <em>weak keys</em> supporting full concurrency of retrievals and high expected concurrency for updates. This class obeys the same functional specification as
  * {@link java.util.Hashtable}, and includes versions of methods corresponding to each method of <tt>Hashtable</tt>. However, even though all operations are thread-safe, retrieval
  * operations do <em>not</em> entail locking, and there is <em>not</em> any support for locking the entire table in a way that prevents all access. This class is fully
  * interoperable with <tt>Hashtable</tt> in programs that rely on its thread safety but not on its synchronization details.
@@ -37,18 +42,19 @@ import java.util.concurrent.locks.ReentrantLock;
  * or since the creation of the iterator/enumeration. They do <em>not</em> throw {@link ConcurrentModificationException}. However, iterators are designed to be used by only one
  * thread at a time.
  * <p>
- * The allowed concurrency among update operations is guided by the optional <tt>concurrencyLevel</tt> constructor argument (default <tt>16</tt>), which is used as a hint for
- * internal sizing. The table is internally partitioned to try to permit the indicated number of concurrent updates without contention. Because placement in hash tables is
- * essentially random, the actual concurrency will vary. Ideally, you should choose a value to accommodate as many threads as will ever concurrently modify the table. Using a
- * significantly higher value than you need can waste space and time, and a significantly lower value can lead to thread contention. But overestimates and underestimates within an
- * order of magnitude do not usually have much noticeable impact. A value of one is appropriate when it is known that only one thread will modify and all others will only read.
- * Also, resizing this or any other kind of hash table is a relatively slow operation, so, when possible, it is a good idea to provide estimates of expected table sizes in
- * constructors.
+ * The first insertion of a node in an empty bin is performed by a compare-and-set of the bin. Other updates take the lock of the first node of the bin, so only updates
+ * colliding in the same bin contend. When the table needs to grow, every updating thread which encounters a moving bin helps transferring a range of bins to the new table, so
+ * resizing is incremental and cooperative. The <tt>concurrencyLevel</tt> constructor argument is only used as a sizing hint.
+ * <p>
+ * An entry is removed when its key is reclaimed by the garbage collector. Nodes are registered with the queue of the {@link ReferenceReaper}, which is drained by the reaper
+ * thread, or by the update operations of this map while the reaper thread is not running.
  * <p>
  * This class and its views and iterators implement all of the <em>optional</em> methods of the {@link Map} and {@link Iterator} interfaces.
  * <p>
  * Like {@link Hashtable} but unlike {@link HashMap}, this class does <em>not</em> allow <tt>null</tt> to be used as a key or value.
  * <p>
+ * This class only uses Java 6 types, <tt>Java8WeakConcurrentHashMap</tt> adds the atomic <tt>computeIfAbsent</tt>, <tt>compute</tt> and <tt>merge</tt> methods of Java 8.
+ * <p>
  * This class is a member of the <a href="{@docRoot}/../technotes/guides/collections/index.html"> Java Collections Framework</a>.
  * @since 1.5
  * @author Doug Lea
@@ -56,53 +62,32 @@ import java.util.concurrent.locks.ReentrantLock;
  * @param <K> the type of keys maintained by this map
  * @param <V> the type of mapped values
  */
-// TODO this map is only for JceSecurity hack. For a general purpose usage other TODO in this file must be done
 public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, Serializable {
     private static final long serialVersionUID = 7249069246763182397L;
 
-    private static final class Helper<K, V> implements Serializable {
-
-        private static final long serialVersionUID = -303078780519170373L;
-
-        WeakConcurrentHashMap<K, V> map;
-
-        boolean identityEquals;
-
-        Helper(final WeakConcurrentHashMap<K, V> map, final boolean identityEquals) {
-            this.map = map;
-            this.identityEquals = identityEquals;
-        }
-
-        K getHashEntryKey(final HashEntry<K, V> entry) {
-            K key = entry.get();
-            if (key == null) {
-                map.segmentFor(entry.hash).remove(entry, this);
-            }
-            return key;
-        }
-
-        boolean equals(final Object key, final int keyHashCode, final HashEntry<K, V> hashEntry) {
-            K hashEntryKey = getHashEntryKey(hashEntry);
-            if (key == hashEntryKey) {
-                return true;
-            }
-            if (identityEquals) {
-                return false;
-            }
-            if (keyHashCode != hashEntry.hash) {
-                return false;
-            }
-            if (!key.equals(hashEntryKey)) {
-                return false;
-            }
-            return true;
-
-        }
-
-    }
-
     /*
-     * The basic strategy is to subdivide the table among Segments, each of which itself is a concurrently readable hash table.
+     * The table is an array of bins, each bin is a list of nodes. Nodes extend WeakReference, the referent being the key. Nodes with a negative hash are special nodes: a
+     * ForwardingNode is put at the head of a bin which was transferred to the next table, a TreeBin is put at the head of a bin whose nodes are kept in a red-black tree.
+     *
+     * A bin is converted to a tree when it holds more than TREEIFY_THRESHOLD nodes. Tree nodes are ordered by hash, then by identity hash code when the map compares keys with
+     * ==, or by compareTo when keys are of the same Comparable class. The identity hash code is recorded when the node is created, so the order of a node whose key was
+     * reclaimed does not change. When two keys cannot be ordered, both subtrees are searched. A TreeBin is turned back into a list when it shrinks below UNTREEIFY_THRESHOLD.
+     * TreeBins use a simple read-write lock (lockState) so that readers can keep using the tree while a writer, which already holds the bin lock, does not restructure it; if
+     * a writer is pending, readers walk the nodes through their next links instead. A tree node which leaves its TreeBin is flagged as unlinked so that the removal of its
+     * reclaimed key does not search for it.
+     *
+     * Insertion of the first node in an empty bin is done by CASing it to the bin. Other update operations (insert, delete, and replace) require locks. We use the first node of
+     * a bin as the lock. Locking support for these locks relies on builtin "synchronized" monitors. After locking, the updater must validate that the node is still the first
+     * node of the bin, and retry if not. Because new nodes are always appended to lists, once a node is first in a bin, it remains first until deleted or the bin becomes
+     * invalidated (upon resizing).
+     *
+     * The table is resized when occupancy exceeds a percentage threshold (nominally, 0.75). Any thread noticing an overfull bin may assist in resizing after the initiating thread
+     * allocates and sets up the replacement array. Each thread reserves a range of bins (a stride) by CASing transferIndex. Because we are using power-of-two expansion, the
+     * elements from each bin must either stay at same index, or move with a power of two offset. We eliminate unnecessary node creation by catching cases where old nodes can be
+     * reused because their next fields won't change. Nodes which must be copied and whose key was already reclaimed are dropped.
+     *
+     * Nodes are registered with the ReferenceReaper queue and remove themselves by identity once reclaimed. While the reaper thread is not running the queue is drained by
+     * every update operation, retrievals never drain it because the queue is shared with the other collections of the runtime.
      */
 
     /* ---------------- Constants -------------- */
@@ -129,506 +114,1119 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
     static final int MAXIMUM_CAPACITY = 1 << 30;
 
     /**
-     * The maximum number of segments to allow; used to bound constructor arguments.
+     * Minimum number of rebinnings per transfer step. Ranges are subdivided to allow multiple resizer threads. This value serves as a lower bound to avoid resizers encountering
+     * excessive memory contention.
      */
-    static final int MAX_SEGMENTS = 1 << 16; // slightly conservative
+    private static final int MIN_TRANSFER_STRIDE = 16;
 
     /**
-     * Number of unsynchronized retries in size and containsValue methods before resorting to locking. This is used to avoid unbounded retries if tables undergo continuous
-     * modification which would make it impossible to obtain an accurate result.
+     * The number of bits used for generation stamp in sizeCtl.
      */
-    static final int RETRIES_BEFORE_LOCK = 2;
+    private static final int RESIZE_STAMP_BITS = 16;
 
-    /* ---------------- Fields -------------- */
+    /**
+     * The maximum number of threads that can help resize.
+     */
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
 
     /**
-     * Mask value for indexing into segments. The upper bits of a key's hash code are used to choose the segment.
+     * The bit shift for recording size stamp in sizeCtl.
      */
-    final int segmentMask;
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
 
     /**
-     * Shift value for indexing within segments.
+     * Hash for forwarding nodes.
      */
-    final int segmentShift;
+    static final int MOVED = -1;
 
     /**
-     * The segments, each of which is a specialized hash table
+     * Hash for roots of trees.
      */
-    final Segment<K, V>[] segments;
+    static final int TREEBIN = -2;
 
-    transient Set<K> keySet;
+    /**
+     * Hash for reservation nodes.
+     */
+    static final int RESERVED = -3;
 
-    transient Set<Map.Entry<K, V>> entrySet;
+    /**
+     * The bin count threshold for using a tree rather than list for a bin. Bins are converted to trees when adding an element to a bin with at least this many nodes.
+     */
+    static final int TREEIFY_THRESHOLD = 8;
 
-    transient Collection<V> values;
+    /**
+     * The bin count threshold for untreeifying a (split) bin during a resize operation, or after a removal. Should be less than TREEIFY_THRESHOLD.
+     */
+    static final int UNTREEIFY_THRESHOLD = 6;
 
-    /* ---------------- Small Utilities -------------- */
+    /**
+     * The smallest table capacity for which bins may be treeified. (Otherwise the table is resized if too many nodes in a bin.)
+     */
+    static final int MIN_TREEIFY_CAPACITY = 64;
 
     /**
-     * Applies a supplemental hash function to a given hashCode, which defends against poor quality hash functions. This is critical because ConcurrentHashMap uses power-of-two
-     * length hash tables, that otherwise encounter collisions for hashCodes that do not differ in lower or upper bits.
+     * Usable bits of normal node hash.
      */
-    private static int hash(int h) {
-        // Spread bits to regularize both segment and index locations,
-        // using variant of single-word Wang/Jenkins hash.
-        h += (h << 15) ^ 0xffffcd7d;
-        h ^= (h >>> 10);
-        h += (h << 3);
-        h ^= (h >>> 6);
-        h += (h << 2) + (h << 14);
-        return h ^ (h >>> 16);
-    }
+    static final int HASH_BITS = 0x7fffffff;
 
     /**
-     * Returns the segment that should be used for key with given hash
-     * @param hash the hash code for the key
-     * @return the segment
+     * Number of CPUS, to place bounds on some sizings.
      */
-    final Segment<K, V> segmentFor(final int hash) {
-        return segments[(hash >>> segmentShift) & segmentMask];
-    }
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<WeakConcurrentHashMap> SIZECTL = AtomicIntegerFieldUpdater.newUpdater(WeakConcurrentHashMap.class, "sizeCtl");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<WeakConcurrentHashMap> TRANSFERINDEX = AtomicIntegerFieldUpdater.newUpdater(WeakConcurrentHashMap.class, "transferIndex");
+
+    /* ---------------- Fields -------------- */
+
+    /**
+     * The array of bins. Lazily initialized upon first insertion. Size is always a power of two.
+     */
+    transient volatile AtomicReferenceArray<Node<K, V>> table;
+
+    /**
+     * The next table to use; non-null only while resizing.
+     */
+    private transient volatile AtomicReferenceArray<Node<K, V>> nextTable;
+
+    /**
+     * Table initialization and resizing control. When negative, the table is being initialized or resized: -1 for initialization, else -(1 + the number of active resizing
+     * threads). Otherwise, when table is null, holds the initial table size to use upon creation, or 0 for default. After initialization, holds the next element count value upon
+     * which to resize the table.
+     */
+    private transient volatile int sizeCtl;
+
+    /**
+     * The next table index (plus one) to split while resizing.
+     */
+    private transient volatile int transferIndex;
 
-    /* ---------------- Inner Classes -------------- */
+    /**
+     * Number of mappings, updated on insertion, removal and reclamation.
+     */
+    private transient StripedCounter count;
 
     /**
-     * ConcurrentHashMap list entry. Note that this is never exported out as a user-visible Map.Entry. Because the value field is volatile, not final, it is legal wrt the Java
-     * Memory Model for an unsynchronized reader to see null instead of initial value when read via a data race. Although a reordering leading to this is not likely to ever
-     * actually occur, the Segment.readValueUnderLock method is used as a backup in case a null (pre-initialized) value is ever seen in an unsynchronized access method.
+     * When true keys are compared with <tt>==</tt> instead of <tt>equals</tt>, and hashed with {@link System#identityHashCode(Object)} instead of <tt>hashCode</tt>.
      */
-    static final class HashEntry<K, V> extends WeakReference<K> {
+    final boolean identityEquality;
+
+    transient Set<K> keySet;
+
+    transient Set<Map.Entry<K, V>> entrySet;
+
+    transient Collection<V> values;
+
+    /* ---------------- Nodes -------------- */
+
+    /**
+     * Key-value entry. The key is the referent of the weak reference, so it can be null for a node whose key was reclaimed, such a node never matches a lookup.
+     */
+    static class Node<K, V> extends WeakReference<K> implements Reclaimable {
         final int hash;
 
-        volatile V value;
+        volatile V val;
 
-        final HashEntry<K, V> next;
+        volatile Node<K, V> next;
 
-        HashEntry(final K key, final int hash, final HashEntry<K, V> next, final V value) {
-            super(key);
+        /**
+         * Map to remove this node from once reclaimed, null for special nodes.
+         */
+        final WeakConcurrentHashMap<K, V> map;
+
+        Node(final K key, final int hash, final V val, final Node<K, V> next, final WeakConcurrentHashMap<K, V> map) {
+            super(key, queueOf(map));
             this.hash = hash;
+            this.val = val;
             this.next = next;
-            this.value = value;
+            this.map = map;
         }
 
-        @SuppressWarnings("unchecked")
-        static final <K, V> HashEntry<K, V>[] newArray(final int i) {
-            return new HashEntry[i];
+        public void reclaim() {
+            if (map != null) {
+                map.removeReclaimed(this);
+            }
+        }
+
+        /**
+         * Virtualized support for map.get(); overridden in subclasses.
+         */
+        Node<K, V> find(final int h, final Object k, final boolean identity) {
+            Node<K, V> e = this;
+            do {
+                if (e.hash == h) {
+                    K ek = e.get();
+                    if (ek == k || (ek != null && !identity && k.equals(ek))) {
+                        return e;
+                    }
+                }
+                e = e.next;
+            } while (e != null);
+            return null;
         }
     }
 
     /**
-     * Segments are specialized versions of hash tables. This subclasses from ReentrantLock opportunistically, just to simplify some locking and avoid separate construction.
+     * A node inserted at head of bins during transfer operations.
      */
-    static final class Segment<K, V> extends ReentrantLock implements Serializable {
-        /*
-         * Segments maintain a table of entry lists that are ALWAYS kept in a consistent state, so can be read without locking. Next fields of nodes are immutable (final). All list
-         * additions are performed at the front of each bin. This makes it easy to check changes, and also fast to traverse. When nodes would otherwise be changed, new nodes are
-         * created to replace them. This works well for hash tables since the bin lists tend to be short. (The average length is less than two for the default load factor
-         * threshold.) Read operations can thus proceed without locking, but rely on selected uses of volatiles to ensure that completed write operations performed by other threads
-         * are noticed. For most purposes, the "count" field, tracking the number of elements, serves as that volatile variable ensuring visibility. This is convenient because this
-         * field needs to be read in many read operations anyway: - All (unsynchronized) read operations must first read the "count" field, and should not look at table entries if
-         * it is 0. - All (synchronized) write operations should write to the "count" field after structurally changing any bin. The operations must not take any action that could
-         * even momentarily cause a concurrent read operation to see inconsistent data. This is made easier by the nature of the read operations in Map. For example, no operation
-         * can reveal that the table has grown but the threshold has not yet been updated, so there are no atomicity requirements for this with respect to reads. As a guide, all
-         * critical volatile reads and writes to the count field are marked in code comments.
-         */
+    static final class ForwardingNode<K, V> extends Node<K, V> {
+        final AtomicReferenceArray<Node<K, V>> nextTable;
+
+        ForwardingNode(final AtomicReferenceArray<Node<K, V>> tab) {
+            super(null, MOVED, null, null, null);
+            this.nextTable = tab;
+        }
+
+        Node<K, V> find(final int h, final Object k, final boolean identity) {
+            // loop to avoid arbitrarily deep recursion on forwarding nodes
+            AtomicReferenceArray<Node<K, V>> tab = nextTable;
+            outer: for (;;) {
+                int n = tab.length();
+                Node<K, V> e = tab.get((n - 1) & h);
+                if (e == null) {
+                    return null;
+                }
+                for (;;) {
+                    int eh = e.hash;
+                    if (eh == h) {
+                        K ek = e.get();
+                        if (ek == k || (ek != null && !identity && k.equals(ek))) {
+                            return e;
+                        }
+                    }
+                    if (eh < 0) {
+                        if (e instanceof ForwardingNode) {
+                            tab = ((ForwardingNode<K, V>) e).nextTable;
+                            continue outer;
+                        } else {
+                            return e.find(h, k, identity);
+                        }
+                    }
+                    e = e.next;
+                    if (e == null) {
+                        return null;
+                    }
+                }
+            }
+        }
+    }
 
-        private static final long serialVersionUID = 2249069246763182397L;
+    /**
+     * A place-holder node of an empty bin while the computeIfAbsent or compute methods of <tt>Java8WeakConcurrentHashMap</tt> run the mapping function.
+     */
+    static final class ReservationNode<K, V> extends Node<K, V> {
+        ReservationNode() {
+            super(null, RESERVED, null, null, null);
+        }
 
-        /**
-         * The number of elements in this segment's region.
-         */
-        transient volatile int count;
+        Node<K, V> find(final int h, final Object k, final boolean identity) {
+            return null;
+        }
+    }
 
-        /**
-         * Number of updates that alter the size of the table. This is used during bulk-read methods to make sure they see a consistent snapshot: If modCounts change during a
-         * traversal of segments computing size or checking containsValue, then we might have an inconsistent view of state so (usually) must retry.
-         */
-        transient int modCount;
+    /* ---------------- TreeBins -------------- */
 
-        /**
-         * The table is rehashed when its size exceeds this threshold. (The value of this field is always <tt>(int)(capacity *
-         * loadFactor)</tt>.)
-         */
-        transient int threshold;
+    /**
+     * Nodes for use in TreeBins.
+     */
+    static final class TreeNode<K, V> extends Node<K, V> {
+        final int identityHash;
+
+        TreeNode<K, V> parent; // red-black tree links
+
+        TreeNode<K, V> left;
+
+        TreeNode<K, V> right;
+
+        TreeNode<K, V> prev; // needed to unlink next upon deletion
+
+        boolean red;
 
         /**
-         * The per-segment table.
+         * Set, under the bin lock, when the node is not part of a TreeBin anymore.
          */
-        transient volatile HashEntry<K, V>[] table;
+        boolean unlinked;
+
+        TreeNode(final K key, final int hash, final V val, final Node<K, V> next, final TreeNode<K, V> parent, final WeakConcurrentHashMap<K, V> map) {
+            super(key, hash, val, next, map);
+            this.identityHash = System.identityHashCode(key);
+            this.parent = parent;
+        }
 
         /**
-         * The load factor for the hash table. Even though this value is same for all segments, it is replicated to avoid needing links to outer object.
-         * @serial
+         * Returns the TreeNode (or null if not found) for the given key starting at given root.
          */
-        final float loadFactor;
+        TreeNode<K, V> findTreeNode(final int h, final Object k, final Class<?> comparableClass, final boolean identity, final int ih) {
+            Class<?> kc = comparableClass;
+            TreeNode<K, V> p = this;
+            do {
+                TreeNode<K, V> pl = p.left;
+                TreeNode<K, V> pr = p.right;
+                int ph = p.hash;
+                if (ph > h) {
+                    p = pl;
+                } else if (ph < h) {
+                    p = pr;
+                } else {
+                    K pk = p.get();
+                    if (pk == k || (pk != null && !identity && k.equals(pk))) {
+                        return p;
+                    }
+                    if (pl == null) {
+                        p = pr;
+                    } else if (pr == null) {
+                        p = pl;
+                    } else {
+                        if (!identity && kc == null) {
+                            kc = screenedClassOf(k);
+                        }
+                        int dir = treeOrder(identity, kc, k, ih, p);
+                        if (dir < 0) {
+                            p = pl;
+                        } else if (dir > 0) {
+                            p = pr;
+                        } else {
+                            TreeNode<K, V> q = pr.findTreeNode(h, k, kc, identity, ih);
+                            if (q != null) {
+                                return q;
+                            }
+                            p = pl;
+                        }
+                    }
+                }
+            } while (p != null);
+            return null;
+        }
+    }
 
-        Segment(final int initialCapacity, final float lf) {
-            loadFactor = lf;
-            setTable(HashEntry.<K, V> newArray(initialCapacity));
+    /**
+     * Returns x's Class if it is of the form "class C implements Comparable&lt;C&gt;", else null.
+     */
+    static Class<?> comparableClassOf(final Object x) {
+        Class<?> c = x.getClass();
+        if (c == String.class) {
+            return c;
+        }
+        Type[] ts = c.getGenericInterfaces();
+        if (ts != null) {
+            for (Type t : ts) {
+                if (t instanceof ParameterizedType) {
+                    ParameterizedType p = (ParameterizedType) t;
+                    if (p.getRawType() == Comparable.class) {
+                        Type[] as = p.getActualTypeArguments();
+                        if (as != null && as.length == 1 && as[0] == c) {
+                            return c;
+                        }
+                    }
+                }
+            }
         }
+        return null;
+    }
 
-        @SuppressWarnings("unchecked")
-        static final <K, V> Segment<K, V>[] newArray(final int i) {
-            return new Segment[i];
+    /**
+     * Returns x's Class if it is comparable, else Void.class which no key can match, so that the result of the screening is not computed again.
+     */
+    static Class<?> screenedClassOf(final Object x) {
+        Class<?> c = comparableClassOf(x);
+        if (c == null) {
+            return Void.class;
         }
+        return c;
+    }
 
-        /**
-         * Sets table to new HashEntry array. Call only while holding lock or in constructor.
-         */
-        void setTable(final HashEntry<K, V>[] newTable) {
-            threshold = (int) (newTable.length * loadFactor);
-            table = newTable;
+    /**
+     * Returns k.compareTo(x) if x matches kc (k's screened comparable class), else 0. A reclaimed key (null) cannot be compared.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static int compareComparables(final Class<?> kc, final Object k, final Object x) {
+        if (x == null || x.getClass() != kc) {
+            return 0;
+        }
+        return ((Comparable) k).compareTo(x);
+    }
+
+    /**
+     * Orders a key against a tree node of same hash: by identity hash code in identity mode, else by compareTo if possible. Returns 0 if the key cannot be ordered.
+     */
+    static int treeOrder(final boolean identity, final Class<?> kc, final Object k, final int ih, final TreeNode<?, ?> p) {
+        if (identity) {
+            if (ih < p.identityHash) {
+                return -1;
+            }
+            if (ih > p.identityHash) {
+                return 1;
+            }
+            return 0;
+        }
+        if (kc == null) {
+            return 0;
         }
+        return compareComparables(kc, k, p.get());
+    }
+
+    /**
+     * Tie-breaking utility for ordering insertions when keys cannot be ordered. We don't require a total order, just a consistent insertion rule to maintain equivalence across
+     * rebalancings.
+     */
+    static int tieBreakOrder(final int ih, final TreeNode<?, ?> p) {
+        if (ih <= p.identityHash) {
+            return -1;
+        }
+        return 1;
+    }
+
+    /**
+     * TreeNodes used at the heads of bins. TreeBins do not hold user keys or values, but instead point to list of TreeNodes and their root. They also maintain a parasitic
+     * read-write lock forcing writers (who hold bin lock) to wait for readers (who do not) to complete before tree restructuring operations.
+     */
+    static final class TreeBin<K, V> extends Node<K, V> {
+        // values for lockState
+        static final int WRITER = 1; // set while holding write lock
+
+        static final int WAITER = 2; // set when waiting for write lock
+
+        static final int READER = 4; // increment value for setting read lock
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<TreeBin> LOCKSTATE = AtomicIntegerFieldUpdater.newUpdater(TreeBin.class, "lockState");
+
+        TreeNode<K, V> root;
+
+        volatile TreeNode<K, V> first;
+
+        volatile Thread waiter;
+
+        volatile int lockState;
+
+        final boolean identity;
 
         /**
-         * Returns properly casted first entry of bin for given hash.
+         * Creates bin with initial set of nodes headed by b.
          */
-        HashEntry<K, V> getFirst(final int hash) {
-            HashEntry<K, V>[] tab = table;
-            return tab[hash & (tab.length - 1)];
+        TreeBin(final TreeNode<K, V> b, final boolean identity) {
+            super(null, TREEBIN, null, null, null);
+            this.identity = identity;
+            this.first = b;
+            TreeNode<K, V> r = null;
+            TreeNode<K, V> x = b;
+            while (x != null) {
+                TreeNode<K, V> next = (TreeNode<K, V>) x.next;
+                x.left = null;
+                x.right = null;
+                if (r == null) {
+                    x.parent = null;
+                    x.red = false;
+                    r = x;
+                } else {
+                    K k = x.get();
+                    int h = x.hash;
+                    Class<?> kc = null;
+                    if (!identity && k != null) {
+                        kc = screenedClassOf(k);
+                    }
+                    TreeNode<K, V> p = r;
+                    for (;;) {
+                        int dir;
+                        int ph = p.hash;
+                        if (ph > h) {
+                            dir = -1;
+                        } else if (ph < h) {
+                            dir = 1;
+                        } else {
+                            dir = treeOrder(identity, kc, k, x.identityHash, p);
+                            if (dir == 0) {
+                                dir = tieBreakOrder(x.identityHash, p);
+                            }
+                        }
+                        TreeNode<K, V> xp = p;
+                        if (dir <= 0) {
+                            p = p.left;
+                        } else {
+                            p = p.right;
+                        }
+                        if (p == null) {
+                            x.parent = xp;
+                            if (dir <= 0) {
+                                xp.left = x;
+                            } else {
+                                xp.right = x;
+                            }
+                            r = balanceInsertion(r, x);
+                            break;
+                        }
+                    }
+                }
+                x = next;
+            }
+            this.root = r;
+            assert checkInvariants(root);
         }
 
         /**
-         * Reads value field of an entry under lock. Called if value field ever appears to be null. This is possible only if a compiler happens to reorder a HashEntry
-         * initialization with its table assignment, which is legal under memory model but is not known to ever occur.
+         * Acquires write lock for tree restructuring.
          */
-        V readValueUnderLock(final HashEntry<K, V> e) {
-            lock();
-            try {
-                return e.value;
-            } finally {
-                unlock();
+        private void lockRoot() {
+            if (!LOCKSTATE.compareAndSet(this, 0, WRITER)) {
+                contendedLock(); // offload to separate method
             }
         }
 
-        /* Specialized implementations of map methods */
+        /**
+         * Releases write lock for tree restructuring.
+         */
+        private void unlockRoot() {
+            lockState = 0;
+        }
 
-        V get(final Object key, final int hash, final Helper<K, V> helper) {
-            if (count != 0) { // read-volatile
-                HashEntry<K, V> e = getFirst(hash);
-                while (e != null) {
-                    if (helper.equals(key, hash, e)) {
-                        V v = e.value;
-                        if (v != null) {
-                            return v;
+        /**
+         * Possibly blocks awaiting root lock.
+         */
+        private void contendedLock() {
+            boolean waiting = false;
+            for (;;) {
+                int s = lockState;
+                if ((s & ~WAITER) == 0) {
+                    if (LOCKSTATE.compareAndSet(this, s, WRITER)) {
+                        if (waiting) {
+                            waiter = null;
                         }
-                        return readValueUnderLock(e); // recheck
+                        return;
                     }
-                    e = e.next;
+                } else if ((s & WAITER) == 0) {
+                    if (LOCKSTATE.compareAndSet(this, s, s | WAITER)) {
+                        waiting = true;
+                        waiter = Thread.currentThread();
+                    }
+                } else if (waiting) {
+                    LockSupport.park(this);
                 }
             }
-            return null;
         }
 
-        boolean containsKey(final Object key, final int hash, final Helper<K, V> helper) {
-            if (count != 0) { // read-volatile
-                HashEntry<K, V> e = getFirst(hash);
-                while (e != null) {
-                    if (helper.equals(key, hash, e)) {
-                        return true;
+        /**
+         * Returns matching node or null if none. Tries to search using tree comparisons from root, but continues linear search when lock not available.
+         */
+        Node<K, V> find(final int h, final Object k, final boolean ignored) {
+            Node<K, V> e = first;
+            while (e != null) {
+                int s = lockState;
+                if ((s & (WAITER | WRITER)) != 0) {
+                    if (e.hash == h) {
+                        K ek = e.get();
+                        if (ek == k || (ek != null && !identity && k.equals(ek))) {
+                            return e;
+                        }
                     }
                     e = e.next;
-                }
-            }
-            return false;
-        }
-
-        boolean containsValue(final Object value) {
-            if (count != 0) { // read-volatile
-                HashEntry<K, V>[] tab = table;
-                int len = tab.length;
-                for (int i = 0; i < len; i++) {
-                    for (HashEntry<K, V> e = tab[i]; e != null; e = e.next) {
-                        V v = e.value;
-                        if (v == null) {
-                            v = readValueUnderLock(e);
+                } else if (LOCKSTATE.compareAndSet(this, s, s + READER)) {
+                    TreeNode<K, V> p = null;
+                    try {
+                        TreeNode<K, V> r = root;
+                        if (r != null) {
+                            p = r.findTreeNode(h, k, null, identity, identityHashOf(k));
                         }
-                        if (value.equals(v)) {
-                            return true;
+                    } finally {
+                        if (LOCKSTATE.getAndAdd(this, -READER) == (READER | WAITER)) {
+                            Thread w = waiter;
+                            if (w != null) {
+                                LockSupport.unpark(w);
+                            }
                         }
                     }
+                    return p;
                 }
             }
-            return false;
+            return null;
         }
 
-        boolean replace(final K key, final int hash, final V oldValue, final V newValue, final Helper<K, V> helper) {
-            lock();
-            try {
-                HashEntry<K, V> e = getFirst(hash);
-                while (e != null && (!helper.equals(key, hash, e))) {
-                    e = e.next;
-                }
-
-                boolean replaced = false;
-                if (e != null && oldValue.equals(e.value)) {
-                    replaced = true;
-                    e.value = newValue;
-                }
-                return replaced;
-            } finally {
-                unlock();
+        int identityHashOf(final Object k) {
+            if (identity) {
+                return System.identityHashCode(k);
             }
+            return 0;
         }
 
-        V replace(final K key, final int hash, final V newValue, final Helper<K, V> helper) {
-            lock();
-            try {
-                HashEntry<K, V> e = getFirst(hash);
-                while (e != null && (!helper.equals(key, hash, e))) {
-                    e = e.next;
+        /**
+         * Finds or adds a node.
+         * @return null if added
+         */
+        TreeNode<K, V> putTreeVal(final int h, final K k, final V v, final WeakConcurrentHashMap<K, V> map) {
+            Class<?> kc = null;
+            boolean searched = false;
+            int ih = System.identityHashCode(k);
+            TreeNode<K, V> p = root;
+            for (;;) {
+                int dir;
+                if (p == null) {
+                    root = new TreeNode<K, V>(k, h, v, null, null, map);
+                    first = root;
+                    break;
+                }
+                int ph = p.hash;
+                if (ph > h) {
+                    dir = -1;
+                } else if (ph < h) {
+                    dir = 1;
+                } else {
+                    K pk = p.get();
+                    if (pk == k || (pk != null && !identity && k.equals(pk))) {
+                        return p;
+                    }
+                    if (!identity && kc == null) {
+                        kc = screenedClassOf(k);
+                    }
+                    dir = treeOrder(identity, kc, k, ih, p);
+                    if (dir == 0) {
+                        if (!searched) {
+                            searched = true;
+                            TreeNode<K, V> ch = p.left;
+                            TreeNode<K, V> q = null;
+                            if (ch != null) {
+                                q = ch.findTreeNode(h, k, kc, identity, ih);
+                            }
+                            if (q == null) {
+                                ch = p.right;
+                                if (ch != null) {
+                                    q = ch.findTreeNode(h, k, kc, identity, ih);
+                                }
+                            }
+                            if (q != null) {
+                                return q;
+                            }
+                        }
+                        dir = tieBreakOrder(ih, p);
+                    }
                 }
 
-                V oldValue = null;
-                if (e != null) {
-                    oldValue = e.value;
-                    e.value = newValue;
+                TreeNode<K, V> xp = p;
+                if (dir <= 0) {
+                    p = p.left;
+                } else {
+                    p = p.right;
+                }
+                if (p == null) {
+                    TreeNode<K, V> f = first;
+                    TreeNode<K, V> x = new TreeNode<K, V>(k, h, v, f, xp, map);
+                    first = x;
+                    if (f != null) {
+                        f.prev = x;
+                    }
+                    if (dir <= 0) {
+                        xp.left = x;
+                    } else {
+                        xp.right = x;
+                    }
+                    if (!xp.red) {
+                        x.red = true;
+                    } else {
+                        lockRoot();
+                        try {
+                            root = balanceInsertion(root, x);
+                        } finally {
+                            unlockRoot();
+                        }
+                    }
+                    break;
                 }
-                return oldValue;
-            } finally {
-                unlock();
             }
+            assert checkInvariants(root);
+            return null;
         }
 
-        V put(final K key, final int hash, final V value, final boolean onlyIfAbsent, final Helper<K, V> helper) {
-            lock();
+        /**
+         * Removes the given node, that must be present before this call. This is messier than typical red-black deletion code because we cannot swap the contents of an
+         * interior node with a leaf successor that is pinned by "next" pointers that are accessible independently of lock. So instead we swap the tree linkages.
+         * @return true if now too small, so should be untreeified
+         */
+        boolean removeTreeNode(final TreeNode<K, V> p) {
+            TreeNode<K, V> next = (TreeNode<K, V>) p.next;
+            TreeNode<K, V> pred = p.prev; // unlink traversal pointers
+            if (pred == null) {
+                first = next;
+            } else {
+                pred.next = next;
+            }
+            if (next != null) {
+                next.prev = pred;
+            }
+            if (first == null) {
+                root = null;
+                return true;
+            }
+            TreeNode<K, V> r = root;
+            if (r == null || r.right == null || r.left == null || r.left.left == null) {
+                return true; // too small
+            }
+            lockRoot();
             try {
-                int c = count;
-                if (c++ > threshold) {
-                    rehash(helper);
+                TreeNode<K, V> replacement;
+                TreeNode<K, V> pl = p.left;
+                TreeNode<K, V> pr = p.right;
+                if (pl != null && pr != null) {
+                    TreeNode<K, V> s = pr;
+                    while (s.left != null) {
+                        s = s.left; // find successor
+                    }
+                    boolean c = s.red;
+                    s.red = p.red;
+                    p.red = c; // swap colors
+                    TreeNode<K, V> sr = s.right;
+                    TreeNode<K, V> pp = p.parent;
+                    if (s == pr) { // p was s's direct parent
+                        p.parent = s;
+                        s.right = p;
+                    } else {
+                        TreeNode<K, V> sp = s.parent;
+                        p.parent = sp;
+                        if (sp != null) {
+                            if (s == sp.left) {
+                                sp.left = p;
+                            } else {
+                                sp.right = p;
+                            }
+                        }
+                        s.right = pr;
+                        pr.parent = s;
+                    }
+                    p.left = null;
+                    p.right = sr;
+                    if (sr != null) {
+                        sr.parent = p;
+                    }
+                    s.left = pl;
+                    pl.parent = s;
+                    s.parent = pp;
+                    if (pp == null) {
+                        r = s;
+                    } else if (p == pp.left) {
+                        pp.left = s;
+                    } else {
+                        pp.right = s;
+                    }
+                    if (sr != null) {
+                        replacement = sr;
+                    } else {
+                        replacement = p;
+                    }
+                } else if (pl != null) {
+                    replacement = pl;
+                } else if (pr != null) {
+                    replacement = pr;
+                } else {
+                    replacement = p;
                 }
-                HashEntry<K, V>[] tab = table;
-                int index = hash & (tab.length - 1);
-                HashEntry<K, V> first = tab[index];
-                HashEntry<K, V> e = first;
-                while (e != null && (!helper.equals(key, hash, e))) {
-                    e = e.next;
+                if (replacement != p) {
+                    TreeNode<K, V> pp = p.parent;
+                    replacement.parent = pp;
+                    if (pp == null) {
+                        r = replacement;
+                    } else if (p == pp.left) {
+                        pp.left = replacement;
+                    } else {
+                        pp.right = replacement;
+                    }
+                    p.left = null;
+                    p.right = null;
+                    p.parent = null;
                 }
 
-                V oldValue;
-                if (e != null) {
-                    oldValue = e.value;
-                    if (!onlyIfAbsent) {
-                        e.value = value;
-                    }
+                if (p.red) {
+                    root = r;
                 } else {
-                    oldValue = null;
-                    ++modCount;
-                    tab[index] = new HashEntry<K, V>(key, hash, first, value);
-                    count = c; // write-volatile
+                    root = balanceDeletion(r, replacement);
+                }
+
+                if (p == replacement) { // detach pointers
+                    TreeNode<K, V> pp = p.parent;
+                    if (pp != null) {
+                        if (p == pp.left) {
+                            pp.left = null;
+                        } else if (p == pp.right) {
+                            pp.right = null;
+                        }
+                        p.parent = null;
+                    }
                 }
-                return oldValue;
             } finally {
-                unlock();
+                unlockRoot();
             }
+            assert checkInvariants(root);
+            return false;
         }
 
-        void rehash(final Helper<K, V> helper) {
-            HashEntry<K, V>[] oldTable = table;
-            int oldCapacity = oldTable.length;
-            if (oldCapacity >= MAXIMUM_CAPACITY) {
-                return;
-            }
-
-            /*
-             * Reclassify nodes in each list to new Map. Because we are using power-of-two expansion, the elements from each bin must either stay at same index, or move with a
-             * power of two offset. We eliminate unnecessary node creation by catching cases where old nodes can be reused because their next fields won't change. Statistically, at
-             * the default threshold, only about one-sixth of them need cloning when a table doubles. The nodes they replace will be garbage collectable as soon as they are no
-             * longer referenced by any reader thread that may be in the midst of traversing table right now.
-             */
-
-            HashEntry<K, V>[] newTable = HashEntry.newArray(oldCapacity << 1);
-            threshold = (int) (newTable.length * loadFactor);
-            int sizeMask = newTable.length - 1;
-            for (int i = 0; i < oldCapacity; i++) {
-                // We need to guarantee that any existing reads of old Map can
-                // proceed. So we cannot yet null out each bin.
-                HashEntry<K, V> e = oldTable[i];
-
-                if (e != null) {
-                    HashEntry<K, V> next = e.next;
-                    int idx = e.hash & sizeMask;
+        /* ------------------------------------------------------------ */
+        // Red-black tree methods, all adapted from CLR
 
-                    // Single node on list
-                    if (next == null) {
-                        newTable[idx] = e;
+        static <K, V> TreeNode<K, V> rotateLeft(final TreeNode<K, V> root, final TreeNode<K, V> p) {
+            TreeNode<K, V> newRoot = root;
+            if (p != null) {
+                TreeNode<K, V> r = p.right;
+                if (r != null) {
+                    TreeNode<K, V> rl = r.left;
+                    p.right = rl;
+                    if (rl != null) {
+                        rl.parent = p;
+                    }
+                    TreeNode<K, V> pp = p.parent;
+                    r.parent = pp;
+                    if (pp == null) {
+                        newRoot = r;
+                        r.red = false;
+                    } else if (pp.left == p) {
+                        pp.left = r;
                     } else {
-                        // Reuse trailing consecutive sequence at same slot
-                        HashEntry<K, V> lastRun = e;
-                        int lastIdx = idx;
-                        for (HashEntry<K, V> last = next; last != null; last = last.next) {
-                            int k = last.hash & sizeMask;
-                            if (k != lastIdx) {
-                                lastIdx = k;
-                                lastRun = last;
+                        pp.right = r;
+                    }
+                    r.left = p;
+                    p.parent = r;
+                }
+            }
+            return newRoot;
+        }
+
+        static <K, V> TreeNode<K, V> rotateRight(final TreeNode<K, V> root, final TreeNode<K, V> p) {
+            TreeNode<K, V> newRoot = root;
+            if (p != null) {
+                TreeNode<K, V> l = p.left;
+                if (l != null) {
+                    TreeNode<K, V> lr = l.right;
+                    p.left = lr;
+                    if (lr != null) {
+                        lr.parent = p;
+                    }
+                    TreeNode<K, V> pp = p.parent;
+                    l.parent = pp;
+                    if (pp == null) {
+                        newRoot = l;
+                        l.red = false;
+                    } else if (pp.right == p) {
+                        pp.right = l;
+                    } else {
+                        pp.left = l;
+                    }
+                    l.right = p;
+                    p.parent = l;
+                }
+            }
+            return newRoot;
+        }
+
+        static <K, V> TreeNode<K, V> balanceInsertion(final TreeNode<K, V> initialRoot, final TreeNode<K, V> inserted) {
+            TreeNode<K, V> root = initialRoot;
+            TreeNode<K, V> x = inserted;
+            x.red = true;
+            for (;;) {
+                TreeNode<K, V> xp = x.parent;
+                if (xp == null) {
+                    x.red = false;
+                    return x;
+                }
+                TreeNode<K, V> xpp = xp.parent;
+                if (!xp.red || xpp == null) {
+                    return root;
+                }
+                TreeNode<K, V> xppl = xpp.left;
+                if (xp == xppl) {
+                    TreeNode<K, V> xppr = xpp.right;
+                    if (xppr != null && xppr.red) {
+                        xppr.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    } else {
+                        if (x == xp.right) {
+                            x = xp;
+                            root = rotateLeft(root, x);
+                            xp = x.parent;
+                            xpp = null;
+                            if (xp != null) {
+                                xpp = xp.parent;
                             }
                         }
-                        newTable[lastIdx] = lastRun;
-
-                        // Clone all remaining nodes
-                        for (HashEntry<K, V> p = e; p != lastRun; p = p.next) {
-                            int k = p.hash & sizeMask;
-                            HashEntry<K, V> n = newTable[k];
-                            K hashEntryKey = helper.getHashEntryKey(p);
-                            if (hashEntryKey != null) {
-                                newTable[k] = new HashEntry<K, V>(hashEntryKey, p.hash, n, p.value);
+                        if (xp != null) {
+                            xp.red = false;
+                            if (xpp != null) {
+                                xpp.red = true;
+                                root = rotateRight(root, xpp);
                             }
                         }
                     }
-                }
-            }
-            table = newTable;
-        }
-
-        /**
-         * Remove; match on key only if value null, else match both.
-         */
-        V remove(final HashEntry<K, V> entry, final Helper<K, V> helper) {
-            lock();
-            try {
-                int c = count - 1;
-                HashEntry<K, V>[] tab = table;
-                int index = entry.hash & (tab.length - 1);
-                HashEntry<K, V> first = tab[index];
-                HashEntry<K, V> e = first;
-                while (e != null && (e != entry)) {
-                    e = e.next;
-                }
-
-                V oldValue = null;
-                if (e != null) {
-                    V v = e.value;
-                    oldValue = v;
-                    // All entries following removed node can stay
-                    // in list, but all preceding ones need to be
-                    // cloned.
-                    ++modCount;
-                    HashEntry<K, V> newFirst = e.next;
-                    for (HashEntry<K, V> p = first; p != e; p = p.next) {
-                        K hashEntryKey = helper.getHashEntryKey(p);
-                        if (hashEntryKey != null) {
-                            newFirst = new HashEntry<K, V>(hashEntryKey, p.hash, newFirst, p.value);
+                } else {
+                    if (xppl != null && xppl.red) {
+                        xppl.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    } else {
+                        if (x == xp.left) {
+                            x = xp;
+                            root = rotateRight(root, x);
+                            xp = x.parent;
+                            xpp = null;
+                            if (xp != null) {
+                                xpp = xp.parent;
+                            }
+                        }
+                        if (xp != null) {
+                            xp.red = false;
+                            if (xpp != null) {
+                                xpp.red = true;
+                                root = rotateLeft(root, xpp);
+                            }
                         }
                     }
-                    tab[index] = newFirst;
-                    count = c; // write-volatile
                 }
-                return oldValue;
-            } finally {
-                unlock();
             }
         }
 
-        /**
-         * Remove; match on key only if value null, else match both.
-         */
-        V remove(final Object key, final int hash, final Object value, final Helper<K, V> helper) {
-            lock();
-            try {
-                int c = count - 1;
-                HashEntry<K, V>[] tab = table;
-                int index = hash & (tab.length - 1);
-                HashEntry<K, V> first = tab[index];
-                HashEntry<K, V> e = first;
-                while (e != null && (!helper.equals(key, hash, e))) {
-                    e = e.next;
+        static <K, V> TreeNode<K, V> balanceDeletion(final TreeNode<K, V> initialRoot, final TreeNode<K, V> replacement) {
+            TreeNode<K, V> root = initialRoot;
+            TreeNode<K, V> x = replacement;
+            for (;;) {
+                if (x == null || x == root) {
+                    return root;
                 }
-
-                V oldValue = null;
-                if (e != null) {
-                    V v = e.value;
-                    if (value == null || value.equals(v)) {
-                        oldValue = v;
-                        // All entries following removed node can stay
-                        // in list, but all preceding ones need to be
-                        // cloned.
-                        ++modCount;
-                        HashEntry<K, V> newFirst = e.next;
-                        for (HashEntry<K, V> p = first; p != e; p = p.next) {
-                            K hashEntryKey = helper.getHashEntryKey(p);
-                            if (hashEntryKey != null) {
-                                newFirst = new HashEntry<K, V>(hashEntryKey, p.hash, newFirst, p.value);
+                TreeNode<K, V> xp = x.parent;
+                if (xp == null) {
+                    x.red = false;
+                    return x;
+                }
+                if (x.red) {
+                    x.red = false;
+                    return root;
+                }
+                TreeNode<K, V> xpl = xp.left;
+                if (xpl == x) {
+                    TreeNode<K, V> xpr = xp.right;
+                    if (xpr != null && xpr.red) {
+                        xpr.red = false;
+                        xp.red = true;
+                        root = rotateLeft(root, xp);
+                        xp = x.parent;
+                        xpr = null;
+                        if (xp != null) {
+                            xpr = xp.right;
+                        }
+                    }
+                    if (xpr == null) {
+                        x = xp;
+                    } else {
+                        TreeNode<K, V> sl = xpr.left;
+                        TreeNode<K, V> sr = xpr.right;
+                        if ((sr == null || !sr.red) && (sl == null || !sl.red)) {
+                            xpr.red = true;
+                            x = xp;
+                        } else {
+                            if (sr == null || !sr.red) {
+                                if (sl != null) {
+                                    sl.red = false;
+                                }
+                                xpr.red = true;
+                                root = rotateRight(root, xpr);
+                                xp = x.parent;
+                                xpr = null;
+                                if (xp != null) {
+                                    xpr = xp.right;
+                                }
                             }
+                            if (xpr != null) {
+                                xpr.red = xp != null && xp.red;
+                                sr = xpr.right;
+                                if (sr != null) {
+                                    sr.red = false;
+                                }
+                            }
+                            if (xp != null) {
+                                xp.red = false;
+                                root = rotateLeft(root, xp);
+                            }
+                            x = root;
+                        }
+                    }
+                } else { // symmetric
+                    if (xpl != null && xpl.red) {
+                        xpl.red = false;
+                        xp.red = true;
+                        root = rotateRight(root, xp);
+                        xp = x.parent;
+                        xpl = null;
+                        if (xp != null) {
+                            xpl = xp.left;
+                        }
+                    }
+                    if (xpl == null) {
+                        x = xp;
+                    } else {
+                        TreeNode<K, V> sl = xpl.left;
+                        TreeNode<K, V> sr = xpl.right;
+                        if ((sl == null || !sl.red) && (sr == null || !sr.red)) {
+                            xpl.red = true;
+                            x = xp;
+                        } else {
+                            if (sl == null || !sl.red) {
+                                if (sr != null) {
+                                    sr.red = false;
+                                }
+                                xpl.red = true;
+                                root = rotateLeft(root, xpl);
+                                xp = x.parent;
+                                xpl = null;
+                                if (xp != null) {
+                                    xpl = xp.left;
+                                }
+                            }
+                            if (xpl != null) {
+                                xpl.red = xp != null && xp.red;
+                                sl = xpl.left;
+                                if (sl != null) {
+                                    sl.red = false;
+                                }
+                            }
+                            if (xp != null) {
+                                xp.red = false;
+                                root = rotateRight(root, xp);
+                            }
+                            x = root;
                         }
-                        tab[index] = newFirst;
-                        count = c; // write-volatile
                     }
                 }
-                return oldValue;
-            } finally {
-                unlock();
             }
         }
 
-        void clear() {
-            if (count != 0) {
-                lock();
-                try {
-                    HashEntry<K, V>[] tab = table;
-                    for (int i = 0; i < tab.length; i++) {
-                        tab[i] = null;
-                    }
-                    ++modCount;
-                    count = 0; // write-volatile
-                } finally {
-                    unlock();
-                }
+        /**
+         * Checks invariants recursively for the tree of Nodes rooted at t.
+         */
+        static <K, V> boolean checkInvariants(final TreeNode<K, V> t) {
+            if (t == null) {
+                return true;
+            }
+            TreeNode<K, V> tp = t.parent;
+            TreeNode<K, V> tl = t.left;
+            TreeNode<K, V> tr = t.right;
+            TreeNode<K, V> tb = t.prev;
+            TreeNode<K, V> tn = (TreeNode<K, V>) t.next;
+            if (tb != null && tb.next != t) {
+                return false;
+            }
+            if (tn != null && tn.prev != t) {
+                return false;
             }
+            if (tp != null && t != tp.left && t != tp.right) {
+                return false;
+            }
+            if (tl != null && (tl.parent != t || tl.hash > t.hash)) {
+                return false;
+            }
+            if (tr != null && (tr.parent != t || tr.hash < t.hash)) {
+                return false;
+            }
+            if (t.red && tl != null && tl.red && tr != null && tr.red) {
+                return false;
+            }
+            return checkInvariants(tl) && checkInvariants(tr);
         }
     }
 
-    public WeakConcurrentHashMap(final int initialCapacity, final float loadFactor, final int concurrencyLevel) {
-        this(initialCapacity, loadFactor, concurrencyLevel, false);
+    /* ---------------- Small Utilities -------------- */
+
+    /**
+     * Spreads (XORs) higher bits of hash to lower and also forces top bit to 0. Because the table uses power-of-two masking, sets of hashes that vary only in bits above the
+     * current mask will always collide.
+     */
+    static int spread(final int h) {
+        return (h ^ (h >>> 16)) & HASH_BITS;
     }
 
-    private Helper<K, V> helper;
+    /**
+     * Returns a power of two table size for the given desired capacity.
+     */
+    private static int tableSizeFor(final int c) {
+        int n = c - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        if (n < 0) {
+            return 1;
+        }
+        if (n >= MAXIMUM_CAPACITY) {
+            return MAXIMUM_CAPACITY;
+        }
+        return n + 1;
+    }
 
-    /* ---------------- Public operations -------------- */
+    /**
+     * Returns the stamp bits for resizing a table of size n. Must be negative when shifted left by RESIZE_STAMP_SHIFT.
+     */
+    static int resizeStamp(final int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+
+    static <K, V> AtomicReferenceArray<Node<K, V>> newTable(final int n) {
+        return new AtomicReferenceArray<Node<K, V>>(n);
+    }
 
     /**
-     * Creates a new, empty map with the specified initial capacity, load factor and concurrency level.
-     * @param initialCapacity the initial capacity. The implementation performs internal sizing to accommodate this many elements.
-     * @param loadFactor the load factor threshold, used to control resizing. Resizing may be performed when the average number of elements per bin exceeds this threshold.
-     * @param concurrencyLevel the estimated number of concurrently updating threads. The implementation performs internal sizing to try to accommodate this many threads.
-     * @throws IllegalArgumentException if the initial capacity is negative or the load factor or concurrencyLevel are nonpositive.
+     * Returns the spread hash of a key, its <tt>hashCode</tt> is not called in identity mode.
      */
-    public WeakConcurrentHashMap(int initialCapacity, final float loadFactor, int concurrencyLevel, final boolean identityEquality) {
-        if (!(loadFactor > 0) || initialCapacity < 0 || concurrencyLevel <= 0) {
-            throw new IllegalArgumentException();
+    final int hashOf(final Object key) {
+        if (identityEquality) {
+            return spread(System.identityHashCode(key));
         }
+        return spread(key.hashCode());
+    }
 
-        helper = new Helper<K, V>(this, identityEquality);
+    final boolean keyEquals(final Object key, final Object nodeKey) {
+        return key == nodeKey || (nodeKey != null && !identityEquality && key.equals(nodeKey));
+    }
 
-        if (concurrencyLevel > MAX_SEGMENTS) {
-            concurrencyLevel = MAX_SEGMENTS;
-        }
+    /* ---------------- Public operations -------------- */
 
-        // Find power-of-two sizes best matching arguments
-        int sshift = 0;
-        int ssize = 1;
-        while (ssize < concurrencyLevel) {
-            ++sshift;
-            ssize <<= 1;
-        }
-        segmentShift = 32 - sshift;
-        segmentMask = ssize - 1;
-        this.segments = Segment.newArray(ssize);
+    public WeakConcurrentHashMap(final int initialCapacity, final float loadFactor, final int concurrencyLevel) {
+        this(initialCapacity, loadFactor, concurrencyLevel, false);
+    }
 
-        if (initialCapacity > MAXIMUM_CAPACITY) {
-            initialCapacity = MAXIMUM_CAPACITY;
+    /**
+     * Creates a new, empty map with an initial table size based on the given number of elements ({@code initialCapacity}), table density ({@code loadFactor}), and number of
+     * concurrently updating threads ({@code concurrencyLevel}).
+     * @param initialCapacity the initial capacity. The implementation performs internal sizing to accommodate this many elements, given the specified load factor.
+     * @param loadFactor the load factor (table density) for establishing the initial table size
+     * @param concurrencyLevel the estimated number of concurrently updating threads. The implementation may use this value as a sizing hint.
+     * @param identityEquality if keys must be compared with <tt>==</tt> and hashed with {@link System#identityHashCode(Object)}
+     * @throws IllegalArgumentException if the initial capacity is negative or the load factor or concurrencyLevel are nonpositive.
+     */
+    public WeakConcurrentHashMap(int initialCapacity, final float loadFactor, final int concurrencyLevel, final boolean identityEquality) {
+        if (!(loadFactor > 0) || initialCapacity < 0 || concurrencyLevel <= 0) {
+            throw new IllegalArgumentException();
         }
-        int c = initialCapacity / ssize;
-        if (c * ssize < initialCapacity) {
-            ++c;
+        this.identityEquality = identityEquality;
+        if (initialCapacity < concurrencyLevel) {
+            // Use at least as many bins as estimated threads
+            initialCapacity = concurrencyLevel;
         }
-        int cap = 1;
-        while (cap < c) {
-            cap <<= 1;
+        long size = (long) (1.0 + (long) initialCapacity / loadFactor);
+        if (size >= (long) MAXIMUM_CAPACITY) {
+            this.sizeCtl = MAXIMUM_CAPACITY;
+        } else {
+            this.sizeCtl = tableSizeFor((int) size);
         }
+        initReclamation();
+    }
 
-        for (int i = 0; i < this.segments.length; ++i) {
-            this.segments[i] = new Segment<K, V>(cap, loadFactor);
-        }
+    /**
+     * Creates a new, empty map whose keys are compared with <tt>==</tt> and hashed with {@link System#identityHashCode(Object)}, like in {@link java.util.IdentityHashMap}.
+     * Neither <tt>hashCode</tt> nor <tt>equals</tt> of the keys is called.
+     * @param <K> the type of keys maintained by this map
+     * @param <V> the type of mapped values
+     * @return the new map
+     */
+    public static <K, V> WeakConcurrentHashMap<K, V> newIdentityMap() {
+        return new WeakConcurrentHashMap<K, V>(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL, true);
     }
 
     /**
@@ -668,37 +1266,26 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
         putAll(m);
     }
 
+    /**
+     * Creates the counter. Call only in constructor or while deserializing.
+     */
+    private void initReclamation() {
+        count = new StripedCounter();
+    }
+
+    static ReferenceQueue<Object> queueOf(final WeakConcurrentHashMap<?, ?> map) {
+        if (map == null) {
+            return null;
+        }
+        return ReferenceReaper.getQueue();
+    }
+
     /**
      * Returns <tt>true</tt> if this map contains no key-value mappings.
      * @return <tt>true</tt> if this map contains no key-value mappings
      */
     public boolean isEmpty() {
-        final Segment<K, V>[] segments = this.segments;
-        /*
-         * We keep track of per-segment modCounts to avoid ABA problems in which an element in one segment was added and in another removed during traversal, in which case the
-         * table was never actually empty at any point. Note the similar use of modCounts in the size() and containsValue() methods, which are the only other methods also
-         * susceptible to ABA problems.
-         */
-        int[] mc = new int[segments.length];
-        int mcsum = 0;
-        for (int i = 0; i < segments.length; ++i) {
-            if (segments[i].count != 0) {
-                return false;
-            } else {
-                mcsum += mc[i] = segments[i].modCount;
-            }
-        }
-        // If mcsum happens to be zero, then we know we got a snapshot
-        // before any modifications at all were made. This is
-        // probably common enough to bother tracking.
-        if (mcsum != 0) {
-            for (int i = 0; i < segments.length; ++i) {
-                if (segments[i].count != 0 || mc[i] != segments[i].modCount) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return count.sum() <= 0L;
     }
 
     /**
@@ -706,50 +1293,26 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @return the number of key-value mappings in this map
      */
     public int size() {
-        final Segment<K, V>[] segments = this.segments;
-        long sum = 0;
-        long check = 0;
-        int[] mc = new int[segments.length];
-        // Try a few times to get accurate count. On failure due to
-        // continuous async changes in table, resort to locking.
-        for (int k = 0; k < RETRIES_BEFORE_LOCK; ++k) {
-            check = 0;
-            sum = 0;
-            int mcsum = 0;
-            for (int i = 0; i < segments.length; ++i) {
-                sum += segments[i].count;
-                mcsum += mc[i] = segments[i].modCount;
-            }
-            if (mcsum != 0) {
-                for (int i = 0; i < segments.length; ++i) {
-                    check += segments[i].count;
-                    if (mc[i] != segments[i].modCount) {
-                        check = -1; // force retry
-                        break;
-                    }
-                }
-            }
-            if (check == sum) {
-                break;
-            }
-        }
-        if (check != sum) { // Resort to locking all segments
-            sum = 0;
-            for (int i = 0; i < segments.length; ++i) {
-                segments[i].lock();
-            }
-            for (int i = 0; i < segments.length; ++i) {
-                sum += segments[i].count;
-            }
-            for (int i = 0; i < segments.length; ++i) {
-                segments[i].unlock();
-            }
-        }
-        if (sum > Integer.MAX_VALUE) {
+        long n = mappingCount();
+        if (n > (long) Integer.MAX_VALUE) {
             return Integer.MAX_VALUE;
-        } else {
-            return (int) sum;
         }
+        return (int) n;
+    }
+
+    /**
+     * Returns the number of mappings. This method should be used instead of {@link #size()} because a map may contain more mappings than can be represented as an int. The
+     * value returned is an estimate: the actual count may differ if there are concurrent insertions, removals or reclamations. A mapping whose key was reclaimed is counted
+     * until the reaper thread, or the next write when the thread is not running, removes it.
+     * @return the number of mappings
+     */
+    public long mappingCount() {
+        long n = count.sum();
+        if (n < 0L) {
+            // transient negative values are possible while removals race with insertions
+            return 0L;
+        }
+        return n;
     }
 
     /**
@@ -760,8 +1323,87 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if the specified key is null
      */
     public V get(final Object key) {
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).get(key, hash, helper);
+        V value = null;
+        Node<K, V> e = findNode(key, hashOf(key));
+        if (e != null) {
+            value = e.val;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value mapped to the key designated by the probe, without allocating a key to compare with. Tree bins are searched linearly because the probe cannot be
+     * ordered with the keys.
+     * @param probe the object to look for
+     * @param hashCode the hash code of the keys designated by the probe, their identity hash code in identity mode
+     * @param equivalence the key comparison
+     * @param <P> probe type
+     * @return the value or null if none
+     */
+    public <P> V get(final P probe, final int hashCode, final KeyEquivalence<? super P> equivalence) {
+        int h = spread(hashCode);
+        V value = null;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        outer: while (tab != null) {
+            int n = tab.length();
+            if (n == 0) {
+                break;
+            }
+            Node<K, V> e = tab.get((n - 1) & h);
+            while (e != null) {
+                int eh = e.hash;
+                if (eh == h) {
+                    K ek = e.get();
+                    if (ek != null && equivalence.equivalent(probe, ek)) {
+                        value = e.val;
+                        break outer;
+                    }
+                } else if (eh == MOVED) {
+                    tab = ((ForwardingNode<K, V>) e).nextTable;
+                    continue outer;
+                } else if (eh == TREEBIN) {
+                    e = ((TreeBin<K, V>) e).first;
+                    continue;
+                }
+                e = e.next;
+            }
+            break;
+        }
+        return value;
+    }
+
+    /**
+     * Lock-free lookup of the node holding the given key.
+     */
+    final Node<K, V> findNode(final Object key, final int h) {
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        if (tab == null) {
+            return null;
+        }
+        int n = tab.length();
+        if (n == 0) {
+            return null;
+        }
+        Node<K, V> e = tab.get((n - 1) & h);
+        if (e == null) {
+            return null;
+        }
+        int eh = e.hash;
+        if (eh == h) {
+            if (keyEquals(key, e.get())) {
+                return e;
+            }
+        } else if (eh < 0) {
+            return e.find(h, key, identityEquality);
+        }
+        e = e.next;
+        while (e != null) {
+            if (e.hash == h && keyEquals(key, e.get())) {
+                return e;
+            }
+            e = e.next;
+        }
+        return null;
     }
 
     /**
@@ -771,8 +1413,7 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if the specified key is null
      */
     public boolean containsKey(final Object key) {
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).containsKey(key, hash, helper);
+        return get(key) != null;
     }
 
     /**
@@ -786,55 +1427,17 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
         if (value == null) {
             throw new NullPointerException();
         }
-
-        // See explanation of modCount use above
-
-        final Segment<K, V>[] segments = this.segments;
-        int[] mc = new int[segments.length];
-
-        // Try a few times without locking
-        for (int k = 0; k < RETRIES_BEFORE_LOCK; ++k) {
-            int sum = 0;
-            int mcsum = 0;
-            for (int i = 0; i < segments.length; ++i) {
-                int c = segments[i].count;
-                mcsum += mc[i] = segments[i].modCount;
-                if (segments[i].containsValue(value)) {
+        AtomicReferenceArray<Node<K, V>> t = table;
+        if (t != null) {
+            Traverser<K, V> it = new Traverser<K, V>(t, t.length(), 0, t.length());
+            for (Node<K, V> p = it.advance(); p != null; p = it.advance()) {
+                V v = p.val;
+                if (v != null && p.get() != null && (v == value || value.equals(v))) {
                     return true;
                 }
             }
-            boolean cleanSweep = true;
-            if (mcsum != 0) {
-                for (int i = 0; i < segments.length; ++i) {
-                    int c = segments[i].count;
-                    if (mc[i] != segments[i].modCount) {
-                        cleanSweep = false;
-                        break;
-                    }
-                }
-            }
-            if (cleanSweep) {
-                return false;
-            }
-        }
-        // Resort to locking all segments
-        for (int i = 0; i < segments.length; ++i) {
-            segments[i].lock();
-        }
-        boolean found = false;
-        try {
-            for (int i = 0; i < segments.length; ++i) {
-                if (segments[i].containsValue(value)) {
-                    found = true;
-                    break;
-                }
-            }
-        } finally {
-            for (int i = 0; i < segments.length; ++i) {
-                segments[i].unlock();
-            }
         }
-        return found;
+        return false;
     }
 
     /**
@@ -858,11 +1461,7 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if the specified key or value is null
      */
     public V put(final K key, final V value) {
-        if (value == null) {
-            throw new NullPointerException();
-        }
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).put(key, hash, value, false, helper);
+        return putVal(key, value, false);
     }
 
     /**
@@ -871,11 +1470,84 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if the specified key or value is null
      */
     public V putIfAbsent(final K key, final V value) {
-        if (value == null) {
+        return putVal(key, value, true);
+    }
+
+    /**
+     * Implementation for put and putIfAbsent.
+     */
+    final V putVal(final K key, final V value, final boolean onlyIfAbsent) {
+        if (key == null || value == null) {
             throw new NullPointerException();
         }
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).put(key, hash, value, true, helper);
+        expungeStaleEntries();
+        int hash = hashOf(key);
+        int binCount = 0;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        for (;;) {
+            int n;
+            if (tab == null || (n = tab.length()) == 0) {
+                tab = initTable();
+                continue;
+            }
+            int i = (n - 1) & hash;
+            Node<K, V> f = tab.get(i);
+            if (f == null) {
+                if (tab.compareAndSet(i, null, new Node<K, V>(key, hash, value, null, this))) {
+                    break; // no lock when adding to empty bin
+                }
+            } else if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+            } else {
+                V oldVal = null;
+                synchronized (f) {
+                    if (tab.get(i) == f) {
+                        if (f.hash >= 0) {
+                            binCount = 1;
+                            Node<K, V> e = f;
+                            for (;;) {
+                                if (e.hash == hash && keyEquals(key, e.get())) {
+                                    oldVal = e.val;
+                                    if (!onlyIfAbsent) {
+                                        e.val = value;
+                                    }
+                                    break;
+                                }
+                                Node<K, V> pred = e;
+                                e = e.next;
+                                if (e == null) {
+                                    pred.next = new Node<K, V>(key, hash, value, null, this);
+                                    break;
+                                }
+                                ++binCount;
+                            }
+                        } else if (f instanceof TreeBin) {
+                            binCount = 2;
+                            TreeNode<K, V> p = ((TreeBin<K, V>) f).putTreeVal(hash, key, value, this);
+                            if (p != null) {
+                                oldVal = p.val;
+                                if (!onlyIfAbsent) {
+                                    p.val = value;
+                                }
+                            }
+                        } else if (f instanceof ReservationNode) {
+                            throw new IllegalStateException("Recursive update");
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD) {
+                        treeifyBin(tab, i);
+                    }
+                    if (oldVal != null) {
+                        return oldVal;
+                    }
+                    break;
+                }
+            }
+        }
+        addCount(1L, binCount);
+        return null;
     }
 
     /**
@@ -895,8 +1567,7 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if the specified key is null
      */
     public V remove(final Object key) {
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).remove(key, hash, null, helper);
+        return replaceNode(key, null, null);
     }
 
     /**
@@ -904,11 +1575,10 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if the specified key is null
      */
     public boolean remove(final Object key, final Object value) {
-        int hash = hash(key.hashCode());
-        if (value == null) {
-            return false;
+        if (key == null) {
+            throw new NullPointerException();
         }
-        return segmentFor(hash).remove(key, hash, value, helper) != null;
+        return value != null && replaceNode(key, null, value) != null;
     }
 
     /**
@@ -916,11 +1586,10 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if any of the arguments are null
      */
     public boolean replace(final K key, final V oldValue, final V newValue) {
-        if (oldValue == null || newValue == null) {
+        if (key == null || oldValue == null || newValue == null) {
             throw new NullPointerException();
         }
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).replace(key, hash, oldValue, newValue, helper);
+        return replaceNode(key, newValue, oldValue) != null;
     }
 
     /**
@@ -929,19 +1598,203 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * @throws NullPointerException if the specified key or value is null
      */
     public V replace(final K key, final V value) {
-        if (value == null) {
+        if (key == null || value == null) {
             throw new NullPointerException();
         }
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).replace(key, hash, value, helper);
+        return replaceNode(key, value, null);
+    }
+
+    /**
+     * Implementation for the four public remove/replace methods: Replaces node value with v, conditional upon match of cv if non-null. If resulting value is null, delete.
+     */
+    final V replaceNode(final Object key, final V value, final Object cv) {
+        expungeStaleEntries();
+        int hash = hashOf(key);
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        for (;;) {
+            int n;
+            int i;
+            Node<K, V> f;
+            if (tab == null || (n = tab.length()) == 0 || (f = tab.get(i = (n - 1) & hash)) == null) {
+                break;
+            }
+            if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+            } else {
+                V oldVal = null;
+                boolean validated = false;
+                synchronized (f) {
+                    if (tab.get(i) == f) {
+                        if (f.hash >= 0) {
+                            validated = true;
+                            Node<K, V> e = f;
+                            Node<K, V> pred = null;
+                            for (;;) {
+                                if (e.hash == hash && keyEquals(key, e.get())) {
+                                    V ev = e.val;
+                                    if (cv == null || cv == ev || (ev != null && cv.equals(ev))) {
+                                        oldVal = ev;
+                                        if (value != null) {
+                                            e.val = value;
+                                        } else if (pred != null) {
+                                            pred.next = e.next;
+                                        } else {
+                                            tab.set(i, e.next);
+                                        }
+                                    }
+                                    break;
+                                }
+                                pred = e;
+                                e = e.next;
+                                if (e == null) {
+                                    break;
+                                }
+                            }
+                        } else if (f instanceof TreeBin) {
+                            validated = true;
+                            TreeBin<K, V> t = (TreeBin<K, V>) f;
+                            TreeNode<K, V> r = t.root;
+                            if (r != null) {
+                                TreeNode<K, V> p = r.findTreeNode(hash, key, null, identityEquality, t.identityHashOf(key));
+                                if (p != null) {
+                                    V pv = p.val;
+                                    if (cv == null || cv == pv || (pv != null && cv.equals(pv))) {
+                                        oldVal = pv;
+                                        if (value != null) {
+                                            p.val = value;
+                                        } else {
+                                            p.unlinked = true;
+                                            if (t.removeTreeNode(p)) {
+                                                tab.set(i, untreeify(t.first));
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        } else if (f instanceof ReservationNode) {
+                            throw new IllegalStateException("Recursive update");
+                        }
+                    }
+                }
+                if (validated) {
+                    if (oldVal != null) {
+                        if (value == null) {
+                            addCount(-1L, -1);
+                        }
+                        return oldVal;
+                    }
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes a node whose key was reclaimed, if it is still in the table.
+     */
+    final void removeReclaimed(final Node<K, V> node) {
+        int hash = node.hash;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        for (;;) {
+            int n;
+            int i;
+            Node<K, V> f;
+            if (tab == null || (n = tab.length()) == 0 || (f = tab.get(i = (n - 1) & hash)) == null) {
+                return;
+            }
+            if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+            } else {
+                boolean removed = false;
+                boolean validated = false;
+                synchronized (f) {
+                    if (tab.get(i) == f && f instanceof TreeBin) {
+                        validated = true;
+                        // a tree node which is not unlinked can only be in the bin of its hash
+                        if (node instanceof TreeNode && !((TreeNode<K, V>) node).unlinked) {
+                            TreeBin<K, V> t = (TreeBin<K, V>) f;
+                            TreeNode<K, V> p = (TreeNode<K, V>) node;
+                            p.unlinked = true;
+                            p.val = null;
+                            removed = true;
+                            if (t.removeTreeNode(p)) {
+                                tab.set(i, untreeify(t.first));
+                            }
+                        }
+                    } else if (tab.get(i) == f) {
+                        validated = true;
+                        Node<K, V> pred = null;
+                        for (Node<K, V> e = f; e != null; e = e.next) {
+                            if (e == node) {
+                                if (pred != null) {
+                                    pred.next = e.next;
+                                } else {
+                                    tab.set(i, e.next);
+                                }
+                                // the key is gone, so no reader can match this node anymore
+                                e.val = null;
+                                removed = true;
+                                break;
+                            }
+                            pred = e;
+                        }
+                    }
+                }
+                if (validated) {
+                    if (removed) {
+                        addCount(-1L, -1);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all nodes whose key was reclaimed and which are already enqueued, unless the reaper thread does it. Only called by writers.
+     */
+    final void expungeStaleEntries() {
+        ReferenceReaper.expunge();
     }
 
     /**
      * Removes all of the mappings from this map.
      */
     public void clear() {
-        for (int i = 0; i < segments.length; ++i) {
-            segments[i].clear();
+        long delta = 0L; // negative number of deletions
+        int i = 0;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        while (tab != null && i < tab.length()) {
+            Node<K, V> f = tab.get(i);
+            if (f == null) {
+                ++i;
+            } else if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+                i = 0; // restart
+            } else {
+                synchronized (f) {
+                    if (tab.get(i) == f) {
+                        Node<K, V> p = f;
+                        if (f instanceof TreeBin) {
+                            p = ((TreeBin<K, V>) f).first;
+                        } else if (f instanceof ReservationNode) {
+                            p = null;
+                        }
+                        while (p != null) {
+                            if (p instanceof TreeNode) {
+                                ((TreeNode<K, V>) p).unlinked = true;
+                            }
+                            --delta;
+                            p = p.next;
+                        }
+                        tab.set(i++, null);
+                    }
+                }
+            }
+        }
+        if (delta != 0L) {
+            addCount(delta, -1);
         }
     }
 
@@ -955,7 +1808,11 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      */
     public Set<K> keySet() {
         Set<K> ks = keySet;
-        return (ks != null) ? ks : (keySet = new KeySet());
+        if (ks == null) {
+            ks = new KeySet();
+            keySet = ks;
+        }
+        return ks;
     }
 
     /**
@@ -968,7 +1825,11 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      */
     public Collection<V> values() {
         Collection<V> vs = values;
-        return (vs != null) ? vs : (values = new Values());
+        if (vs == null) {
+            vs = new Values();
+            values = vs;
+        }
+        return vs;
     }
 
     /**
@@ -981,7 +1842,11 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      */
     public Set<Map.Entry<K, V>> entrySet() {
         Set<Map.Entry<K, V>> es = entrySet;
-        return (es != null) ? es : (entrySet = new EntrySet());
+        if (es == null) {
+            es = new EntrySet();
+            entrySet = es;
+        }
+        return es;
     }
 
     /**
@@ -1002,109 +1867,643 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
         return new ValueIterator();
     }
 
-    /* ---------------- Iterator Support -------------- */
+    /* ---------------- Table Initialization and Resizing -------------- */
 
-    abstract class HashIterator {
-        int nextSegmentIndex;
+    /**
+     * Initializes table, using the size recorded in sizeCtl.
+     */
+    final AtomicReferenceArray<Node<K, V>> initTable() {
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        while (tab == null || tab.length() == 0) {
+            int sc = sizeCtl;
+            if (sc < 0) {
+                Thread.yield(); // lost initialization race; just spin
+            } else if (SIZECTL.compareAndSet(this, sc, -1)) {
+                try {
+                    tab = table;
+                    if (tab == null || tab.length() == 0) {
+                        int n = DEFAULT_INITIAL_CAPACITY;
+                        if (sc > 0) {
+                            n = sc;
+                        }
+                        tab = newTable(n);
+                        table = tab;
+                        sc = n - (n >>> 2);
+                    }
+                } finally {
+                    sizeCtl = sc;
+                }
+                break;
+            }
+            tab = table;
+        }
+        return tab;
+    }
 
-        int nextTableIndex;
+    /**
+     * Adds to count, and if table is too small and not already resizing, initiates transfer. If already resizing, helps perform transfer if work is available. Rechecks occupancy
+     * after a transfer to see if another resize is already needed because resizings are lagging additions.
+     * @param x the count to add
+     * @param check if <0, don't check resize
+     */
+    final void addCount(final long x, final int check) {
+        count.add(x);
+        if (check >= 0) {
+            long s = count.sum();
+            AtomicReferenceArray<Node<K, V>> tab;
+            int n;
+            int sc;
+            while (s >= (long) (sc = sizeCtl) && (tab = table) != null && (n = tab.length()) < MAXIMUM_CAPACITY) {
+                int rs = resizeStamp(n) << RESIZE_STAMP_SHIFT;
+                if (sc < 0) {
+                    AtomicReferenceArray<Node<K, V>> nt = nextTable;
+                    if (sc == rs + MAX_RESIZERS || sc == rs + 1 || nt == null || transferIndex <= 0) {
+                        break;
+                    }
+                    if (SIZECTL.compareAndSet(this, sc, sc + 1)) {
+                        transfer(tab, nt);
+                    }
+                } else if (SIZECTL.compareAndSet(this, sc, rs + 2)) {
+                    transfer(tab, null);
+                }
+                s = count.sum();
+            }
+        }
+    }
 
-        HashEntry<K, V>[] currentTable;
+    /**
+     * Helps transfer if a resize is in progress.
+     */
+    final AtomicReferenceArray<Node<K, V>> helpTransfer(final AtomicReferenceArray<Node<K, V>> tab, final Node<K, V> f) {
+        if (tab != null && (f instanceof ForwardingNode)) {
+            AtomicReferenceArray<Node<K, V>> nextTab = ((ForwardingNode<K, V>) f).nextTable;
+            if (nextTab != null) {
+                int rs = resizeStamp(tab.length()) << RESIZE_STAMP_SHIFT;
+                int sc;
+                while (nextTab == nextTable && table == tab && (sc = sizeCtl) < 0) {
+                    if (sc == rs + MAX_RESIZERS || sc == rs + 1 || transferIndex <= 0) {
+                        break;
+                    }
+                    if (SIZECTL.compareAndSet(this, sc, sc + 1)) {
+                        transfer(tab, nextTab);
+                        break;
+                    }
+                }
+                return nextTab;
+            }
+        }
+        return table;
+    }
 
-        HashEntry<K, V> nextEntry;
+    /**
+     * Moves and/or copies the nodes in each bin to new table.
+     */
+    private void transfer(final AtomicReferenceArray<Node<K, V>> tab, final AtomicReferenceArray<Node<K, V>> nt) {
+        AtomicReferenceArray<Node<K, V>> nextTab = nt;
+        int n = tab.length();
+        int stride = n;
+        if (NCPU > 1) {
+            stride = (n >>> 3) / NCPU;
+        }
+        if (stride < MIN_TRANSFER_STRIDE) {
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        }
+        if (nextTab == null) { // initiating
+            try {
+                nextTab = newTable(n << 1);
+            } catch (OutOfMemoryError ex) {
+                sizeCtl = Integer.MAX_VALUE;
+                return;
+            }
+            nextTable = nextTab;
+            transferIndex = n;
+        }
+        int nextn = nextTab.length();
+        ForwardingNode<K, V> fwd = new ForwardingNode<K, V>(nextTab);
+        boolean advance = true;
+        boolean finishing = false; // to ensure sweep before committing nextTab
+        int i = 0;
+        int bound = 0;
+        for (;;) {
+            while (advance) {
+                int nextIndex;
+                if (--i >= bound || finishing) {
+                    advance = false;
+                } else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                } else {
+                    int nextBound = 0;
+                    if (nextIndex > stride) {
+                        nextBound = nextIndex - stride;
+                    }
+                    if (TRANSFERINDEX.compareAndSet(this, nextIndex, nextBound)) {
+                        bound = nextBound;
+                        i = nextIndex - 1;
+                        advance = false;
+                    }
+                }
+            }
+            if (i < 0 || i >= n || i + n >= nextn) {
+                if (finishing) {
+                    nextTable = null;
+                    table = nextTab;
+                    sizeCtl = (n << 1) - (n >>> 1);
+                    return;
+                }
+                int sc = sizeCtl;
+                if (SIZECTL.compareAndSet(this, sc, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT) {
+                        return;
+                    }
+                    finishing = true;
+                    advance = true;
+                    i = n; // recheck before commit
+                }
+            } else {
+                Node<K, V> f = tab.get(i);
+                if (f == null) {
+                    advance = tab.compareAndSet(i, null, fwd);
+                } else if (f.hash == MOVED) {
+                    advance = true; // already processed
+                } else {
+                    int dropped = 0;
+                    synchronized (f) {
+                        if (tab.get(i) == f) {
+                            if (f instanceof TreeBin) {
+                                dropped = transferTreeBin((TreeBin<K, V>) f, n, nextTab, i);
+                            } else if (f instanceof ReservationNode) {
+                                throw new IllegalStateException("Recursive update");
+                            } else {
+                                dropped = transferBin(f, n, nextTab, i);
+                            }
+                            tab.set(i, fwd);
+                            advance = true;
+                        }
+                    }
+                    if (dropped != 0) {
+                        addCount(-dropped, -1);
+                    }
+                }
+            }
+        }
+    }
 
-        HashEntry<K, V> lastReturned;
+    /**
+     * Splits a bin in a low and a high list. Call only while holding the lock of the first node of the bin.
+     * @return the number of nodes dropped because their key was reclaimed
+     */
+    private int transferBin(final Node<K, V> f, final int n, final AtomicReferenceArray<Node<K, V>> nextTab, final int i) {
+        int runBit = f.hash & n;
+        Node<K, V> lastRun = f;
+        for (Node<K, V> p = f.next; p != null; p = p.next) {
+            int b = p.hash & n;
+            if (b != runBit) {
+                runBit = b;
+                lastRun = p;
+            }
+        }
+        Node<K, V> ln = null;
+        Node<K, V> hn = null;
+        if (runBit == 0) {
+            ln = lastRun;
+        } else {
+            hn = lastRun;
+        }
+        int dropped = 0;
+        for (Node<K, V> p = f; p != lastRun; p = p.next) {
+            int ph = p.hash;
+            K pk = p.get();
+            if (pk == null) {
+                p.val = null;
+                dropped++;
+            } else if ((ph & n) == 0) {
+                ln = new Node<K, V>(pk, ph, p.val, ln, this);
+            } else {
+                hn = new Node<K, V>(pk, ph, p.val, hn, this);
+            }
+        }
+        nextTab.set(i, ln);
+        nextTab.set(i + n, hn);
+        return dropped;
+    }
 
-        HashIterator() {
-            nextSegmentIndex = segments.length - 1;
-            nextTableIndex = -1;
-            advance();
+    /**
+     * Splits a TreeBin in a low and a high bin, reusing it if all its nodes stay in the same bin. Call only while holding the lock of the TreeBin.
+     * @return the number of nodes dropped because their key was reclaimed
+     */
+    private int transferTreeBin(final TreeBin<K, V> t, final int n, final AtomicReferenceArray<Node<K, V>> nextTab, final int i) {
+        int lc = 0;
+        int hc = 0;
+        boolean reclaimed = false;
+        for (Node<K, V> e = t.first; e != null; e = e.next) {
+            if (e.get() == null) {
+                reclaimed = true;
+            } else if ((e.hash & n) == 0) {
+                ++lc;
+            } else {
+                ++hc;
+            }
+        }
+        if (!reclaimed && hc == 0 && lc > UNTREEIFY_THRESHOLD) {
+            nextTab.set(i, t);
+            nextTab.set(i + n, null);
+            return 0;
+        }
+        if (!reclaimed && lc == 0 && hc > UNTREEIFY_THRESHOLD) {
+            nextTab.set(i, null);
+            nextTab.set(i + n, t);
+            return 0;
+        }
+        TreeNode<K, V> lo = null;
+        TreeNode<K, V> loTail = null;
+        TreeNode<K, V> hi = null;
+        TreeNode<K, V> hiTail = null;
+        int dropped = 0;
+        for (Node<K, V> e = t.first; e != null; e = e.next) {
+            TreeNode<K, V> old = (TreeNode<K, V>) e;
+            old.unlinked = true;
+            K k = old.get();
+            if (k == null) {
+                old.val = null;
+                dropped++;
+                continue;
+            }
+            int h = old.hash;
+            TreeNode<K, V> p = new TreeNode<K, V>(k, h, old.val, null, null, this);
+            if ((h & n) == 0) {
+                p.prev = loTail;
+                if (loTail == null) {
+                    lo = p;
+                } else {
+                    loTail.next = p;
+                }
+                loTail = p;
+            } else {
+                p.prev = hiTail;
+                if (hiTail == null) {
+                    hi = p;
+                } else {
+                    hiTail.next = p;
+                }
+                hiTail = p;
+            }
         }
+        nextTab.set(i, newBin(lo, lc));
+        nextTab.set(i + n, newBin(hi, hc));
+        return dropped;
+    }
 
-        public boolean hasMoreElements() {
-            return hasNext();
+    /**
+     * Returns a bin for a list of new tree nodes: a TreeBin if the list is long enough, else a plain list.
+     */
+    private Node<K, V> newBin(final TreeNode<K, V> hd, final int size) {
+        if (hd == null) {
+            return null;
+        }
+        if (size <= UNTREEIFY_THRESHOLD) {
+            return untreeify(hd);
         }
+        return new TreeBin<K, V>(hd, identityEquality);
+    }
 
-        final void advance() {
-            if (nextEntry != null && (nextEntry = nextEntry.next) != null) {
-                return;
+    /**
+     * Replaces all linked nodes in bin at given index unless table is too small, in which case resizes instead.
+     */
+    final void treeifyBin(final AtomicReferenceArray<Node<K, V>> tab, final int index) {
+        if (tab == null) {
+            return;
+        }
+        int n = tab.length();
+        if (n < MIN_TREEIFY_CAPACITY) {
+            tryPresize(n << 1);
+            return;
+        }
+        Node<K, V> b = tab.get(index);
+        if (b != null && b.hash >= 0) {
+            int dropped = 0;
+            synchronized (b) {
+                if (tab.get(index) == b) {
+                    TreeNode<K, V> hd = null;
+                    TreeNode<K, V> tl = null;
+                    int size = 0;
+                    for (Node<K, V> e = b; e != null; e = e.next) {
+                        K k = e.get();
+                        if (k == null) {
+                            e.val = null;
+                            dropped++;
+                            continue;
+                        }
+                        TreeNode<K, V> p = new TreeNode<K, V>(k, e.hash, e.val, null, null, this);
+                        p.prev = tl;
+                        if (tl == null) {
+                            hd = p;
+                        } else {
+                            tl.next = p;
+                        }
+                        tl = p;
+                        size++;
+                    }
+                    tab.set(index, newBin(hd, size));
+                }
             }
+            if (dropped != 0) {
+                addCount(-dropped, -1);
+            }
+        }
+    }
 
-            while (nextTableIndex >= 0) {
-                if ((nextEntry = currentTable[nextTableIndex--]) != null) {
-                    return;
-                }
+    /**
+     * Returns a list of non-TreeNodes replacing those in given list. The tree nodes are flagged as unlinked and the ones whose key was reclaimed are dropped. Call only while
+     * holding the bin lock.
+     */
+    final Node<K, V> untreeify(final Node<K, V> b) {
+        Node<K, V> hd = null;
+        Node<K, V> tl = null;
+        int dropped = 0;
+        for (Node<K, V> q = b; q != null; q = q.next) {
+            if (q instanceof TreeNode) {
+                ((TreeNode<K, V>) q).unlinked = true;
+            }
+            K k = q.get();
+            if (k == null) {
+                q.val = null;
+                dropped++;
+                continue;
             }
+            Node<K, V> p = new Node<K, V>(k, q.hash, q.val, null, this);
+            if (tl == null) {
+                hd = p;
+            } else {
+                tl.next = p;
+            }
+            tl = p;
+        }
+        if (dropped != 0) {
+            // no resize check, the caller holds a bin lock
+            count.add(-dropped);
+        }
+        return hd;
+    }
 
-            while (nextSegmentIndex >= 0) {
-                Segment<K, V> seg = segments[nextSegmentIndex--];
-                if (seg.count != 0) {
-                    currentTable = seg.table;
-                    for (int j = currentTable.length - 1; j >= 0; --j) {
-                        if ((nextEntry = currentTable[j]) != null) {
-                            nextTableIndex = j - 1;
-                            return;
+    /**
+     * Tries to presize table to accommodate the given number of elements.
+     * @param size number of elements (doesn't need to be perfectly accurate)
+     */
+    private void tryPresize(final int size) {
+        int c = MAXIMUM_CAPACITY;
+        if (size < (MAXIMUM_CAPACITY >>> 1)) {
+            c = tableSizeFor(size + (size >>> 1) + 1);
+        }
+        int sc = sizeCtl;
+        while (sc >= 0) {
+            AtomicReferenceArray<Node<K, V>> tab = table;
+            int n;
+            if (tab == null || (n = tab.length()) == 0) {
+                n = Math.max(sc, c);
+                if (SIZECTL.compareAndSet(this, sc, -1)) {
+                    try {
+                        if (table == tab) {
+                            table = newTable(n);
+                            sc = n - (n >>> 2);
                         }
+                    } finally {
+                        sizeCtl = sc;
                     }
                 }
+            } else if (c <= sc || n >= MAXIMUM_CAPACITY) {
+                break;
+            } else if (tab == table) {
+                int rs = resizeStamp(n);
+                if (SIZECTL.compareAndSet(this, sc, (rs << RESIZE_STAMP_SHIFT) + 2)) {
+                    transfer(tab, null);
+                }
             }
+            sc = sizeCtl;
+        }
+    }
+
+    /* ---------------- Iterator Support -------------- */
+
+    /**
+     * Records the table, its length, and current traversal index for a traverser that must process a region of a forwarded table before proceeding with current table.
+     */
+    static final class TableStack<K, V> {
+        int length;
+
+        int index;
+
+        AtomicReferenceArray<Node<K, V>> tab;
+
+        TableStack<K, V> next;
+    }
+
+    /**
+     * Encapsulates traversal for methods such as containsValue; also serves as a base class for other iterators. Method advance visits once each still-valid node that was
+     * reachable upon iterator construction. It might miss some that were added to a bin after the bin was visited, which is OK wrt consistency guarantees. Maintaining this
+     * property in the face of possible ongoing resizes requires a fair amount of bookkeeping state that is difficult to optimize away amidst volatile accesses.
+     */
+    static class Traverser<K, V> {
+        AtomicReferenceArray<Node<K, V>> tab; // current table; updated if resized
+
+        Node<K, V> next; // the next entry to use
+
+        TableStack<K, V> stack; // to save/restore on ForwardingNodes
+
+        TableStack<K, V> spare; // to save/restore on ForwardingNodes
+
+        int index; // index of bin to use next
+
+        int baseIndex; // current index of initial table
+
+        int baseLimit; // index bound for initial table
+
+        final int baseSize; // initial table size
+
+        Traverser(final AtomicReferenceArray<Node<K, V>> tab, final int size, final int index, final int limit) {
+            this.tab = tab;
+            this.baseSize = size;
+            this.baseIndex = index;
+            this.index = index;
+            this.baseLimit = limit;
+            this.next = null;
         }
 
-        public boolean hasNext() {
-            return nextEntry != null;
+        /**
+         * Advances if possible, returning next valid node, or null if none.
+         */
+        final Node<K, V> advance() {
+            Node<K, V> e = next;
+            if (e != null) {
+                e = e.next;
+            }
+            for (;;) {
+                if (e != null) {
+                    next = e;
+                    return e;
+                }
+                AtomicReferenceArray<Node<K, V>> t = tab;
+                int i = index;
+                int n;
+                if (baseIndex >= baseLimit || t == null || (n = t.length()) <= i || i < 0) {
+                    next = null;
+                    return null;
+                }
+                e = t.get(i);
+                if (e != null && e.hash < 0) {
+                    if (e instanceof ForwardingNode) {
+                        tab = ((ForwardingNode<K, V>) e).nextTable;
+                        e = null;
+                        pushState(t, i, n);
+                        continue;
+                    } else if (e instanceof TreeBin) {
+                        e = ((TreeBin<K, V>) e).first;
+                    } else {
+                        e = null;
+                    }
+                }
+                if (stack != null) {
+                    recoverState(n);
+                } else {
+                    index = i + baseSize;
+                    if (index >= n) {
+                        index = ++baseIndex; // visit upper slots if present
+                    }
+                }
+            }
         }
 
-        HashEntry<K, V> nextEntry() {
-            if (nextEntry == null) {
-                throw new NoSuchElementException();
+        /**
+         * Saves traversal state upon encountering a forwarding node.
+         */
+        private void pushState(final AtomicReferenceArray<Node<K, V>> t, final int i, final int n) {
+            TableStack<K, V> s = spare; // reuse if possible
+            if (s != null) {
+                spare = s.next;
+            } else {
+                s = new TableStack<K, V>();
             }
-            lastReturned = nextEntry;
-            advance();
-            return lastReturned;
+            s.tab = t;
+            s.length = n;
+            s.index = i;
+            s.next = stack;
+            stack = s;
         }
 
-        public void remove() {
-            if (lastReturned == null) {
-                throw new IllegalStateException();
+        /**
+         * Possibly pops traversal state.
+         * @param n length of current table
+         */
+        private void recoverState(final int n) {
+            TableStack<K, V> s = stack;
+            int len = n;
+            while (s != null) {
+                index += s.length;
+                if (index < len) {
+                    break;
+                }
+                len = s.length;
+                index = s.index;
+                tab = s.tab;
+                s.tab = null;
+                TableStack<K, V> anext = s.next;
+                s.next = spare; // save for reuse
+                stack = anext;
+                spare = s;
+                s = anext;
             }
-            K hashEntryKey = helper.getHashEntryKey(lastReturned);
-            if (hashEntryKey != null) {
-                WeakConcurrentHashMap.this.remove(hashEntryKey);
+            if (s == null) {
+                index += baseSize;
+                if (index >= len) {
+                    index = ++baseIndex;
+                }
             }
-            lastReturned = null;
         }
     }
 
-    final class KeyIterator extends HashIterator implements Iterator<K>, Enumeration<K> {
-        // TODO JceSecurity do not use iterator but if needed, we should skip null value
-        // and make hasNext hasMoreElements safer
+    static int length(final AtomicReferenceArray<?> t) {
+        if (t == null) {
+            return 0;
+        }
+        return t.length();
+    }
+
+    /**
+     * Base of key, value, and entry iterators. Nodes whose key was reclaimed are skipped, the key of the next node is kept in a strong reference so hasNext and next agree.
+     */
+    abstract class HashIterator extends Traverser<K, V> {
+        K nextKey;
 
-        @Override
-        public boolean hasNext() {
-            return super.hasNext();
+        K lastKey;
+
+        HashIterator(final AtomicReferenceArray<Node<K, V>> t) {
+            super(t, length(t), 0, length(t));
+            advanceLive();
+        }
+
+        HashIterator() {
+            this(table);
+        }
+
+        final void advanceLive() {
+            Node<K, V> e = advance();
+            while (e != null) {
+                K k = e.get();
+                if (k != null) {
+                    nextKey = k;
+                    return;
+                }
+                e = advance();
+            }
+            nextKey = null;
+        }
+
+        public final boolean hasNext() {
+            return next != null;
+        }
+
+        public final boolean hasMoreElements() {
+            return next != null;
+        }
+
+        final Node<K, V> nextNode() {
+            Node<K, V> e = next;
+            if (e == null) {
+                throw new NoSuchElementException();
+            }
+            lastKey = nextKey;
+            advanceLive();
+            return e;
         }
 
-        @Override
-        public boolean hasMoreElements() {
-            return super.hasMoreElements();
+        public final void remove() {
+            K k = lastKey;
+            if (k == null) {
+                throw new IllegalStateException();
+            }
+            lastKey = null;
+            WeakConcurrentHashMap.this.remove(k);
         }
+    }
 
+    final class KeyIterator extends HashIterator implements Iterator<K>, Enumeration<K> {
         public K next() {
-            return helper.getHashEntryKey(super.nextEntry());
+            nextNode();
+            return lastKey;
         }
 
         public K nextElement() {
-            return helper.getHashEntryKey(super.nextEntry());
+            return next();
         }
     }
 
     final class ValueIterator extends HashIterator implements Iterator<V>, Enumeration<V> {
         public V next() {
-            return super.nextEntry().value;
+            return nextNode().val;
         }
 
         public V nextElement() {
-            return super.nextEntry().value;
+            return next();
         }
     }
 
@@ -1112,6 +2511,8 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * Custom Entry class used by EntryIterator.next(), that relays setValue changes to the underlying map.
      */
     final class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V> {
+        private static final long serialVersionUID = -4406316592578226839L;
+
         WriteThroughEntry(final K k, final V v) {
             super(k, v);
         }
@@ -1132,23 +2533,9 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
     }
 
     final class EntryIterator extends HashIterator implements Iterator<Entry<K, V>> {
-        K lastHasNext;
-
-        @Override
-        public boolean hasNext() {
-            // TODO JceSecurity do not use iterator but if needed, when calling hasNext returns true we must keep helper.getHashEntryKey in strong reference until next is called
-            return super.hasNext();
-        }
-
         public Map.Entry<K, V> next() {
-            HashEntry<K, V> e = super.nextEntry();
-            K hashEntryKey = helper.getHashEntryKey(e);
-            while (hashEntryKey == null) {
-                e = super.nextEntry();
-                hashEntryKey = helper.getHashEntryKey(e);
-            }
-            lastHasNext = null;
-            return new WriteThroughEntry(hashEntryKey, e.value);
+            Node<K, V> e = nextNode();
+            return new WriteThroughEntry(lastKey, e.val);
         }
     }
 
@@ -1232,23 +2619,16 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      */
     private void writeObject(final java.io.ObjectOutputStream s) throws IOException {
         s.defaultWriteObject();
-
-        for (int k = 0; k < segments.length; ++k) {
-            Segment<K, V> seg = segments[k];
-            seg.lock();
-            try {
-                HashEntry<K, V>[] tab = seg.table;
-                for (int i = 0; i < tab.length; ++i) {
-                    for (HashEntry<K, V> e = tab[i]; e != null; e = e.next) {
-                        K hashEntryKey = helper.getHashEntryKey(e);
-                        if (hashEntryKey != null) {
-                            s.writeObject(hashEntryKey);
-                            s.writeObject(e.value);
-                        }
-                    }
+        AtomicReferenceArray<Node<K, V>> t = table;
+        if (t != null) {
+            Traverser<K, V> it = new Traverser<K, V>(t, t.length(), 0, t.length());
+            for (Node<K, V> p = it.advance(); p != null; p = it.advance()) {
+                K k = p.get();
+                V v = p.val;
+                if (k != null && v != null) {
+                    s.writeObject(k);
+                    s.writeObject(v);
                 }
-            } finally {
-                seg.unlock();
             }
         }
         s.writeObject(null);
@@ -1259,12 +2639,12 @@ public class WeakConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Co
      * Reconstitute the <tt>ConcurrentHashMap</tt> instance from a stream (i.e., deserialize it).
      * @param s the stream
      */
+    @SuppressWarnings("unchecked")
     private void readObject(final java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
         s.defaultReadObject();
-
-        // Initialize each segment to be minimally sized, and let grow.
-        for (int i = 0; i < segments.length; ++i) {
-            segments[i].setTable(new HashEntry[1]);
+        initReclamation();
+        if (sizeCtl <= 0) {
+            sizeCtl = DEFAULT_INITIAL_CAPACITY;
         }
 
         // Read the keys and values, and put the mappings in the table
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Hashtable} with weak values whose operations are not synchronized. Mappings are stored in a {@link ConcurrentHashMap}, so reads never take a lock and writes only
+ * contend with writes of the same bin. Like {@link WeakHashtable}, a mapping is removed once its value is reclaimed.
+ * <p>
+ * Values whose class is defined by the bootstrap, platform or system class loader cannot prevent an application class loader from being collected, so they are held strongly.
+ * Otherwise the JDK handlers would be reclaimed after each GC and resolved again by the next caller. The keys of reclaimed mappings are remembered until they are put again, to
+ * count these re-resolutions.
+ * <p>
+ * Only the methods used by the JDK on the replaced fields are overridden, the other methods of {@link Hashtable} see an empty table.
+ * @author Gael Lalire
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class WeakConcurrentHashtable<K, V> extends Hashtable<K, V> {
+
+    private static final long serialVersionUID = 2924853036658826417L;
+
+    /**
+     * The bootstrap class loader (null) is not in this list.
+     */
+    private static final List<ClassLoader> SYSTEM_CLASS_LOADERS = new ArrayList<ClassLoader>();
+
+    static {
+        ClassLoader classLoader = ClassLoader.getSystemClassLoader();
+        while (classLoader != null) {
+            SYSTEM_CLASS_LOADERS.add(classLoader);
+            classLoader = classLoader.getParent();
+        }
+    }
+
+    /**
+     * Holds a value, weakly or strongly.
+     * @author Gael Lalire
+     * @param <V> value type
+     */
+    private interface ValueHolder<V> {
+
+        V get();
+
+    }
+
+    /**
+     * Holds a value of a system class.
+     * @author Gael Lalire
+     * @param <V> value type
+     */
+    private static final class StrongValue<V> implements ValueHolder<V> {
+
+        private final V value;
+
+        StrongValue(final V value) {
+            this.value = value;
+        }
+
+        public V get() {
+            return value;
+        }
+
+    }
+
+    /**
+     * Removes its mapping once the value is reclaimed.
+     * @author Gael Lalire
+     * @param <K> key type
+     * @param <V> value type
+     */
+    private static final class WeakValue<K, V> extends WeakReference<V> implements ValueHolder<V>, Reclaimable {
+
+        private final WeakConcurrentHashtable<K, V> owner;
+
+        private final K key;
+
+        WeakValue(final WeakConcurrentHashtable<K, V> owner, final K key, final V value) {
+            super(value, ReferenceReaper.getQueue());
+            this.owner = owner;
+            this.key = key;
+        }
+
+        public void reclaim() {
+            // recorded before the removal, a put of the key after the removal always sees it
+            owner.reclaimedKeys.put(key, Boolean.TRUE);
+            if (owner.weakMap.remove(key, this)) {
+                owner.reclaimedCount.incrementAndGet();
+            } else {
+                // a newer mapping of the same key is kept
+                owner.reclaimedKeys.remove(key);
+            }
+        }
+
+    }
+
+    private final ConcurrentMap<K, ValueHolder<V>> weakMap = new ConcurrentHashMap<K, ValueHolder<V>>();
+
+    private final ConcurrentMap<K, Boolean> reclaimedKeys = new ConcurrentHashMap<K, Boolean>();
+
+    private final AtomicLong reclaimedCount = new AtomicLong();
+
+    private final AtomicLong reResolutionCount = new AtomicLong();
+
+    static boolean isSystemClassLoader(final ClassLoader classLoader) {
+        if (classLoader == null) {
+            return true;
+        }
+        for (ClassLoader systemClassLoader : SYSTEM_CLASS_LOADERS) {
+            if (systemClassLoader == classLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ValueHolder<V> createValueHolder(final K key, final V value) {
+        if (isSystemClassLoader(value.getClass().getClassLoader())) {
+            return new StrongValue<V>(value);
+        }
+        return new WeakValue<K, V>(this, key, value);
+    }
+
+    /**
+     * @return the number of mappings removed because their value was reclaimed
+     */
+    public long getReclaimedCount() {
+        return reclaimedCount.get();
+    }
+
+    /**
+     * @return the number of puts of a key whose previous value was reclaimed
+     */
+    public long getReResolutionCount() {
+        return reResolutionCount.get();
+    }
+
+    @Override
+    public V get(final Object key) {
+        ValueHolder<V> valueHolder = weakMap.get(key);
+        if (valueHolder == null) {
+            return null;
+        }
+        return valueHolder.get();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        ReferenceReaper.expunge();
+        ValueHolder<V> old = weakMap.put(key, createValueHolder(key, value));
+        if (reclaimedKeys.remove(key) != null) {
+            reResolutionCount.incrementAndGet();
+        }
+        if (old == null) {
+            return null;
+        }
+        return old.get();
+    }
+
+    @Override
+    public V remove(final Object key) {
+        reclaimedKeys.remove(key);
+        ValueHolder<V> old = weakMap.remove(key);
+        if (old == null) {
+            return null;
+        }
+        return old.get();
+    }
+
+    @Override
+    public int size() {
+        return weakMap.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return weakMap.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        weakMap.clear();
+        reclaimedKeys.clear();
+    }
+
+}
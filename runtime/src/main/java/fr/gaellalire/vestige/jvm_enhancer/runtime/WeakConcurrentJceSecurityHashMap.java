@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent replacement of {@link WeakJceSecurityHashMap}. Keys are weak and the lookups do not take any lock.
+ * <p>
+ * When {@link ClassValue} is available, the values of class keys are attached to their class: a value is retained as long as its class is loaded, even if it references the
+ * class loader of its key. Otherwise values are weak, as in {@link WeakJceSecurityHashMap}, and a reclaimed value forces the JDK to verify the code base again.
+ * @author Gael Lalire
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class WeakConcurrentJceSecurityHashMap<K, V> extends HashMap<K, V> {
+
+    private static final long serialVersionUID = -1862400337530834925L;
+
+    private final transient ClassLocalStore<V> classLocalStore = ClassLocalStores.create();
+
+    private final transient WeakConcurrentHashMap<K, WeakReference<V>> weakMap = new WeakConcurrentHashMap<K, WeakReference<V>>();
+
+    private final transient StripedCounter hitCount = new StripedCounter();
+
+    private final transient StripedCounter missCount = new StripedCounter();
+
+    private final transient AtomicLong reVerificationCount = new AtomicLong();
+
+    /**
+     * @return true if the values of class keys are attached to their class
+     */
+    public boolean isClassLocal() {
+        return classLocalStore != null;
+    }
+
+    /**
+     * @return the number of lookups which found a value
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return the number of lookups which found no value, each of them is followed by a verification
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return the number of puts of a key whose previous value was reclaimed
+     */
+    public long getReVerificationCount() {
+        return reVerificationCount.get();
+    }
+
+    private V doGet(final Object key) {
+        if (classLocalStore != null && key instanceof Class<?>) {
+            return classLocalStore.getValue((Class<?>) key);
+        }
+        WeakReference<V> weakReference = weakMap.get(key);
+        if (weakReference == null) {
+            return null;
+        }
+        return weakReference.get();
+    }
+
+    @Override
+    public V get(final Object key) {
+        V value = doGet(key);
+        if (value == null) {
+            missCount.add(1L);
+        } else {
+            hitCount.add(1L);
+        }
+        return value;
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        if (classLocalStore != null && key instanceof Class<?>) {
+            return classLocalStore.setValue((Class<?>) key, value);
+        }
+        WeakReference<V> old = weakMap.put(key, new WeakReference<V>(value));
+        if (old == null) {
+            return null;
+        }
+        V oldValue = old.get();
+        if (oldValue == null) {
+            reVerificationCount.incrementAndGet();
+        }
+        return oldValue;
+    }
+
+}
@@ -21,6 +21,8 @@ import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author Gael Lalire
@@ -31,7 +33,47 @@ public class WeakHashtable<K, V> extends Hashtable<K, V> {
 
     private static final long serialVersionUID = -7590280733376745723L;
 
-    private Map<K, WeakReference<V>> weakMap = new HashMap<K, WeakReference<V>>();
+    /**
+     * Removes its mapping once the value is reclaimed.
+     * @author Gael Lalire
+     * @param <K> key type
+     * @param <V> value type
+     */
+    private static final class WeakValue<K, V> extends WeakReference<V> implements Reclaimable {
+
+        private final WeakHashtable<K, V> owner;
+
+        private final K key;
+
+        WeakValue(final WeakHashtable<K, V> owner, final K key, final V value) {
+            super(value, ReferenceReaper.getQueue());
+            this.owner = owner;
+            this.key = key;
+        }
+
+        public void reclaim() {
+            // never block the drain, the owner removes the mapping on its next update
+            owner.reclaimedValues.add(this);
+        }
+
+    }
+
+    private Map<K, WeakValue<K, V>> weakMap = new HashMap<K, WeakValue<K, V>>();
+
+    private final Queue<WeakValue<K, V>> reclaimedValues = new ConcurrentLinkedQueue<WeakValue<K, V>>();
+
+    /**
+     * Call only while holding the lock.
+     */
+    private void removeReclaimedValues() {
+        WeakValue<K, V> weakValue = reclaimedValues.poll();
+        while (weakValue != null) {
+            if (weakMap.get(weakValue.key) == weakValue) {
+                weakMap.remove(weakValue.key);
+            }
+            weakValue = reclaimedValues.poll();
+        }
+    }
 
     @Override
     public synchronized V get(final Object key) {
@@ -44,7 +86,9 @@ public class WeakHashtable<K, V> extends Hashtable<K, V> {
 
     @Override
     public synchronized V put(final K key, final V value) {
-        WeakReference<V> old = weakMap.put(key, new WeakReference<V>(value));
+        ReferenceReaper.expunge();
+        removeReclaimedValues();
+        WeakReference<V> old = weakMap.put(key, new WeakValue<K, V>(this, key, value));
         if (old == null) {
             return null;
         }
@@ -54,6 +98,7 @@ public class WeakHashtable<K, V> extends Hashtable<K, V> {
     @Override
     public synchronized void clear() {
         weakMap.clear();
+        reclaimedValues.clear();
     }
 
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link WeakLevelMap} for <tt>KnownLevel.intToLevels</tt>. The lists are stored in an open addressing table of int keys, so a lookup neither hashes an {@link Integer} nor
+ * walks a bucket of entries.
+ * <p>
+ * The table is copied on write: levels are rarely registered, and logging threads read the current table without any lock.
+ * @author Gael Lalire
+ */
+public class WeakIntLevelMap extends WeakLevelMap<Integer> {
+
+    private static final long serialVersionUID = -3323620911312768449L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * An immutable open addressing table.
+     * @author Gael Lalire
+     */
+    private final class Table {
+
+        /**
+         * Key of each slot, meaningful only if the slot has a list.
+         */
+        private final int[] keys;
+
+        /**
+         * List of each slot, null for a free slot.
+         */
+        private final KnowLevelArrayList[] lists;
+
+        private final int size;
+
+        Table(final int[] keys, final KnowLevelArrayList[] lists, final int size) {
+            this.keys = keys;
+            this.lists = lists;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * Replaced on each write, writers hold the lock of the map.
+     */
+    private volatile Table table;
+
+    public WeakIntLevelMap(final Field levelField, final Constructor<?> knownLevelConstructor) {
+        super(levelField, knownLevelConstructor);
+        resetLists();
+    }
+
+    private static int slot(final int key, final int mask) {
+        // level values are often multiples of 100, spread them
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the slot of the key, or the free slot ending its run
+     */
+    private static int find(final int[] keys, final Object[] lists, final int value) {
+        int mask = lists.length - 1;
+        int i = slot(value, mask);
+        while (lists[i] != null && keys[i] != value) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @param value the value of the levels
+     * @return the list registered for the value, or null
+     */
+    KnowLevelArrayList findList(final int value) {
+        Table table = this.table;
+        return table.lists[find(table.keys, table.lists, value)];
+    }
+
+    @Override
+    KnowLevelArrayList findList(final Object key) {
+        if (!(key instanceof Integer)) {
+            return null;
+        }
+        return findList(((Integer) key).intValue());
+    }
+
+    @Override
+    synchronized KnowLevelArrayList registerListIfAbsent(final Integer key, final KnowLevelArrayList list) {
+        Table table = this.table;
+        int value = key.intValue();
+        int i = find(table.keys, table.lists, value);
+        if (table.lists[i] != null) {
+            return table.lists[i];
+        }
+        int size = table.size + 1;
+        int capacity = table.lists.length;
+        // keep the load factor under 1/2
+        if (size * 2 > capacity) {
+            capacity = capacity * 2;
+        }
+        int[] keys = new int[capacity];
+        KnowLevelArrayList[] lists = newLists(capacity);
+        copy(table, keys, lists);
+        i = find(keys, lists, value);
+        keys[i] = value;
+        lists[i] = list;
+        this.table = new Table(keys, lists, size);
+        return null;
+    }
+
+    private void copy(final Table table, final int[] keys, final Object[] lists) {
+        if (table.lists.length == lists.length) {
+            System.arraycopy(table.keys, 0, keys, 0, keys.length);
+            System.arraycopy(table.lists, 0, lists, 0, lists.length);
+            return;
+        }
+        for (int j = 0; j < table.lists.length; j++) {
+            if (table.lists[j] != null) {
+                int i = find(keys, lists, table.keys[j]);
+                keys[i] = table.keys[j];
+                lists[i] = table.lists[j];
+            }
+        }
+    }
+
+    @Override
+    synchronized void unregisterList(final Integer key, final KnowLevelArrayList list) {
+        Table table = this.table;
+        int i = find(table.keys, table.lists, key.intValue());
+        if (list == null || table.lists[i] != list) {
+            return;
+        }
+        int capacity = table.lists.length;
+        int[] keys = new int[capacity];
+        KnowLevelArrayList[] lists = newLists(capacity);
+        copy(table, keys, lists);
+        lists[i] = null;
+        // shift back the following slots of the run, so no lookup stops at the freed slot
+        int mask = capacity - 1;
+        int free = i;
+        int j = (i + 1) & mask;
+        while (lists[j] != null) {
+            int home = slot(keys[j], mask);
+            // move j to free unless its home slot is cyclically in ]free, j]
+            boolean stays;
+            if (free <= j) {
+                stays = free < home && home <= j;
+            } else {
+                stays = free < home || home <= j;
+            }
+            if (!stays) {
+                keys[free] = keys[j];
+                lists[free] = lists[j];
+                lists[j] = null;
+                free = j;
+            }
+            j = (j + 1) & mask;
+        }
+        this.table = new Table(keys, lists, table.size - 1);
+    }
+
+    @Override
+    List<KnowLevelArrayList> getRegisteredLists() {
+        Table table = this.table;
+        List<KnowLevelArrayList> registeredLists = new ArrayList<KnowLevelArrayList>(table.size);
+        for (KnowLevelArrayList list : table.lists) {
+            if (list != null) {
+                registeredLists.add(list);
+            }
+        }
+        return registeredLists;
+    }
+
+    @Override
+    void resetLists() {
+        table = new Table(new int[INITIAL_CAPACITY], newLists(INITIAL_CAPACITY), 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private KnowLevelArrayList[] newLists(final int capacity) {
+        return (KnowLevelArrayList[]) new WeakLevelMap<?>.KnowLevelArrayList[capacity];
+    }
+
+}
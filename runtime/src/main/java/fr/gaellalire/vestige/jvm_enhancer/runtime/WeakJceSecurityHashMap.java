@@ -20,7 +20,9 @@ package fr.gaellalire.vestige.jvm_enhancer.runtime;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author Gael Lalire
@@ -31,7 +33,48 @@ public class WeakJceSecurityHashMap<K, V> extends HashMap<K, V> {
 
     private static final long serialVersionUID = -7590280733376745723L;
 
-    private Map<K, WeakReference<V>> weakMap = new WeakHashMap<K, WeakReference<V>>();
+    /**
+     * Removes its mapping once the value is reclaimed. The key is weakly referenced so the value does not keep its key in the {@link WeakHashMap}.
+     * @author Gael Lalire
+     * @param <K> key type
+     * @param <V> value type
+     */
+    private static final class WeakValue<K, V> extends WeakReference<V> implements Reclaimable {
+
+        private final WeakJceSecurityHashMap<K, V> owner;
+
+        private final WeakReference<K> key;
+
+        WeakValue(final WeakJceSecurityHashMap<K, V> owner, final K key, final V value) {
+            super(value, ReferenceReaper.getQueue());
+            this.owner = owner;
+            this.key = new WeakReference<K>(key);
+        }
+
+        public void reclaim() {
+            // never block the drain, the owner removes the mapping on its next update
+            owner.reclaimedValues.add(this);
+        }
+
+    }
+
+    private Map<K, WeakValue<K, V>> weakMap = new WeakHashMap<K, WeakValue<K, V>>();
+
+    private final Queue<WeakValue<K, V>> reclaimedValues = new ConcurrentLinkedQueue<WeakValue<K, V>>();
+
+    /**
+     * Call only while holding the lock.
+     */
+    private void removeReclaimedValues() {
+        WeakValue<K, V> weakValue = reclaimedValues.poll();
+        while (weakValue != null) {
+            K key = weakValue.key.get();
+            if (key != null && weakMap.get(key) == weakValue) {
+                weakMap.remove(key);
+            }
+            weakValue = reclaimedValues.poll();
+        }
+    }
 
     @Override
     public synchronized V get(final Object key) {
@@ -44,7 +87,9 @@ public class WeakJceSecurityHashMap<K, V> extends HashMap<K, V> {
 
     @Override
     public synchronized V put(final K key, final V value) {
-        WeakReference<V> old = weakMap.put(key, new WeakReference<V>(value));
+        ReferenceReaper.expunge();
+        removeReclaimedValues();
+        WeakReference<V> old = weakMap.put(key, new WeakValue<K, V>(this, key, value));
         if (old == null) {
             return null;
         }
@@ -16,16 +16,28 @@
 
 package fr.gaellalire.vestige.jvm_enhancer.runtime;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 
 /**
+ * Replacement of the maps of <tt>java.util.logging.Level$KnownLevel</tt> which holds the levels weakly.
+ * <p>
+ * Each key has a list of weak levels and a snapshot of the <tt>KnownLevel</tt> wrappers of its live levels, so a lookup reuses the same wrappers. The snapshot is rebuilt
+ * when a level is added. It references the levels, so it is itself weakly held unless all its levels are defined by a system class loader: it is then cleared by the GC which
+ * reclaims one of its levels.
+ * <p>
+ * The lists are stored in a {@link HashMap} whose updates rely on the <tt>KnownLevel</tt> class lock held by the JDK. {@link ConcurrentWeakLevelMap} stores them in a
+ * concurrent map instead.
  * @param <K> key of map
  * @author Gael Lalire
  */
@@ -33,14 +45,16 @@ public class WeakLevelMap<K> extends HashMap<K, List<Object>> {
 
     private static final long serialVersionUID = -175282012195131917L;
 
+    private static final Object[] EMPTY_SNAPSHOT = new Object[0];
+
     private Field levelField;
 
     private Constructor<?> knownLevelConstructor;
 
-    private HashMap<K, WeakArrayList<Level>> levelByKey;
+    private HashMap<K, KnowLevelArrayList> levelByKey;
 
     public WeakLevelMap(final Field levelField, final Constructor<?> knownLevelConstructor) {
-        levelByKey = new HashMap<K, WeakArrayList<Level>>();
+        levelByKey = new HashMap<K, KnowLevelArrayList>();
         this.levelField = levelField;
         this.knownLevelConstructor = knownLevelConstructor;
     }
@@ -62,22 +76,76 @@ public class WeakLevelMap<K> extends HashMap<K, List<Object>> {
     }
 
     /**
+     * The <tt>KnownLevel</tt> list of a key. The JDK reads it with <tt>get(0)</tt> and iterations, and adds to it the levels it creates.
      * @author Gael Lalire
      */
-    class KnowLevelArrayList extends ArrayList<Object> {
-
-        private static final long serialVersionUID = -421803630073619102L;
+    class KnowLevelArrayList extends AbstractList<Object> {
 
         private K key;
 
-        private List<Level> strongList;
-
         private WeakArrayList<Level> weakArrayList;
 
-        public KnowLevelArrayList(final K key, final WeakArrayList<Level> weakArrayList, final List<Level> strongList) {
+        /**
+         * Set when all levels of the snapshot are defined by a system class loader.
+         */
+        private volatile Object[] strongSnapshot;
+
+        private volatile WeakReference<Object[]> weakSnapshot;
+
+        KnowLevelArrayList(final K key) {
             this.key = key;
-            this.weakArrayList = weakArrayList;
-            this.strongList = strongList;
+        }
+
+        /**
+         * @return the wrappers of the live levels, the array must not be modified
+         */
+        Object[] getSnapshot() {
+            Object[] snapshot = strongSnapshot;
+            if (snapshot != null) {
+                return snapshot;
+            }
+            WeakReference<Object[]> reference = weakSnapshot;
+            if (reference != null) {
+                snapshot = reference.get();
+                if (snapshot != null) {
+                    return snapshot;
+                }
+            }
+            return createSnapshot();
+        }
+
+        private synchronized Object[] createSnapshot() {
+            if (weakArrayList == null) {
+                return EMPTY_SNAPSHOT;
+            }
+            List<Level> strongList = weakArrayList.createStrongList();
+            Object[] snapshot = new Object[strongList.size()];
+            boolean system = true;
+            int i = 0;
+            for (Level level : strongList) {
+                snapshot[i] = createKnownLevel(level);
+                if (system && !WeakConcurrentHashtable.isSystemClassLoader(level.getClass().getClassLoader())) {
+                    system = false;
+                }
+                i++;
+            }
+            if (system) {
+                strongSnapshot = snapshot;
+            } else {
+                weakSnapshot = new WeakReference<Object[]>(snapshot);
+            }
+            return snapshot;
+        }
+
+        /**
+         * @return a copy of the weak levels, or null
+         */
+        @SuppressWarnings("unchecked")
+        synchronized WeakArrayList<Level> copyLevels() {
+            if (weakArrayList == null) {
+                return null;
+            }
+            return (WeakArrayList<Level>) weakArrayList.clone();
         }
 
         @Override
@@ -91,69 +159,123 @@ public class WeakLevelMap<K> extends HashMap<K, List<Object>> {
         @Override
         public boolean add(final Object e) {
             Level level = getLevel(e);
-            if (strongList == null) {
-                strongList = new ArrayList<Level>();
+            for (;;) {
+                KnowLevelArrayList list = findList(key);
+                if (list == null) {
+                    // first level of the key, or the key was removed after all its levels were reclaimed
+                    list = registerListIfAbsent(key, this);
+                    if (list == null) {
+                        list = this;
+                    }
+                }
+                if (list.addLevel(level)) {
+                    return true;
+                }
+                // the list was removed meanwhile
+            }
+        }
+
+        /**
+         * @return false if this list is not registered, the level is then not added
+         */
+        private synchronized boolean addLevel(final Level level) {
+            if (findList(key) != this) {
+                return false;
+            }
+            if (weakArrayList == null) {
                 weakArrayList = new WeakArrayList<Level>(Level.OFF);
-                levelByKey.put(key, weakArrayList);
             }
-            strongList.add(level);
             weakArrayList.add(level);
+            strongSnapshot = null;
+            weakSnapshot = null;
             return true;
         }
 
+        /**
+         * Removes this list from the map if all its levels were reclaimed. Holding the lock of the list, no level can be added in between.
+         */
+        synchronized void unregisterIfEmpty() {
+            if (getSnapshot().length == 0) {
+                unregisterList(key, this);
+            }
+        }
+
         @Override
         public Object get(final int index) {
-            if (strongList == null) {
+            Object[] snapshot = getSnapshot();
+            if (index >= snapshot.length) {
+                // all levels were reclaimed
                 return null;
             }
-            return createKnownLevel(strongList.get(index));
+            return snapshot[index];
         }
 
         @Override
-        public Iterator<Object> iterator() {
-            return new Iterator<Object>() {
-
-                private int maxSize = strongList.size();
+        public int size() {
+            return getSnapshot().length;
+        }
 
-                private int pos = 0;
+        @Override
+        public Iterator<Object> iterator() {
+            return Collections.unmodifiableList(Arrays.asList(getSnapshot())).iterator();
+        }
 
-                @Override
-                public boolean hasNext() {
-                    if (strongList == null) {
-                        return false;
-                    }
-                    return pos != maxSize;
-                }
+    }
 
-                @Override
-                public Object next() {
-                    return get(pos++);
-                }
+    /**
+     * @return the list registered for the key, or null
+     */
+    KnowLevelArrayList findList(final Object key) {
+        return levelByKey.get(key);
+    }
 
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
+    /**
+     * @return the list already registered for the key, or null if the given list was registered
+     */
+    KnowLevelArrayList registerListIfAbsent(final K key, final KnowLevelArrayList list) {
+        KnowLevelArrayList registeredList = levelByKey.get(key);
+        if (registeredList == null) {
+            levelByKey.put(key, list);
+        }
+        return registeredList;
+    }
 
-            };
+    /**
+     * Removes the key only if it is mapped to the given list.
+     */
+    void unregisterList(final K key, final KnowLevelArrayList list) {
+        if (levelByKey.get(key) == list) {
+            levelByKey.remove(key);
         }
+    }
 
+    /**
+     * @return a copy of the registered lists
+     */
+    List<KnowLevelArrayList> getRegisteredLists() {
+        return new ArrayList<KnowLevelArrayList>(levelByKey.values());
+    }
+
+    /**
+     * Gives a clone its own storage, without any list.
+     */
+    void resetLists() {
+        levelByKey = new HashMap<K, KnowLevelArrayList>();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<Object> get(final Object key) {
-        List<Level> strongList = null;
-        WeakArrayList<Level> list = levelByKey.get(key);
-        if (list != null) {
-            strongList = list.createStrongList();
-            if (strongList.size() == 0) {
-                strongList = null;
-                levelByKey = null;
-                levelByKey.remove(key);
-            }
+        KnowLevelArrayList list = findList(key);
+        if (list == null) {
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            // registered by its first add
+            return new KnowLevelArrayList(k);
+        }
+        if (list.getSnapshot().length == 0) {
+            list.unregisterIfEmpty();
         }
-        return new KnowLevelArrayList((K) key, list, strongList);
+        return list;
     }
 
     @Override
@@ -163,20 +285,12 @@ public class WeakLevelMap<K> extends HashMap<K, List<Object>> {
 
     @Override
     public Collection<List<Object>> values() {
-        Collection<WeakArrayList<Level>> values = levelByKey.values();
-        List<List<Object>> lists = new ArrayList<List<Object>>();
-        Iterator<WeakArrayList<Level>> iterator = values.iterator();
-        while (iterator.hasNext()) {
-            WeakArrayList<Level> weakArrayList = iterator.next();
-            List<Level> createStrongList = weakArrayList.createStrongList();
-            int size = createStrongList.size();
-            if (size == 0) {
-                iterator.remove();
+        List<KnowLevelArrayList> registeredLists = getRegisteredLists();
+        List<List<Object>> lists = new ArrayList<List<Object>>(registeredLists.size());
+        for (KnowLevelArrayList list : registeredLists) {
+            if (list.getSnapshot().length == 0) {
+                list.unregisterIfEmpty();
             } else {
-                List<Object> list = new ArrayList<Object>(size);
-                for (Level level : createStrongList) {
-                    list.add(createKnownLevel(level));
-                }
                 lists.add(list);
             }
         }
@@ -187,11 +301,12 @@ public class WeakLevelMap<K> extends HashMap<K, List<Object>> {
     @Override
     public Object clone() {
         WeakLevelMap<K> clone = (WeakLevelMap<K>) super.clone();
-        clone.levelByKey = (HashMap<K, WeakArrayList<Level>>) levelByKey.clone();
-        Iterator<java.util.Map.Entry<K, WeakArrayList<Level>>> iterator = clone.levelByKey.entrySet().iterator();
-        while (iterator.hasNext()) {
-            java.util.Map.Entry<K, WeakArrayList<Level>> entry = iterator.next();
-            entry.setValue((WeakArrayList<Level>) entry.getValue().clone());
+        clone.resetLists();
+        for (KnowLevelArrayList list : getRegisteredLists()) {
+            // the lists of the clone must register in the clone
+            WeakLevelMap<K>.KnowLevelArrayList copy = clone.new KnowLevelArrayList(list.key);
+            copy.weakArrayList = list.copyLevels();
+            clone.registerListIfAbsent(list.key, copy);
         }
         return clone;
     }
@@ -16,68 +16,192 @@
 
 package fr.gaellalire.vestige.jvm_enhancer.runtime;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.security.Provider;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Replaces <tt>javax.crypto.JceSecurity.verificationResults</tt>. A provider is mapped as long as it is reachable.
+ * <p>
+ * This class only implements the methods of Java 6, {@link Java8WeakProviderConcurrentHashMap} adds the atomic methods of Java 8.
  * @param <K> the type of keys maintained by this map
  * @param <V> the type of mapped values
  * @author Gael Lalire
  */
 public class WeakProviderConcurrentHashMap<K, V> extends AbstractMap<K, V> {
 
-    private WeakConcurrentHashMap<ProviderEntry, V> weakMap = new WeakConcurrentHashMap<ProviderEntry, V>();
+    /**
+     * Compares a raw key with the key of a {@link ProviderEntry}, as {@link ProviderEntry#equals(Object)} does.
+     */
+    private static final KeyEquivalence<Object> PROVIDER_ENTRY_EQUIVALENCE = new KeyEquivalence<Object>() {
+
+        public boolean equivalent(final Object probe, final Object key) {
+            return probe.equals(((ProviderEntry) key).getKey());
+        }
+
+    };
+
+    /**
+     * Accessible fields of type {@link Provider} declared by a key class.
+     * @author Gael Lalire
+     */
+    private static final class ProviderFields {
+
+        private final Class<?> keyClass;
+
+        private final Field[] fields;
+
+        ProviderFields(final Class<?> keyClass, final Field[] fields) {
+            this.keyClass = keyClass;
+            this.fields = fields;
+        }
+
+    }
+
+    /**
+     * Null before Java 7.
+     */
+    private static final ClassLocalStore<ProviderFields> PROVIDER_FIELDS_STORE = ClassLocalStores.create();
+
+    /**
+     * Used when there is no {@link #PROVIDER_FIELDS_STORE}. It must not pin the key class, so it is resolved again after the reference is cleared.
+     */
+    private static volatile WeakReference<ProviderFields> lastProviderFields;
+
+    private static volatile Field defaultsField;
+
+    private final WeakConcurrentHashMap<ProviderEntry, V> weakMap;
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private volatile Exception lastFailure;
+
+    public WeakProviderConcurrentHashMap() {
+        this(new WeakConcurrentHashMap<ProviderEntry, V>());
+    }
+
+    WeakProviderConcurrentHashMap(final WeakConcurrentHashMap<ProviderEntry, V> weakMap) {
+        this.weakMap = weakMap;
+    }
+
+    private static ProviderFields resolveProviderFields(final Class<?> keyClass) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Field field : keyClass.getDeclaredFields()) {
+            if (field.getType() == Provider.class) {
+                // a copy of the field, the accessibility of other callers is not changed
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return new ProviderFields(keyClass, fields.toArray(new Field[fields.size()]));
+    }
+
+    private static ProviderFields getProviderFields(final Class<?> keyClass) {
+        ProviderFields providerFields;
+        if (PROVIDER_FIELDS_STORE != null) {
+            providerFields = PROVIDER_FIELDS_STORE.getValue(keyClass);
+            if (providerFields == null) {
+                providerFields = resolveProviderFields(keyClass);
+                PROVIDER_FIELDS_STORE.setValue(keyClass, providerFields);
+            }
+            return providerFields;
+        }
+        WeakReference<ProviderFields> reference = lastProviderFields;
+        if (reference != null) {
+            providerFields = reference.get();
+            if (providerFields != null && providerFields.keyClass == keyClass) {
+                return providerFields;
+            }
+        }
+        providerFields = resolveProviderFields(keyClass);
+        lastProviderFields = new WeakReference<ProviderFields>(providerFields);
+        return providerFields;
+    }
+
+    private static Field getDefaultsField() throws NoSuchFieldException {
+        Field field = defaultsField;
+        if (field == null) {
+            field = Properties.class.getDeclaredField("defaults");
+            field.setAccessible(true);
+            defaultsField = field;
+        }
+        return field;
+    }
 
     @Override
     public V get(final Object key) {
-        return weakMap.get(new ProviderEntry(key));
+        // no ProviderEntry is allocated by lookups
+        return weakMap.get(key, key.hashCode(), PROVIDER_ENTRY_EQUIVALENCE);
     }
 
     @Override
     public V put(final K key, final V value) {
-        for (Field field : key.getClass().getDeclaredFields()) {
-            if (field.getType() != Provider.class) {
-                continue;
-            }
+        ProviderEntry providerEntry = createProviderEntry(key);
+        if (providerEntry == null) {
+            return null;
+        }
+        return weakMap.put(providerEntry, value);
+    }
+
+    /**
+     * @return an entry of the key which is strongly referenced by its provider, or null if the key has no reachable provider (the failure is recorded)
+     */
+    ProviderEntry createProviderEntry(final K key) {
+        ProviderFields providerFields;
+        try {
+            providerFields = getProviderFields(key.getClass());
+        } catch (RuntimeException e) {
+            recordFailure(e);
+            return null;
+        }
+        for (Field field : providerFields.fields) {
             try {
                 ProviderEntry providerEntry = new ProviderEntry(key);
-                Object object;
-                if (!field.isAccessible()) {
-                    field.setAccessible(true);
-                    try {
-                        object = field.get(key);
-                    } finally {
-                        field.setAccessible(false);
-                    }
-                } else {
-                    object = field.get(key);
-                }
-                Field declaredField = Properties.class.getDeclaredField("defaults");
-                if (!declaredField.isAccessible()) {
-                    declaredField.setAccessible(true);
-                }
+                Object object = field.get(key);
+                Field defaultsField = getDefaultsField();
                 while (true) {
-                    Object nextObject = declaredField.get(object);
+                    Object nextObject = defaultsField.get(object);
                     if (nextObject == null) {
                         // Provider has now a strong reference to providerEntry
                         // so providerEntry cannot be GC before Provider
-                        declaredField.set(object, new KeepReferenceProperties(providerEntry));
+                        defaultsField.set(object, new KeepReferenceProperties(providerEntry));
                         break;
                     }
                     object = nextObject;
                 }
-
-                return weakMap.put(providerEntry, value);
+                return providerEntry;
             } catch (Exception e) {
-                e.printStackTrace();
+                recordFailure(e);
             }
         }
         return null;
     }
 
+    private void recordFailure(final Exception e) {
+        lastFailure = e;
+        failureCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of failed puts, a failed put does not store its mapping
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return the cause of the last failed put, or null
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
     @Override
     public Set<Entry<K, V>> entrySet() {
         throw new UnsupportedOperationException();
@@ -88,4 +212,13 @@ public class WeakProviderConcurrentHashMap<K, V> extends AbstractMap<K, V> {
         return weakMap.size();
     }
 
+    @Override
+    public boolean isEmpty() {
+        return weakMap.isEmpty();
+    }
+
+    public long mappingCount() {
+        return weakMap.mappingCount();
+    }
+
 }
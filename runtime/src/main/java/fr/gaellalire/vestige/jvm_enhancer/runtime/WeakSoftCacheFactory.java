@@ -0,0 +1,290 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the replacement of <tt>Thread.subclassAudits</tt>, which is a <tt>sun.misc.SoftCache</tt> until Java 7. The replacement must extend this class, which recent JDKs
+ * cannot compile against, so the subclass is written here as bytecode and defined at runtime. All its map methods delegate to a {@link WeakConcurrentHashMap} comparing keys
+ * with <tt>==</tt>: the audited classes are held weakly and looked up without locking.
+ * @author Gael Lalire
+ */
+public final class WeakSoftCacheFactory {
+
+    private static final String CLASS_NAME = WeakSoftCacheFactory.class.getPackage().getName() + ".WeakSoftCache";
+
+    private static final String MAP_DESCRIPTOR = "Ljava/util/Map;";
+
+    /**
+     * Name and descriptor of the delegated methods, all declared by {@link Map}.
+     */
+    private static final String[][] DELEGATED_METHODS = new String[][] {{"get", "(Ljava/lang/Object;)Ljava/lang/Object;"},
+            {"put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;"}, {"remove", "(Ljava/lang/Object;)Ljava/lang/Object;"}, {"containsKey", "(Ljava/lang/Object;)Z"},
+            {"size", "()I"}, {"isEmpty", "()Z"}, {"clear", "()V"}, {"keySet", "()Ljava/util/Set;"}, {"values", "()Ljava/util/Collection;"},
+            {"entrySet", "()Ljava/util/Set;"}};
+
+    private static final int JAVA_6_MAJOR_VERSION = 50;
+
+    private static final int ACC_PUBLIC = 0x0001;
+
+    private static final int ACC_PRIVATE = 0x0002;
+
+    private static final int ACC_FINAL = 0x0010;
+
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ALOAD_0 = 0x2a;
+
+    private static final int IRETURN = 0xac;
+
+    private static final int ARETURN = 0xb0;
+
+    private static final int RETURN = 0xb1;
+
+    private static final int GETFIELD = 0xb4;
+
+    private static final int PUTFIELD = 0xb5;
+
+    private static final int INVOKESPECIAL = 0xb7;
+
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    /**
+     * Defines the generated class.
+     * @author Gael Lalire
+     */
+    private static final class DefiningClassLoader extends ClassLoader {
+
+        DefiningClassLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(final String name, final byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+    }
+
+    /**
+     * Constant pool of the generated class, each constant is added once.
+     * @author Gael Lalire
+     */
+    private static final class ConstantPool {
+
+        private static final int UTF8 = 1;
+
+        private static final int CLASS = 7;
+
+        private static final int FIELDREF = 9;
+
+        private static final int METHODREF = 10;
+
+        private static final int INTERFACE_METHODREF = 11;
+
+        private static final int NAME_AND_TYPE = 12;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        private int count = 1;
+
+        private int add(final String key, final int tag, final String utf8, final int first, final int second) throws IOException {
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index.intValue();
+            }
+            out.writeByte(tag);
+            if (utf8 != null) {
+                out.writeUTF(utf8);
+            } else {
+                out.writeShort(first);
+                if (second != 0) {
+                    out.writeShort(second);
+                }
+            }
+            int result = count++;
+            indexes.put(key, Integer.valueOf(result));
+            return result;
+        }
+
+        int utf8(final String value) throws IOException {
+            return add("U" + value, UTF8, value, 0, 0);
+        }
+
+        int classRef(final String internalName) throws IOException {
+            return add("C" + internalName, CLASS, null, utf8(internalName), 0);
+        }
+
+        private int nameAndType(final String name, final String descriptor) throws IOException {
+            return add("N" + name + " " + descriptor, NAME_AND_TYPE, null, utf8(name), utf8(descriptor));
+        }
+
+        int fieldRef(final String owner, final String name, final String descriptor) throws IOException {
+            return add("F" + owner + "." + name + " " + descriptor, FIELDREF, null, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        int methodRef(final String owner, final String name, final String descriptor) throws IOException {
+            return add("M" + owner + "." + name + " " + descriptor, METHODREF, null, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        int interfaceMethodRef(final String owner, final String name, final String descriptor) throws IOException {
+            return add("I" + owner + "." + name + " " + descriptor, INTERFACE_METHODREF, null, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        void writeTo(final DataOutputStream classOut) throws IOException {
+            classOut.writeShort(count);
+            out.flush();
+            bytes.writeTo(classOut);
+        }
+
+    }
+
+    private WeakSoftCacheFactory() {
+    }
+
+    /**
+     * @param superClass the class to extend, it must implement {@link Map} and have an accessible no-argument constructor
+     * @return a new cache, instance of a subclass of superClass
+     * @throws Exception if the subclass cannot be defined
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<Object, Object> create(final Class<?> superClass) throws Exception {
+        byte[] bytes = createClassBytes(CLASS_NAME.replace('.', '/'), superClass.getName().replace('.', '/'));
+        Class<?> cacheClass = new DefiningClassLoader(WeakSoftCacheFactory.class.getClassLoader()).define(CLASS_NAME, bytes);
+        Map<Object, Object> delegate = WeakConcurrentHashMap.newIdentityMap();
+        return (Map<Object, Object>) cacheClass.getConstructor(Map.class).newInstance(delegate);
+    }
+
+    /**
+     * A class with a <tt>map</tt> field set by its constructor, every method of {@link #DELEGATED_METHODS} calls the same method of the field. The methods have no branch, so
+     * no stack map frame is needed.
+     */
+    static byte[] createClassBytes(final String internalName, final String superInternalName) throws IOException {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(internalName);
+        int superClass = pool.classRef(superInternalName);
+        int mapField = pool.fieldRef(internalName, "map", MAP_DESCRIPTOR);
+        int codeAttribute = pool.utf8("Code");
+
+        List<byte[]> methods = new ArrayList<byte[]>();
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        code.write(ALOAD_0);
+        writeShortOpcode(code, INVOKESPECIAL, pool.methodRef(superInternalName, "<init>", "()V"));
+        code.write(ALOAD_0);
+        code.write(ALOAD_0 + 1);
+        writeShortOpcode(code, PUTFIELD, mapField);
+        code.write(RETURN);
+        methods.add(createMethod(pool, "<init>", "(" + MAP_DESCRIPTOR + ")V", codeAttribute, 2, 2, code.toByteArray()));
+
+        for (String[] method : DELEGATED_METHODS) {
+            String name = method[0];
+            String descriptor = method[1];
+            int argumentCount = descriptor.split(";", -1).length - 1;
+            if (descriptor.endsWith(";")) {
+                // the return type is not an argument
+                argumentCount--;
+            }
+            code.reset();
+            code.write(ALOAD_0);
+            writeShortOpcode(code, GETFIELD, mapField);
+            for (int i = 1; i <= argumentCount; i++) {
+                code.write(ALOAD_0 + i);
+            }
+            writeShortOpcode(code, INVOKEINTERFACE, pool.interfaceMethodRef("java/util/Map", name, descriptor));
+            code.write(argumentCount + 1);
+            code.write(0);
+            char returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+            if (returnType == 'V') {
+                code.write(RETURN);
+            } else if (returnType == 'I' || returnType == 'Z') {
+                code.write(IRETURN);
+            } else {
+                code.write(ARETURN);
+            }
+            methods.add(createMethod(pool, name, descriptor, codeAttribute, argumentCount + 1, argumentCount + 1, code.toByteArray()));
+        }
+
+        int fieldName = pool.utf8("map");
+        int fieldDescriptor = pool.utf8(MAP_DESCRIPTOR);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(JAVA_6_MAJOR_VERSION);
+        pool.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        // interfaces
+        out.writeShort(0);
+        // fields
+        out.writeShort(1);
+        out.writeShort(ACC_PRIVATE | ACC_FINAL);
+        out.writeShort(fieldName);
+        out.writeShort(fieldDescriptor);
+        out.writeShort(0);
+        out.writeShort(methods.size());
+        for (byte[] method : methods) {
+            out.write(method);
+        }
+        // class attributes
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeShortOpcode(final ByteArrayOutputStream code, final int opcode, final int index) {
+        code.write(opcode);
+        code.write(index >>> 8);
+        code.write(index);
+    }
+
+    private static byte[] createMethod(final ConstantPool pool, final String name, final String descriptor, final int codeAttribute, final int maxStack, final int maxLocals,
+            final byte[] code) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        // only the Code attribute
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        // max stack, max locals, code length, exception table length and attribute count
+        final int codeHeaderLength = 2 + 2 + 4 + 2 + 2;
+        out.writeInt(codeHeaderLength + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+}
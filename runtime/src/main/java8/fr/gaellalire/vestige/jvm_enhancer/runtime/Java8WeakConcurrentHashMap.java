@@ -0,0 +1,576 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A {@link WeakConcurrentHashMap} which implements the atomic methods added to {@link java.util.concurrent.ConcurrentMap} by Java 8. The default implementations of the
+ * interface retry <tt>get</tt> and <tt>putIfAbsent</tt>, so they may run a mapping function several times for the same key. Here each mapping function runs once, under the lock
+ * of the bin, an empty bin being claimed by a reservation node while the function runs.
+ * <p>
+ * This class is compiled for Java 8 apart from {@link WeakConcurrentHashMap}, it must only be loaded on Java 8 and later.
+ * @author Doug Lea
+ * @author Gael Lalire
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class Java8WeakConcurrentHashMap<K, V> extends WeakConcurrentHashMap<K, V> {
+
+    private static final long serialVersionUID = -2146733406227591546L;
+
+    /**
+     * @param initialCapacity the initial capacity
+     * @param loadFactor the load factor
+     * @param concurrencyLevel the estimated number of concurrently updating threads
+     * @param identityEquality if keys must be compared with <tt>==</tt>
+     * @see WeakConcurrentHashMap#WeakConcurrentHashMap(int, float, int, boolean)
+     */
+    public Java8WeakConcurrentHashMap(final int initialCapacity, final float loadFactor, final int concurrencyLevel, final boolean identityEquality) {
+        super(initialCapacity, loadFactor, concurrencyLevel, identityEquality);
+    }
+
+    /**
+     * @param initialCapacity the initial capacity
+     * @param loadFactor the load factor
+     * @param concurrencyLevel the estimated number of concurrently updating threads
+     * @see WeakConcurrentHashMap#WeakConcurrentHashMap(int, float, int)
+     */
+    public Java8WeakConcurrentHashMap(final int initialCapacity, final float loadFactor, final int concurrencyLevel) {
+        super(initialCapacity, loadFactor, concurrencyLevel);
+    }
+
+    /**
+     * @param initialCapacity the initial capacity
+     * @see WeakConcurrentHashMap#WeakConcurrentHashMap(int)
+     */
+    public Java8WeakConcurrentHashMap(final int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * @see WeakConcurrentHashMap#WeakConcurrentHashMap()
+     */
+    public Java8WeakConcurrentHashMap() {
+    }
+
+    /**
+     * @param m the map
+     * @see WeakConcurrentHashMap#WeakConcurrentHashMap(Map)
+     */
+    public Java8WeakConcurrentHashMap(final Map<? extends K, ? extends V> m) {
+        super(m);
+    }
+
+    /**
+     * If the specified key is not already associated with a value, attempts to compute its value using the given mapping function and enters it into this map unless null. The
+     * entire method invocation is performed atomically, so the function is applied at most once per key. Some attempted update operations on this map by other threads may be
+     * blocked while computation is in progress, so the computation should be short and simple, and must not attempt to update any other mappings of this map.
+     * @param key key with which the specified value is to be associated
+     * @param mappingFunction the function to compute a value
+     * @return the current (existing or computed) value associated with the specified key, or null if the computed value is null
+     * @throws NullPointerException if the specified key or mappingFunction is null
+     * @throws IllegalStateException if the computation detectably attempts a recursive update to this map that would otherwise never complete
+     */
+    @Override
+    public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null) {
+            throw new NullPointerException();
+        }
+        expungeStaleEntries();
+        int h = hashOf(key);
+        V val = null;
+        int binCount = 0;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        for (;;) {
+            int n;
+            if (tab == null || (n = tab.length()) == 0) {
+                tab = initTable();
+                continue;
+            }
+            int i = (n - 1) & h;
+            Node<K, V> f = tab.get(i);
+            if (f == null) {
+                Node<K, V> r = new ReservationNode<K, V>();
+                synchronized (r) {
+                    if (tab.compareAndSet(i, null, r)) {
+                        binCount = 1;
+                        Node<K, V> node = null;
+                        try {
+                            val = mappingFunction.apply(key);
+                            if (val != null) {
+                                node = new Node<K, V>(key, h, val, null, this);
+                            }
+                        } finally {
+                            tab.set(i, node);
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    break;
+                }
+            } else if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+            } else {
+                V fv;
+                if (f.hash == h && keyEquals(key, f.get()) && (fv = f.val) != null) {
+                    // check first node without acquiring lock
+                    return fv;
+                }
+                boolean added = false;
+                synchronized (f) {
+                    if (tab.get(i) == f) {
+                        if (f.hash >= 0) {
+                            binCount = 1;
+                            Node<K, V> e = f;
+                            for (;;) {
+                                if (e.hash == h && keyEquals(key, e.get())) {
+                                    val = e.val;
+                                    break;
+                                }
+                                Node<K, V> pred = e;
+                                e = e.next;
+                                if (e == null) {
+                                    val = mappingFunction.apply(key);
+                                    if (val != null) {
+                                        if (pred.next != null) {
+                                            throw new IllegalStateException("Recursive update");
+                                        }
+                                        added = true;
+                                        pred.next = new Node<K, V>(key, h, val, null, this);
+                                    }
+                                    break;
+                                }
+                                ++binCount;
+                            }
+                        } else if (f instanceof TreeBin) {
+                            binCount = 2;
+                            TreeBin<K, V> t = (TreeBin<K, V>) f;
+                            TreeNode<K, V> r = t.root;
+                            TreeNode<K, V> p = null;
+                            if (r != null) {
+                                p = r.findTreeNode(h, key, null, identityEquality, t.identityHashOf(key));
+                            }
+                            if (p != null) {
+                                val = p.val;
+                            } else {
+                                val = mappingFunction.apply(key);
+                                if (val != null) {
+                                    added = true;
+                                    t.putTreeVal(h, key, val, this);
+                                }
+                            }
+                        } else if (f instanceof ReservationNode) {
+                            throw new IllegalStateException("Recursive update");
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD) {
+                        treeifyBin(tab, i);
+                    }
+                    if (!added) {
+                        return val;
+                    }
+                    break;
+                }
+            }
+        }
+        if (val != null) {
+            addCount(1L, binCount);
+        }
+        return val;
+    }
+
+    /**
+     * If the value for the specified key is present, attempts to compute a new mapping given the key and its current mapped value. The entire method invocation is performed
+     * atomically. Some attempted update operations on this map by other threads may be blocked while computation is in progress, so the computation should be short and simple,
+     * and must not attempt to update any other mappings of this map.
+     * @param key key with which a value may be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or remappingFunction is null
+     * @throws IllegalStateException if the computation detectably attempts a recursive update to this map that would otherwise never complete
+     */
+    @Override
+    public V computeIfPresent(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        expungeStaleEntries();
+        int h = hashOf(key);
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        for (;;) {
+            int n;
+            if (tab == null || (n = tab.length()) == 0) {
+                tab = initTable();
+                continue;
+            }
+            int i = (n - 1) & h;
+            Node<K, V> f = tab.get(i);
+            if (f == null) {
+                break;
+            } else if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+            } else {
+                synchronized (f) {
+                    if (tab.get(i) == f) {
+                        if (f.hash >= 0) {
+                            binCount = 1;
+                            Node<K, V> e = f;
+                            Node<K, V> pred = null;
+                            for (;;) {
+                                if (e.hash == h && keyEquals(key, e.get())) {
+                                    val = remappingFunction.apply(key, e.val);
+                                    if (val != null) {
+                                        e.val = val;
+                                    } else {
+                                        delta = -1;
+                                        Node<K, V> en = e.next;
+                                        if (pred != null) {
+                                            pred.next = en;
+                                        } else {
+                                            tab.set(i, en);
+                                        }
+                                    }
+                                    break;
+                                }
+                                pred = e;
+                                e = e.next;
+                                if (e == null) {
+                                    break;
+                                }
+                                ++binCount;
+                            }
+                        } else if (f instanceof TreeBin) {
+                            binCount = 2;
+                            TreeBin<K, V> t = (TreeBin<K, V>) f;
+                            TreeNode<K, V> r = t.root;
+                            TreeNode<K, V> p = null;
+                            if (r != null) {
+                                p = r.findTreeNode(h, key, null, identityEquality, t.identityHashOf(key));
+                            }
+                            if (p != null) {
+                                val = remappingFunction.apply(key, p.val);
+                                if (val != null) {
+                                    p.val = val;
+                                } else {
+                                    delta = -1;
+                                    p.unlinked = true;
+                                    if (t.removeTreeNode(p)) {
+                                        tab.set(i, untreeify(t.first));
+                                    }
+                                }
+                            }
+                        } else if (f instanceof ReservationNode) {
+                            throw new IllegalStateException("Recursive update");
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    break;
+                }
+            }
+        }
+        if (delta != 0) {
+            addCount(delta, binCount);
+        }
+        return val;
+    }
+
+    /**
+     * Attempts to compute a mapping for the specified key and its current mapped value (or null if there is no current mapping). The entire method invocation is performed
+     * atomically. Some attempted update operations on this map by other threads may be blocked while computation is in progress, so the computation should be short and simple,
+     * and must not attempt to update any other mappings of this map.
+     * @param key key with which the specified value is to be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or remappingFunction is null
+     * @throws IllegalStateException if the computation detectably attempts a recursive update to this map that would otherwise never complete
+     */
+    @Override
+    public V compute(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        expungeStaleEntries();
+        int h = hashOf(key);
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        for (;;) {
+            int n;
+            if (tab == null || (n = tab.length()) == 0) {
+                tab = initTable();
+                continue;
+            }
+            int i = (n - 1) & h;
+            Node<K, V> f = tab.get(i);
+            if (f == null) {
+                Node<K, V> r = new ReservationNode<K, V>();
+                synchronized (r) {
+                    if (tab.compareAndSet(i, null, r)) {
+                        binCount = 1;
+                        Node<K, V> node = null;
+                        try {
+                            val = remappingFunction.apply(key, null);
+                            if (val != null) {
+                                delta = 1;
+                                node = new Node<K, V>(key, h, val, null, this);
+                            }
+                        } finally {
+                            tab.set(i, node);
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    break;
+                }
+            } else if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+            } else {
+                synchronized (f) {
+                    if (tab.get(i) == f) {
+                        if (f.hash >= 0) {
+                            binCount = 1;
+                            Node<K, V> e = f;
+                            Node<K, V> pred = null;
+                            for (;;) {
+                                if (e.hash == h && keyEquals(key, e.get())) {
+                                    val = remappingFunction.apply(key, e.val);
+                                    if (val != null) {
+                                        e.val = val;
+                                    } else {
+                                        delta = -1;
+                                        Node<K, V> en = e.next;
+                                        if (pred != null) {
+                                            pred.next = en;
+                                        } else {
+                                            tab.set(i, en);
+                                        }
+                                    }
+                                    break;
+                                }
+                                pred = e;
+                                e = e.next;
+                                if (e == null) {
+                                    val = remappingFunction.apply(key, null);
+                                    if (val != null) {
+                                        if (pred.next != null) {
+                                            throw new IllegalStateException("Recursive update");
+                                        }
+                                        delta = 1;
+                                        pred.next = new Node<K, V>(key, h, val, null, this);
+                                    }
+                                    break;
+                                }
+                                ++binCount;
+                            }
+                        } else if (f instanceof TreeBin) {
+                            binCount = 1;
+                            TreeBin<K, V> t = (TreeBin<K, V>) f;
+                            TreeNode<K, V> r = t.root;
+                            TreeNode<K, V> p = null;
+                            if (r != null) {
+                                p = r.findTreeNode(h, key, null, identityEquality, t.identityHashOf(key));
+                            }
+                            V pv = null;
+                            if (p != null) {
+                                pv = p.val;
+                            }
+                            val = remappingFunction.apply(key, pv);
+                            if (val != null) {
+                                if (p != null) {
+                                    p.val = val;
+                                } else {
+                                    delta = 1;
+                                    t.putTreeVal(h, key, val, this);
+                                }
+                            } else if (p != null) {
+                                delta = -1;
+                                p.unlinked = true;
+                                if (t.removeTreeNode(p)) {
+                                    tab.set(i, untreeify(t.first));
+                                }
+                            }
+                        } else if (f instanceof ReservationNode) {
+                            throw new IllegalStateException("Recursive update");
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD) {
+                        treeifyBin(tab, i);
+                    }
+                    break;
+                }
+            }
+        }
+        if (delta != 0) {
+            addCount(delta, binCount);
+        }
+        return val;
+    }
+
+    /**
+     * If the specified key is not already associated with a (non-null) value, associates it with the given value. Otherwise, replaces the value with the results of the given
+     * remapping function, or removes if null. The entire method invocation is performed atomically. Some attempted update operations on this map by other threads may be blocked
+     * while computation is in progress, so the computation should be short and simple, and must not attempt to update any other mappings of this map.
+     * @param key key with which the specified value is to be associated
+     * @param value the value to use if absent
+     * @param remappingFunction the function to recompute a value if present
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or the remappingFunction is null
+     */
+    @Override
+    public V merge(final K key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null || remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        expungeStaleEntries();
+        int h = hashOf(key);
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        for (;;) {
+            int n;
+            if (tab == null || (n = tab.length()) == 0) {
+                tab = initTable();
+                continue;
+            }
+            int i = (n - 1) & h;
+            Node<K, V> f = tab.get(i);
+            if (f == null) {
+                if (tab.compareAndSet(i, null, new Node<K, V>(key, h, value, null, this))) {
+                    delta = 1;
+                    val = value;
+                    break;
+                }
+            } else if (f.hash == MOVED) {
+                tab = helpTransfer(tab, f);
+            } else {
+                synchronized (f) {
+                    if (tab.get(i) == f) {
+                        if (f.hash >= 0) {
+                            binCount = 1;
+                            Node<K, V> e = f;
+                            Node<K, V> pred = null;
+                            for (;;) {
+                                if (e.hash == h && keyEquals(key, e.get())) {
+                                    val = remappingFunction.apply(e.val, value);
+                                    if (val != null) {
+                                        e.val = val;
+                                    } else {
+                                        delta = -1;
+                                        Node<K, V> en = e.next;
+                                        if (pred != null) {
+                                            pred.next = en;
+                                        } else {
+                                            tab.set(i, en);
+                                        }
+                                    }
+                                    break;
+                                }
+                                pred = e;
+                                e = e.next;
+                                if (e == null) {
+                                    delta = 1;
+                                    val = value;
+                                    pred.next = new Node<K, V>(key, h, val, null, this);
+                                    break;
+                                }
+                                ++binCount;
+                            }
+                        } else if (f instanceof TreeBin) {
+                            binCount = 2;
+                            TreeBin<K, V> t = (TreeBin<K, V>) f;
+                            TreeNode<K, V> r = t.root;
+                            TreeNode<K, V> p = null;
+                            if (r != null) {
+                                p = r.findTreeNode(h, key, null, identityEquality, t.identityHashOf(key));
+                            }
+                            if (p == null) {
+                                val = value;
+                            } else {
+                                val = remappingFunction.apply(p.val, value);
+                            }
+                            if (val != null) {
+                                if (p != null) {
+                                    p.val = val;
+                                } else {
+                                    delta = 1;
+                                    t.putTreeVal(h, key, val, this);
+                                }
+                            } else if (p != null) {
+                                delta = -1;
+                                p.unlinked = true;
+                                if (t.removeTreeNode(p)) {
+                                    tab.set(i, untreeify(t.first));
+                                }
+                            }
+                        } else if (f instanceof ReservationNode) {
+                            throw new IllegalStateException("Recursive update");
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD) {
+                        treeifyBin(tab, i);
+                    }
+                    break;
+                }
+            }
+        }
+        if (delta != 0) {
+            addCount(delta, binCount);
+        }
+        return val;
+    }
+
+    /**
+     * Performs the given action for each mapping of this map whose key is not reclaimed, without copying the mappings.
+     * @param action the action
+     * @throws NullPointerException if the specified action is null
+     */
+    @Override
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+        if (action == null) {
+            throw new NullPointerException();
+        }
+        AtomicReferenceArray<Node<K, V>> t = table;
+        if (t != null) {
+            Traverser<K, V> it = new Traverser<K, V>(t, t.length(), 0, t.length());
+            for (Node<K, V> p = it.advance(); p != null; p = it.advance()) {
+                K k = p.get();
+                V v = p.val;
+                if (k != null && v != null) {
+                    action.accept(k, v);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A {@link WeakProviderConcurrentHashMap} which implements the atomic methods added to {@link java.util.Map} by Java 8. Since JDK 21,
+ * <tt>JceSecurity.getVerificationResult</tt> calls <tt>computeIfAbsent</tt> without holding the <tt>JceSecurity</tt> class lock. The default implementation of the interface
+ * is a <tt>get</tt> followed by a <tt>put</tt>, so concurrent callers would all verify the provider jar. Here the mappings are stored in a
+ * {@link Java8WeakConcurrentHashMap}, whose methods are atomic.
+ * <p>
+ * The verification of a provider jar is expensive, so <tt>computeIfAbsent</tt> coordinates the threads which miss the same key. The first one owns the flight of the key and
+ * runs the mapping function outside of any lock, the following ones wait for the end of the flight and return its result instead of verifying the jar again. If the flight
+ * stores nothing (the function failed or returned null), the waiters miss again and one of them owns the next flight.
+ * <p>
+ * This class is compiled for Java 8 apart from {@link WeakProviderConcurrentHashMap}, it must only be loaded on Java 8 and later.
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ * @author Gael Lalire
+ */
+public class Java8WeakProviderConcurrentHashMap<K, V> extends WeakProviderConcurrentHashMap<K, V> {
+
+    /**
+     * The computation in progress of a key.
+     * @author Gael Lalire
+     */
+    private static final class Flight {
+
+        private final Thread owner;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Flight(final Thread owner) {
+            this.owner = owner;
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    private final Java8WeakConcurrentHashMap<ProviderEntry, V> java8WeakMap;
+
+    /**
+     * Keys are only held during their flight.
+     */
+    private final ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<Object, Flight>();
+
+    private final AtomicLong avoidedComputationCount = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public Java8WeakProviderConcurrentHashMap() {
+        this(new Java8WeakConcurrentHashMap<ProviderEntry, V>());
+    }
+
+    private Java8WeakProviderConcurrentHashMap(final Java8WeakConcurrentHashMap<ProviderEntry, V> java8WeakMap) {
+        super(java8WeakMap);
+        this.java8WeakMap = java8WeakMap;
+    }
+
+    /**
+     * The mapping function runs at most once per key at a time, in the thread which owns the flight of the key. A recursive call of the owner runs the function again instead of
+     * waiting for itself. If the key has no reachable provider, the computed value is returned without being stored.
+     */
+    @Override
+    public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null) {
+            throw new NullPointerException();
+        }
+        Thread currentThread = Thread.currentThread();
+        while (true) {
+            V value = get(key);
+            if (value != null) {
+                return value;
+            }
+            Flight newFlight = new Flight(currentThread);
+            Flight flight = flights.putIfAbsent(key, newFlight);
+            if (flight == null) {
+                try {
+                    return computeAndStore(key, mappingFunction);
+                } finally {
+                    flights.remove(key, newFlight);
+                    newFlight.done.countDown();
+                }
+            }
+            if (flight.owner == currentThread) {
+                // the JDK detects its own recursive verification
+                return computeAndStore(key, mappingFunction);
+            }
+            long start = System.nanoTime();
+            flight.await();
+            waitNanos.addAndGet(System.nanoTime() - start);
+            value = get(key);
+            if (value != null) {
+                avoidedComputationCount.incrementAndGet();
+                return value;
+            }
+        }
+    }
+
+    private V computeAndStore(final K key, final Function<? super K, ? extends V> mappingFunction) {
+        // a put may have completed between the miss and the claim of the flight
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        value = mappingFunction.apply(key);
+        if (value == null) {
+            return null;
+        }
+        ProviderEntry providerEntry = createProviderEntry(key);
+        if (providerEntry == null) {
+            return value;
+        }
+        V previousValue = java8WeakMap.putIfAbsent(providerEntry, value);
+        if (previousValue != null) {
+            return previousValue;
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of misses answered by the flight of another thread, each one is a computation which was not run again
+     */
+    public long getAvoidedComputationCount() {
+        return avoidedComputationCount.get();
+    }
+
+    /**
+     * @return the total time spent by threads waiting for the flight of another thread, in nanoseconds
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    @Override
+    public V compute(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        ProviderEntry providerEntry = createProviderEntry(key);
+        if (providerEntry == null) {
+            // nothing is stored for such a key
+            return remappingFunction.apply(key, null);
+        }
+        return java8WeakMap.compute(providerEntry, new BiFunction<ProviderEntry, V, V>() {
+
+            public V apply(final ProviderEntry entry, final V oldValue) {
+                return remappingFunction.apply(key, oldValue);
+            }
+
+        });
+    }
+
+    @Override
+    public V merge(final K key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null || remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        ProviderEntry providerEntry = createProviderEntry(key);
+        if (providerEntry == null) {
+            // nothing is stored for such a key
+            return value;
+        }
+        return java8WeakMap.merge(providerEntry, value, remappingFunction);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.CompactWeakIdentityHashMap;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestCompactWeakIdentityHashMap {
+
+    private static void gc() {
+        for (int i = 0; i < 200; i++) {
+            System.gc();
+        }
+    }
+
+    @Test
+    public void testIdentity() throws Exception {
+        Map<Object, Object> map = new CompactWeakIdentityHashMap<Object, Object>();
+        String key = new String("key");
+        map.put(key, "value");
+        Assert.assertEquals("value", map.get(key));
+        Assert.assertNull(map.get(new String("key")));
+        map.put(null, "null");
+        Assert.assertEquals("null", map.get(null));
+        Assert.assertTrue(map.containsKey(null));
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals("null", map.remove(null));
+        Assert.assertFalse(map.containsKey(null));
+    }
+
+    @Test
+    public void testRandomOperations() throws Exception {
+        Map<Object, Object> map = new CompactWeakIdentityHashMap<Object, Object>();
+        Map<Object, Object> expected = new IdentityHashMap<Object, Object>();
+        Object[] keys = new Object[500];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+        }
+        Random random = new Random(0);
+        // many removals, so tombstones are reused and dropped
+        for (int i = 0; i < 100000; i++) {
+            Object key = keys[random.nextInt(keys.length)];
+            if (random.nextBoolean()) {
+                Integer value = Integer.valueOf(i);
+                Assert.assertSame(expected.put(key, value), map.put(key, value));
+            } else {
+                Assert.assertSame(expected.remove(key), map.remove(key));
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for (Object key : keys) {
+            Assert.assertSame(expected.get(key), map.get(key));
+        }
+        Assert.assertEquals(expected, map);
+
+        Iterator<Map.Entry<Object, Object>> iterator = map.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Object, Object> entry = iterator.next();
+            if (((Integer) entry.getValue()).intValue() % 2 == 0) {
+                iterator.remove();
+                expected.remove(entry.getKey());
+            }
+        }
+        Assert.assertEquals(expected, map);
+    }
+
+    @Test
+    public void testKeysNotRetained() throws Exception {
+        Map<Object, Object> map = new CompactWeakIdentityHashMap<Object, Object>();
+        Object kept = new Object();
+        map.put(kept, Boolean.TRUE);
+        for (int i = 0; i < 1000; i++) {
+            map.put(new Object(), Boolean.TRUE);
+        }
+        gc();
+        Assert.assertEquals(1, map.size());
+        Assert.assertSame(Boolean.TRUE, map.get(kept));
+        // the tombstones of the reclaimed keys are reused
+        for (int i = 0; i < 1000; i++) {
+            map.put(new Object(), Boolean.FALSE);
+        }
+        Assert.assertSame(Boolean.TRUE, map.get(kept));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ConcurrentWeakIdentityHashMap;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestConcurrentWeakIdentityHashMap {
+
+    @Test
+    public void testConcurrentMapOperations() throws Exception {
+        ConcurrentWeakIdentityHashMap<Object, Object> map = new ConcurrentWeakIdentityHashMap<Object, Object>(4);
+        String key = new String("key");
+        Assert.assertNull(map.putIfAbsent(key, Boolean.TRUE));
+        Assert.assertSame(Boolean.TRUE, map.putIfAbsent(key, Boolean.FALSE));
+        Assert.assertNull(map.get(new String("key")));
+        Assert.assertFalse(map.replace(key, Boolean.FALSE, Boolean.TRUE));
+        Assert.assertTrue(map.replace(key, Boolean.TRUE, Boolean.FALSE));
+        Assert.assertFalse(map.remove(key, Boolean.TRUE));
+        Assert.assertTrue(map.remove(key, Boolean.FALSE));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        final ConcurrentWeakIdentityHashMap<Object, Object> map = new ConcurrentWeakIdentityHashMap<Object, Object>(4);
+        final int threadCount = 4;
+        final Object[] keys = new Object[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Integer value = Integer.valueOf(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (Object key : keys) {
+                            map.putIfAbsent(key, value);
+                            Assert.assertNotNull(map.get(key));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        Assert.assertEquals(keys.length, map.size());
+        Assert.assertEquals(keys.length, map.entrySet().size());
+    }
+
+    private static int countSegments(final ConcurrentWeakIdentityHashMap<?, ?> map) throws Exception {
+        Field segmentsField = ConcurrentWeakIdentityHashMap.class.getDeclaredField("segments");
+        segmentsField.setAccessible(true);
+        AtomicReferenceArray<?> segments = (AtomicReferenceArray<?>) segmentsField.get(map);
+        int count = 0;
+        for (int i = 0; i < segments.length(); i++) {
+            if (segments.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testLazySegments() throws Exception {
+        ConcurrentWeakIdentityHashMap<Object, Object> map = new ConcurrentWeakIdentityHashMap<Object, Object>(64);
+        Assert.assertEquals(0, countSegments(map));
+
+        Object key = new Object();
+        Assert.assertNull(map.get(key));
+        Assert.assertNull(map.remove(key));
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertEquals(0, countSegments(map));
+
+        map.put(key, Boolean.TRUE);
+        Assert.assertEquals(1, countSegments(map));
+        Assert.assertEquals(Boolean.TRUE, map.get(key));
+        Assert.assertEquals(1, map.size());
+    }
+
+}
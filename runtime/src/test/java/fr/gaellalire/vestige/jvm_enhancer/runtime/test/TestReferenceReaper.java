@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.Reclaimable;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestReferenceReaper {
+
+    private static final class ReclaimableReference extends WeakReference<Object> implements Reclaimable {
+
+        private final AtomicInteger reclaimCount;
+
+        private final boolean failing;
+
+        ReclaimableReference(final Object referent, final AtomicInteger reclaimCount, final boolean failing) {
+            super(referent, ReferenceReaper.getQueue());
+            this.reclaimCount = reclaimCount;
+            this.failing = failing;
+        }
+
+        public void reclaim() {
+            reclaimCount.incrementAndGet();
+            if (failing) {
+                throw new AssertionError("reclaim failed");
+            }
+        }
+
+    }
+
+    @Test
+    public void testErrorDoesNotStopDrain() throws Exception {
+        AtomicInteger reclaimCount = new AtomicInteger();
+        long failureCount = ReferenceReaper.getFailureCount();
+        ReclaimableReference[] references = new ReclaimableReference[] {new ReclaimableReference(new Object(), reclaimCount, true),
+                new ReclaimableReference(new Object(), reclaimCount, false), new ReclaimableReference(new Object(), reclaimCount, true)};
+        for (int i = 0; i < 200; i++) {
+            System.gc();
+        }
+
+        ReferenceReaper.expunge();
+
+        Assert.assertEquals(references.length, reclaimCount.get());
+        Assert.assertEquals(failureCount + 2, ReferenceReaper.getFailureCount());
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.util.Iterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakArrayList;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestWeakArrayList {
+
+    private static void gc() {
+        for (int i = 0; i < 200; i++) {
+            System.gc();
+        }
+    }
+
+    @Test
+    public void testStableIndices() throws Exception {
+        Object gcValue = new Object();
+        WeakArrayList<Object> list = new WeakArrayList<Object>(gcValue);
+        Object first = new Object();
+        list.add(first);
+        list.add(new Object());
+        Object last = new Object();
+        list.add(last);
+
+        gc();
+        ReferenceReaper.expunge();
+
+        // the reclaimed item keeps its slot until the next compaction
+        Assert.assertEquals(3, list.size());
+        Assert.assertEquals(2, list.getLiveCount());
+        Assert.assertSame(first, list.get(0));
+        Assert.assertSame(gcValue, list.get(1));
+        Assert.assertSame(last, list.get(2));
+
+        Iterator<Object> iterator = list.iterator();
+        list.add(new Object());
+        Assert.assertSame(first, iterator.next());
+        Assert.assertSame(last, iterator.next());
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        WeakArrayList<Object> list = new WeakArrayList<Object>(null);
+        Object kept = new Object();
+        list.add(kept);
+        for (int i = 0; i < 100; i++) {
+            list.add(new Object());
+        }
+
+        gc();
+
+        Assert.assertEquals(101, list.size());
+        list.add(kept);
+        Assert.assertEquals(2, list.size());
+        Assert.assertSame(kept, list.get(0));
+        Assert.assertSame(kept, list.get(1));
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.Java8WeakConcurrentHashMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentHashMap;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestWeakConcurrentHashMap {
+
+    private static final class CollidingKey {
+        private final int id;
+
+        CollidingKey(final int id) {
+            this.id = id;
+        }
+
+        public boolean equals(final Object o) {
+            if (!(o instanceof CollidingKey)) {
+                return false;
+            }
+            return id == ((CollidingKey) o).id;
+        }
+
+        public int hashCode() {
+            return 3;
+        }
+    }
+
+    private static void gc() {
+        for (int i = 0; i < 200; i++) {
+            System.gc();
+        }
+    }
+
+    @Test
+    public void testWriteReclaimsUnprobedEntries() throws Exception {
+        WeakConcurrentHashMap<Object, Object> map = new WeakConcurrentHashMap<Object, Object>(16, 0.75f, 1);
+        List<Object> keys = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            Object key = new Object();
+            keys.add(key);
+            map.put(key, new byte[1024]);
+        }
+        Assert.assertEquals(100, map.size());
+
+        keys = null;
+        gc();
+
+        // no lookup walks the bins of the reclaimed keys, the write must drain them
+        Object key = new Object();
+        map.put(key, Boolean.TRUE);
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals(Boolean.TRUE, map.get(key));
+    }
+
+    @Test
+    public void testReadsDoNotReclaim() throws Exception {
+        WeakConcurrentHashMap<Object, Object> map = new WeakConcurrentHashMap<Object, Object>(16, 0.75f, 1);
+        Object key = new Object();
+        map.put(key, Boolean.TRUE);
+        for (int i = 0; i < 100; i++) {
+            map.put(new Object(), Boolean.FALSE);
+        }
+
+        gc();
+
+        // without reaper thread, the reads leave the queue to the writers
+        for (int i = 0; i < 64; i++) {
+            Assert.assertEquals(Boolean.TRUE, map.get(key));
+        }
+        Assert.assertEquals(101, map.size());
+
+        Object otherKey = new Object();
+        map.put(otherKey, Boolean.TRUE);
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testConcurrentPutsDuringResize() throws Exception {
+        final WeakConcurrentHashMap<Object, Object> map = new WeakConcurrentHashMap<Object, Object>(2, 0.75f, 1);
+        final int threadCount = 8;
+        final int perThread = 5000;
+        final Integer[][] keys = new Integer[threadCount][perThread];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t * perThread;
+            final Integer[] threadKeys = keys[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        threadKeys[i] = new Integer(base + i);
+                        map.put(threadKeys[i], Boolean.TRUE);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threadCount * perThread, map.size());
+        int iterated = 0;
+        for (Object key : map.keySet()) {
+            Assert.assertNotNull(key);
+            iterated++;
+        }
+        Assert.assertEquals(threadCount * perThread, iterated);
+        for (Integer[] threadKeys : keys) {
+            for (Integer key : threadKeys) {
+                Assert.assertEquals(Boolean.TRUE, map.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentCount() throws Exception {
+        final WeakConcurrentHashMap<Object, Object> map = new WeakConcurrentHashMap<Object, Object>();
+        final int threadCount = 8;
+        final int perThread = 10000;
+        final Integer[] keys = new Integer[threadCount * perThread];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Integer(i);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t * perThread;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // every thread keeps one key out of two
+                    for (int i = 0; i < perThread; i++) {
+                        map.put(keys[base + i], Boolean.TRUE);
+                    }
+                    for (int i = 1; i < perThread; i += 2) {
+                        map.remove(keys[base + i]);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threadCount * perThread / 2, map.mappingCount());
+        Assert.assertEquals(threadCount * perThread / 2, map.size());
+        Assert.assertFalse(map.isEmpty());
+        map.clear();
+        Assert.assertEquals(0L, map.mappingCount());
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testCollidingKeys() throws Exception {
+        WeakConcurrentHashMap<Object, Object> map = new WeakConcurrentHashMap<Object, Object>(16, 0.75f, 1);
+        List<Object> keys = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            CollidingKey key = new CollidingKey(i);
+            keys.add(key);
+            map.put(key, Integer.valueOf(i));
+        }
+        Assert.assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(Integer.valueOf(i), map.get(new CollidingKey(i)));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            Assert.assertEquals(Integer.valueOf(i), map.remove(new CollidingKey(i)));
+        }
+        Assert.assertEquals(500, map.size());
+
+        // drop all odd keys but the last ones, the bin must shrink back to a list
+        for (int i = 1; i < 990; i += 2) {
+            keys.set(i, null);
+        }
+        gc();
+        ReferenceReaper.expunge();
+        Assert.assertEquals(Integer.valueOf(991), map.get(new CollidingKey(991)));
+        Assert.assertEquals(5, map.size());
+        Assert.assertNull(map.get(new CollidingKey(1)));
+        Assert.assertNull(map.get(new CollidingKey(990)));
+        Assert.assertEquals(Integer.valueOf(999), map.get(new CollidingKey(999)));
+    }
+
+    /**
+     * Key whose hashCode and equals must not be called.
+     * @author Gael Lalire
+     */
+    private static final class UnhashableKey {
+
+        public boolean equals(final Object o) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int hashCode() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void testIdentityMode() throws Exception {
+        WeakConcurrentHashMap<Object, Integer> map = WeakConcurrentHashMap.newIdentityMap();
+        List<UnhashableKey> keys = new ArrayList<UnhashableKey>();
+        // enough keys to resize the table
+        for (int i = 0; i < 1000; i++) {
+            UnhashableKey key = new UnhashableKey();
+            keys.add(key);
+            Assert.assertNull(map.put(key, Integer.valueOf(i)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+        }
+        Assert.assertNull(map.get(new UnhashableKey()));
+        Assert.assertEquals(Integer.valueOf(0), map.remove(keys.get(0)));
+        Assert.assertEquals(999, map.size());
+    }
+
+
+    @Test
+    public void testComputeIfAbsentRunsOnce() throws Exception {
+        final Java8WeakConcurrentHashMap<CollidingKey, Integer> map = new Java8WeakConcurrentHashMap<CollidingKey, Integer>();
+        final List<CollidingKey> keys = new ArrayList<CollidingKey>();
+        // colliding keys exercise the empty bin, the chain and the tree bin
+        for (int i = 0; i < 64; i++) {
+            keys.add(new CollidingKey(i));
+        }
+        final AtomicInteger calls = new AtomicInteger();
+        final Function<CollidingKey, Integer> function = new Function<CollidingKey, Integer>() {
+            public Integer apply(final CollidingKey key) {
+                calls.incrementAndGet();
+                return Integer.valueOf(key.id);
+            }
+        };
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (CollidingKey key : keys) {
+                            Assert.assertEquals(Integer.valueOf(key.id), map.computeIfAbsent(key, function));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+        Assert.assertEquals(keys.size(), calls.get());
+        Assert.assertEquals(keys.size(), map.size());
+    }
+
+    @Test
+    public void testComputeAndMerge() throws Exception {
+        Java8WeakConcurrentHashMap<CollidingKey, Integer> map = new Java8WeakConcurrentHashMap<CollidingKey, Integer>();
+        List<CollidingKey> keys = new ArrayList<CollidingKey>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(new CollidingKey(i));
+        }
+        BiFunction<CollidingKey, Integer, Integer> increment = new BiFunction<CollidingKey, Integer, Integer>() {
+            public Integer apply(final CollidingKey key, final Integer value) {
+                if (value == null) {
+                    return Integer.valueOf(1);
+                }
+                if (value.intValue() == 2) {
+                    return null;
+                }
+                return Integer.valueOf(value.intValue() + 1);
+            }
+        };
+        BiFunction<Integer, Integer, Integer> sum = new BiFunction<Integer, Integer, Integer>() {
+            public Integer apply(final Integer oldValue, final Integer value) {
+                int result = oldValue.intValue() + value.intValue();
+                if (result > 10) {
+                    return null;
+                }
+                return Integer.valueOf(result);
+            }
+        };
+        for (CollidingKey key : keys) {
+            Assert.assertNull(map.computeIfPresent(key, increment));
+            Assert.assertEquals(Integer.valueOf(1), map.compute(key, increment));
+            Assert.assertEquals(Integer.valueOf(2), map.computeIfPresent(key, increment));
+        }
+        Assert.assertEquals(keys.size(), map.size());
+        // a null result removes the mapping, from the chain and from the tree bin
+        for (CollidingKey key : keys) {
+            Assert.assertNull(map.compute(key, increment));
+        }
+        Assert.assertEquals(0, map.size());
+        for (CollidingKey key : keys) {
+            Assert.assertEquals(Integer.valueOf(5), map.merge(key, Integer.valueOf(5), sum));
+            Assert.assertEquals(Integer.valueOf(10), map.merge(key, Integer.valueOf(5), sum));
+        }
+        final AtomicInteger total = new AtomicInteger();
+        map.forEach(new BiConsumer<CollidingKey, Integer>() {
+            public void accept(final CollidingKey key, final Integer value) {
+                total.addAndGet(value.intValue());
+            }
+        });
+        Assert.assertEquals(10 * keys.size(), total.get());
+        for (CollidingKey key : keys) {
+            Assert.assertNull(map.merge(key, Integer.valueOf(5), sum));
+            Assert.assertNull(map.get(key));
+        }
+        Assert.assertEquals(0, map.size());
+    }
+
+}
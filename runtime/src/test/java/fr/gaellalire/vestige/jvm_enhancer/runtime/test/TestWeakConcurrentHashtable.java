@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentHashtable;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestWeakConcurrentHashtable {
+
+    /**
+     * Stands for an application URL handler.
+     * @author Gael Lalire
+     */
+    public static class Handler {
+
+    }
+
+    /**
+     * Defines its own {@link Handler} class, like an application class loader.
+     * @author Gael Lalire
+     */
+    private static final class ChildClassLoader extends ClassLoader {
+
+        ChildClassLoader() {
+            super(TestWeakConcurrentHashtable.class.getClassLoader());
+        }
+
+        Object newHandler() throws Exception {
+            InputStream inputStream = getParent().getResourceAsStream(Handler.class.getName().replace('.', '/') + ".class");
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[1024];
+                int read = inputStream.read(buffer);
+                while (read != -1) {
+                    byteArrayOutputStream.write(buffer, 0, read);
+                    read = inputStream.read(buffer);
+                }
+            } finally {
+                inputStream.close();
+            }
+            byte[] bytes = byteArrayOutputStream.toByteArray();
+            return defineClass(Handler.class.getName(), bytes, 0, bytes.length).newInstance();
+        }
+
+    }
+
+    private static void gc() {
+        for (int i = 0; i < 200; i++) {
+            System.gc();
+        }
+        ReferenceReaper.expunge();
+    }
+
+    @Test
+    public void testSystemValueRetained() throws Exception {
+        WeakConcurrentHashtable<String, Object> handlers = new WeakConcurrentHashtable<String, Object>();
+        // a JDK handler, only referenced by the table
+        handlers.put("file", new StringBuilder("file"));
+        gc();
+        Assert.assertNotNull(handlers.get("file"));
+        Assert.assertEquals(0, handlers.getReclaimedCount());
+    }
+
+    @Test
+    public void testChildLoaderValueReclaimed() throws Exception {
+        WeakConcurrentHashtable<String, Object> handlers = new WeakConcurrentHashtable<String, Object>();
+        handlers.put("vestige", new ChildClassLoader().newHandler());
+        gc();
+        Assert.assertNull(handlers.get("vestige"));
+        Assert.assertEquals(0, handlers.size());
+        Assert.assertEquals(1, handlers.getReclaimedCount());
+        Assert.assertEquals(0, handlers.getReResolutionCount());
+
+        handlers.put("vestige", new StringBuilder("vestige"));
+        Assert.assertEquals(1, handlers.getReResolutionCount());
+        handlers.put("vestige", new StringBuilder("vestige"));
+        Assert.assertEquals(1, handlers.getReResolutionCount());
+    }
+
+}
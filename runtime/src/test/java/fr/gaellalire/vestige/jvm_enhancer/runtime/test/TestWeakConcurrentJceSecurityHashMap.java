@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentJceSecurityHashMap;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestWeakConcurrentJceSecurityHashMap {
+
+    private static void gc() {
+        for (int i = 0; i < 200; i++) {
+            System.gc();
+        }
+    }
+
+    @Test
+    public void testValueRetained() throws Exception {
+        WeakConcurrentJceSecurityHashMap<Class<?>, Object> map = new WeakConcurrentJceSecurityHashMap<Class<?>, Object>();
+        // without ClassValue values are weak
+        Assume.assumeTrue(map.isClassLocal());
+        Assert.assertNull(map.get(TestWeakConcurrentJceSecurityHashMap.class));
+        map.put(TestWeakConcurrentJceSecurityHashMap.class, new Object());
+
+        gc();
+
+        Assert.assertNotNull(map.get(TestWeakConcurrentJceSecurityHashMap.class));
+        Assert.assertEquals(1, map.getMissCount());
+        Assert.assertEquals(1, map.getHitCount());
+        Assert.assertEquals(0, map.getReVerificationCount());
+    }
+
+    @Test
+    public void testKeyClassLoaderCollected() throws Exception {
+        WeakConcurrentJceSecurityHashMap<Class<?>, Object> map = new WeakConcurrentJceSecurityHashMap<Class<?>, Object>();
+        URL location = TestWeakConcurrentJceSecurityHashMap.class.getProtectionDomain().getCodeSource().getLocation();
+        URLClassLoader classLoader = new URLClassLoader(new URL[] {location}, null);
+        Class<?> key = classLoader.loadClass(TestWeakConcurrentJceSecurityHashMap.class.getName());
+        // the value references the class loader of its key, like a code base URL with an application handler
+        map.put(key, new Object[] {classLoader});
+        WeakReference<ClassLoader> classLoaderReference = new WeakReference<ClassLoader>(classLoader);
+        classLoader = null;
+        key = null;
+
+        gc();
+
+        Assert.assertNull(classLoaderReference.get());
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ConcurrentWeakLevelMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakIntLevelMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakLevelMap;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestWeakLevelMap {
+
+    /**
+     * Same shape as the KnownLevel of Java 8.
+     * @author Gael Lalire
+     */
+    private static final class KnownLevel {
+
+        private final Level levelObject;
+
+        KnownLevel(final Level levelObject) {
+            this.levelObject = levelObject;
+        }
+
+    }
+
+    private static Constructor<KnownLevel> getConstructor() throws Exception {
+        // accessible, as set by the boot
+        Constructor<KnownLevel> constructor = KnownLevel.class.getDeclaredConstructor(Level.class);
+        constructor.setAccessible(true);
+        return constructor;
+    }
+
+    private static Field getLevelObjectField() throws Exception {
+        Field levelObjectField = KnownLevel.class.getDeclaredField("levelObject");
+        levelObjectField.setAccessible(true);
+        return levelObjectField;
+    }
+
+    private static WeakLevelMap<String> createMap() throws Exception {
+        return new WeakLevelMap<String>(getLevelObjectField(), getConstructor());
+    }
+
+    @Test
+    public void testSnapshotReused() throws Exception {
+        WeakLevelMap<String> map = createMap();
+        // like KnownLevel.add
+        map.get("INFO").add(new KnownLevel(Level.INFO));
+
+        List<Object> list = map.get("INFO");
+        Object knownLevel = list.get(0);
+        Assert.assertSame(Level.INFO, ((KnownLevel) knownLevel).levelObject);
+        Assert.assertSame(knownLevel, map.get("INFO").get(0));
+
+        map.get("INFO").add(new KnownLevel(Level.INFO));
+        Assert.assertEquals(2, map.get("INFO").size());
+        Assert.assertNull(map.get("WARNING").get(0));
+        Assert.assertEquals(1, map.values().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testClone() throws Exception {
+        WeakLevelMap<String> map = createMap();
+        map.get("INFO").add(new KnownLevel(Level.INFO));
+        WeakLevelMap<String> clone = (WeakLevelMap<String>) map.clone();
+        clone.get("INFO").add(new KnownLevel(Level.INFO));
+        clone.get("FINE").add(new KnownLevel(Level.FINE));
+
+        Assert.assertEquals(1, map.get("INFO").size());
+        Assert.assertEquals(0, map.get("FINE").size());
+        Assert.assertEquals(2, clone.get("INFO").size());
+        Assert.assertEquals(1, clone.get("FINE").size());
+    }
+
+    @Test
+    public void testIntKeys() throws Exception {
+        WeakIntLevelMap map = new WeakIntLevelMap(getLevelObjectField(), getConstructor());
+        Level[] levels = new Level[] {Level.ALL, Level.FINEST, Level.FINER, Level.FINE, Level.CONFIG, Level.INFO, Level.WARNING, Level.SEVERE, Level.OFF};
+        // enough keys to resize the table
+        for (int i = 0; i < 100; i++) {
+            for (Level level : levels) {
+                map.get(Integer.valueOf(level.intValue() + i * 10000)).add(new KnownLevel(level));
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            for (Level level : levels) {
+                Assert.assertSame(level, ((KnownLevel) map.get(Integer.valueOf(level.intValue() + i * 10000)).get(0)).levelObject);
+            }
+        }
+        Assert.assertNull(map.get(Integer.valueOf(1)).get(0));
+        Assert.assertEquals(900, map.values().size());
+
+        WeakIntLevelMap clone = (WeakIntLevelMap) map.clone();
+        clone.get(Integer.valueOf(1)).add(new KnownLevel(Level.INFO));
+        Assert.assertEquals(901, clone.values().size());
+        Assert.assertEquals(900, map.values().size());
+    }
+
+    private static void addConcurrently(final WeakLevelMap<Integer> map) throws Exception {
+        final int threadCount = 4;
+        final int keyCount = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        // every thread adds one level to every key, and reads while the others write
+                        for (int i = 0; i < keyCount; i++) {
+                            map.get(Integer.valueOf(i)).add(new KnownLevel(Level.INFO));
+                            Assert.assertSame(Level.INFO, ((KnownLevel) map.get(Integer.valueOf(i)).get(0)).levelObject);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        Assert.assertEquals(keyCount, map.values().size());
+        for (int i = 0; i < keyCount; i++) {
+            Assert.assertEquals(threadCount, map.get(Integer.valueOf(i)).size());
+        }
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        addConcurrently(new ConcurrentWeakLevelMap<Integer>(getLevelObjectField(), getConstructor()));
+        addConcurrently(new WeakIntLevelMap(getLevelObjectField(), getConstructor()));
+    }
+
+}
@@ -16,11 +16,20 @@
 
 package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.security.Provider;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import fr.gaellalire.vestige.jvm_enhancer.runtime.Java8WeakProviderConcurrentHashMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper;
 import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakProviderConcurrentHashMap;
 
 /**
@@ -101,11 +110,219 @@ public class TestWeakProviderConcurrentHashMap {
             System.gc();
         }
 
-        // one of these 2 call should clean myProvider (same hash, one inserted before, one inserted after)
+        // reads do not clean myProvider, the reaper thread or the next write does
+        ReferenceReaper.expunge();
         Assert.assertEquals(Boolean.TRUE, map.get(new IdentityWrapper(myProvider2, 3)));
         Assert.assertEquals(Boolean.TRUE, map.get(new IdentityWrapper(myProvider0, 3)));
 
         Assert.assertEquals(2, map.size());
+        Assert.assertEquals(0, map.getFailureCount());
+    }
+
+    @Test
+    public void testGetDoesNotAllocate() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported());
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        WeakProviderConcurrentHashMap<IdentityWrapper, Boolean> map = new WeakProviderConcurrentHashMap<IdentityWrapper, Boolean>();
+        MyProvider myProvider = new MyProvider();
+        IdentityWrapper key = new IdentityWrapper(myProvider, 3);
+        map.put(key, Boolean.TRUE);
+        IdentityWrapper lookupKey = new IdentityWrapper(myProvider, 3);
+
+        int lookupCount = 100000;
+        for (int i = 0; i < lookupCount; i++) {
+            map.get(lookupKey);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < lookupCount; i++) {
+            if (map.get(lookupKey) != Boolean.TRUE) {
+                Assert.fail();
+            }
+        }
+        long allocated = allocationMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        // a wrapper per lookup would be at least 16 bytes each, leave room for the MXBean itself
+        Assert.assertTrue(allocated + " bytes allocated", allocated < lookupCount);
+    }
+
+    @Test
+    public void testComputeIfAbsentRunsOnce() throws Exception {
+        final Java8WeakProviderConcurrentHashMap<IdentityWrapper, Boolean> map = new Java8WeakProviderConcurrentHashMap<IdentityWrapper, Boolean>();
+        final MyProvider myProvider = new MyProvider();
+        final AtomicInteger verificationCount = new AtomicInteger();
+        final Function<IdentityWrapper, Boolean> verification = new Function<IdentityWrapper, Boolean>() {
+
+            public Boolean apply(final IdentityWrapper key) {
+                verificationCount.incrementAndGet();
+                try {
+                    // let the other threads miss the key while the jar is verified
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Boolean.TRUE;
+            }
+
+        };
+
+        int threadCount = 16;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicReferenceArray<Boolean> results = new AtomicReferenceArray<Boolean>(threadCount);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    results.set(index, map.computeIfAbsent(new IdentityWrapper(myProvider, 3), verification));
+                }
+            };
+            threads[i].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(1, verificationCount.get());
+        for (int i = 0; i < threadCount; i++) {
+            Assert.assertEquals(Boolean.TRUE, results.get(i));
+        }
+        Assert.assertEquals(Boolean.TRUE, map.get(new IdentityWrapper(myProvider, 3)));
+        Assert.assertEquals(0, map.getFailureCount());
+    }
+
+    private static Thread startComputeIfAbsent(final Java8WeakProviderConcurrentHashMap<IdentityWrapper, Boolean> map, final IdentityWrapper key,
+            final Function<IdentityWrapper, Boolean> function, final AtomicReferenceArray<Object> results, final int index) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results.set(index, map.computeIfAbsent(key, function));
+                } catch (Throwable e) {
+                    results.set(index, e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(final Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final Java8WeakProviderConcurrentHashMap<IdentityWrapper, Boolean> map = new Java8WeakProviderConcurrentHashMap<IdentityWrapper, Boolean>();
+        final MyProvider myProvider = new MyProvider();
+        final AtomicInteger verificationCount = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Function<IdentityWrapper, Boolean> ownerVerification = new Function<IdentityWrapper, Boolean>() {
+
+            public Boolean apply(final IdentityWrapper key) {
+                verificationCount.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Boolean.TRUE;
+            }
+
+        };
+        Function<IdentityWrapper, Boolean> verification = new Function<IdentityWrapper, Boolean>() {
+
+            public Boolean apply(final IdentityWrapper key) {
+                verificationCount.incrementAndGet();
+                return Boolean.FALSE;
+            }
+
+        };
+
+        AtomicReferenceArray<Object> results = new AtomicReferenceArray<Object>(3);
+        Thread owner = startComputeIfAbsent(map, new IdentityWrapper(myProvider, 3), ownerVerification, results, 0);
+        entered.await();
+        Thread waiter1 = startComputeIfAbsent(map, new IdentityWrapper(myProvider, 3), verification, results, 1);
+        Thread waiter2 = startComputeIfAbsent(map, new IdentityWrapper(myProvider, 3), verification, results, 2);
+        awaitWaiting(waiter1);
+        awaitWaiting(waiter2);
+        release.countDown();
+        owner.join();
+        waiter1.join();
+        waiter2.join();
+
+        Assert.assertEquals(1, verificationCount.get());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(Boolean.TRUE, results.get(i));
+        }
+        Assert.assertEquals(2, map.getAvoidedComputationCount());
+        Assert.assertTrue(map.getWaitNanos() > 0);
+    }
+
+    @Test
+    public void testFailedFlight() throws Exception {
+        final Java8WeakProviderConcurrentHashMap<IdentityWrapper, Boolean> map = new Java8WeakProviderConcurrentHashMap<IdentityWrapper, Boolean>();
+        final MyProvider myProvider = new MyProvider();
+        final AtomicInteger verificationCount = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Function<IdentityWrapper, Boolean> failingVerification = new Function<IdentityWrapper, Boolean>() {
+
+            public Boolean apply(final IdentityWrapper key) {
+                verificationCount.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new AssertionError("verification failed");
+            }
+
+        };
+        Function<IdentityWrapper, Boolean> verification = new Function<IdentityWrapper, Boolean>() {
+
+            public Boolean apply(final IdentityWrapper key) {
+                verificationCount.incrementAndGet();
+                return Boolean.TRUE;
+            }
+
+        };
+
+        AtomicReferenceArray<Object> results = new AtomicReferenceArray<Object>(3);
+        Thread owner = startComputeIfAbsent(map, new IdentityWrapper(myProvider, 3), failingVerification, results, 0);
+        entered.await();
+        Thread waiter1 = startComputeIfAbsent(map, new IdentityWrapper(myProvider, 3), verification, results, 1);
+        Thread waiter2 = startComputeIfAbsent(map, new IdentityWrapper(myProvider, 3), verification, results, 2);
+        awaitWaiting(waiter1);
+        awaitWaiting(waiter2);
+        release.countDown();
+        owner.join();
+        waiter1.join();
+        waiter2.join();
+
+        // the error of the owner does not stall the waiters, one of them verifies again
+        Assert.assertTrue(results.get(0) instanceof AssertionError);
+        Assert.assertEquals(Boolean.TRUE, results.get(1));
+        Assert.assertEquals(Boolean.TRUE, results.get(2));
+        Assert.assertEquals(2, verificationCount.get());
+        // the other waiter either waits for the second flight or finds its result
+        Assert.assertTrue(map.getAvoidedComputationCount() <= 1);
     }
 
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test;
+
+import java.util.AbstractMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ReferenceReaper;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakSoftCacheFactory;
+
+/**
+ * @author Gael Lalire
+ */
+public class TestWeakSoftCacheFactory {
+
+    /**
+     * Has the same public constructor as <tt>sun.misc.SoftCache</tt>, which recent JDKs do not have.
+     * @author Gael Lalire
+     */
+    public abstract static class SoftCache extends AbstractMap<Object, Object> {
+
+    }
+
+    private static void gc() {
+        for (int i = 0; i < 200; i++) {
+            System.gc();
+        }
+        ReferenceReaper.expunge();
+    }
+
+    @Test
+    public void testDelegation() throws Exception {
+        Map<Object, Object> cache = WeakSoftCacheFactory.create(SoftCache.class);
+        Assert.assertTrue(cache instanceof SoftCache);
+        Assert.assertTrue(cache.isEmpty());
+
+        // like Thread.isCCLOverridden
+        Class<?> audited = TestWeakSoftCacheFactory.class;
+        Assert.assertNull(cache.get(audited));
+        Assert.assertNull(cache.put(audited, Boolean.FALSE));
+        Assert.assertSame(Boolean.FALSE, cache.get(audited));
+        Assert.assertTrue(cache.containsKey(audited));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, cache.keySet().size());
+        Assert.assertEquals(1, cache.values().size());
+        Assert.assertEquals(1, cache.entrySet().size());
+
+        Assert.assertSame(Boolean.FALSE, cache.remove(audited));
+        cache.put(audited, Boolean.TRUE);
+        cache.clear();
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testKeysNotRetained() throws Exception {
+        Map<Object, Object> cache = WeakSoftCacheFactory.create(SoftCache.class);
+        cache.put(new Object(), Boolean.TRUE);
+        gc();
+        Assert.assertEquals(0, cache.size());
+    }
+
+}
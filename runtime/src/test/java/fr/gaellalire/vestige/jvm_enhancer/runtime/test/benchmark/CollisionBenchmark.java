@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test.benchmark;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentHashMap;
+
+/**
+ * Measures put and get of keys sharing the same hash code. Run with <tt>java CollisionBenchmark [keyCount...]</tt>, the synchronized {@link WeakHashMap} is given as a
+ * list-based reference.
+ * @author Gael Lalire
+ */
+public final class CollisionBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final int ROUNDS = 10;
+
+    private static final int GET_PER_KEY = 20;
+
+    private CollisionBenchmark() {
+    }
+
+    /**
+     * Key with a constant hash code and no natural ordering.
+     * @author Gael Lalire
+     */
+    private static final class CollidingKey {
+
+        private final int id;
+
+        CollidingKey(final int id) {
+            this.id = id;
+        }
+
+        public boolean equals(final Object o) {
+            if (!(o instanceof CollidingKey)) {
+                return false;
+            }
+            return id == ((CollidingKey) o).id;
+        }
+
+        public int hashCode() {
+            return 3;
+        }
+    }
+
+    /**
+     * Key with a constant hash code which is comparable.
+     * @author Gael Lalire
+     */
+    private static final class ComparableCollidingKey implements Comparable<ComparableCollidingKey> {
+
+        private final int id;
+
+        ComparableCollidingKey(final int id) {
+            this.id = id;
+        }
+
+        public int compareTo(final ComparableCollidingKey o) {
+            if (id < o.id) {
+                return -1;
+            }
+            if (id > o.id) {
+                return 1;
+            }
+            return 0;
+        }
+
+        public boolean equals(final Object o) {
+            if (!(o instanceof ComparableCollidingKey)) {
+                return false;
+            }
+            return id == ((ComparableCollidingKey) o).id;
+        }
+
+        public int hashCode() {
+            return 3;
+        }
+    }
+
+    private static Object[] createKeys(final int keyCount, final boolean comparable) {
+        Object[] keys = new Object[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            if (comparable) {
+                keys[i] = new ComparableCollidingKey(i);
+            } else {
+                keys[i] = new CollidingKey(i);
+            }
+        }
+        return keys;
+    }
+
+    private static long run(final Map<Object, Object> map, final Object[] keys, final Object[] lookupKeys) {
+        long start = System.nanoTime();
+        for (Object key : keys) {
+            map.put(key, Boolean.TRUE);
+        }
+        for (int i = 0; i < GET_PER_KEY; i++) {
+            for (Object key : lookupKeys) {
+                if (map.get(key) == null) {
+                    throw new IllegalStateException("Missing key");
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void bench(final String name, final int keyCount, final boolean comparable, final boolean weakHashMap) {
+        Object[] keys = createKeys(keyCount, comparable);
+        // equal but not identical keys, as in a lookup of JceSecurity
+        Object[] lookupKeys = createKeys(keyCount, comparable);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            Map<Object, Object> map;
+            if (weakHashMap) {
+                map = Collections.synchronizedMap(new WeakHashMap<Object, Object>());
+            } else {
+                map = new WeakConcurrentHashMap<Object, Object>();
+            }
+            long time = run(map, keys, lookupKeys);
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, time);
+            }
+        }
+        long operations = (long) keyCount * (GET_PER_KEY + 1);
+        System.out.println(name + " keys=" + keyCount + " comparable=" + comparable + " : " + (best / operations) + " ns/op");
+    }
+
+    public static void main(final String[] args) {
+        int[] keyCounts = new int[] {8, 64, 512, 4096};
+        if (args.length != 0) {
+            keyCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                keyCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int keyCount : keyCounts) {
+            bench("WeakConcurrentHashMap", keyCount, false, false);
+            bench("WeakConcurrentHashMap", keyCount, true, false);
+            bench("synchronized WeakHashMap", keyCount, false, true);
+            bench("synchronized WeakHashMap", keyCount, true, true);
+        }
+    }
+
+}
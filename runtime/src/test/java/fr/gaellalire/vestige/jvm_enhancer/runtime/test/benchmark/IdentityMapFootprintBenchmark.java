@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test.benchmark;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.CompactWeakIdentityHashMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.ConcurrentWeakIdentityHashMap;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakIdentityHashMap;
+
+/**
+ * Measures the retained heap per mapping of the maps replacing <tt>JceSecurity.verifyingProviders</tt>, like a heap dump would: the used heap is read after full GCs before and
+ * after filling a map whose keys are already allocated and strongly held, and whose values are shared. Run with <tt>java IdentityMapFootprintBenchmark [mappingCount...]</tt>.
+ * @author Gael Lalire
+ */
+public final class IdentityMapFootprintBenchmark {
+
+    private static final int GC_COUNT = 10;
+
+    private static final int ROUNDS = 5;
+
+    private IdentityMapFootprintBenchmark() {
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_COUNT; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void bench(final String name, final Class<?> mapClass, final Object[] keys) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = usedHeap();
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> map = (Map<Object, Object>) mapClass.newInstance();
+            for (Object key : keys) {
+                map.put(key, Boolean.TRUE);
+            }
+            long after = usedHeap();
+            if (map.size() != keys.length) {
+                throw new IllegalStateException("Missing mappings");
+            }
+            best = Math.min(best, after - before);
+        }
+        System.out.println(name + " mappings=" + keys.length + " : " + (best / keys.length) + " bytes per mapping");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int[] mappingCounts = new int[] {1000, 100000};
+        if (args.length != 0) {
+            mappingCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                mappingCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int mappingCount : mappingCounts) {
+            Object[] keys = new Object[mappingCount];
+            for (int i = 0; i < mappingCount; i++) {
+                keys[i] = new Object();
+            }
+            bench("IdentityHashMap", IdentityHashMap.class, keys);
+            bench("WeakHashMap", WeakHashMap.class, keys);
+            bench("WeakIdentityHashMap", WeakIdentityHashMap.class, keys);
+            bench("CompactWeakIdentityHashMap", CompactWeakIdentityHashMap.class, keys);
+            bench("ConcurrentWeakIdentityHashMap", ConcurrentWeakIdentityHashMap.class, keys);
+        }
+    }
+
+}
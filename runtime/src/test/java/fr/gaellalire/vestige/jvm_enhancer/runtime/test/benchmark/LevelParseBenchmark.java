@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test.benchmark;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakLevelMap;
+
+/**
+ * Measures <tt>Level.parse</tt> before and after the maps of <tt>Level$KnownLevel</tt> are replaced by {@link WeakLevelMap}, as the boot does. The replacement is only
+ * possible on JVMs where <tt>KnownLevel</tt> has a <tt>levelObject</tt> field (Java 7 and 8), elsewhere the lookups of the maps are measured with a stand-in
+ * <tt>KnownLevel</tt>. Run with <tt>java LevelParseBenchmark</tt>.
+ * @author Gael Lalire
+ */
+public final class LevelParseBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final int ROUNDS = 10;
+
+    private static final int PARSE_PER_ROUND = 200000;
+
+    private static final String[] NAMES = new String[] {"INFO", "WARNING", "FINE", "800", "CUSTOM_1", "CUSTOM_2"};
+
+    private LevelParseBenchmark() {
+    }
+
+    /**
+     * Custom level, as defined by an application.
+     * @author Gael Lalire
+     */
+    private static final class CustomLevel extends Level {
+
+        private static final long serialVersionUID = 1L;
+
+        CustomLevel(final String name, final int value) {
+            super(name, value);
+        }
+
+    }
+
+    /**
+     * Same shape as the <tt>KnownLevel</tt> of Java 8.
+     * @author Gael Lalire
+     */
+    private static final class StandInKnownLevel {
+
+        private final Level levelObject;
+
+        StandInKnownLevel(final Level levelObject) {
+            this.levelObject = levelObject;
+        }
+
+    }
+
+    private static long measure(final String name, final Runnable lookup) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < PARSE_PER_ROUND; i++) {
+                lookup.run();
+            }
+            long time = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, time);
+            }
+        }
+        System.out.println(name + " : " + (best / PARSE_PER_ROUND) + " ns/op");
+        return best;
+    }
+
+    private static final Runnable PARSE = new Runnable() {
+
+        private int i;
+
+        public void run() {
+            Level.parse(NAMES[i % NAMES.length]);
+            i++;
+        }
+
+    };
+
+    @SuppressWarnings("unchecked")
+    private static boolean installWeakLevelMap() throws Exception {
+        Class<?> knownLevelClass;
+        Field levelObjectField;
+        try {
+            knownLevelClass = Class.forName("java.util.logging.Level$KnownLevel");
+            levelObjectField = knownLevelClass.getDeclaredField("levelObject");
+        } catch (Exception e) {
+            return false;
+        }
+        Constructor<?> constructor = knownLevelClass.getDeclaredConstructor(Level.class);
+        levelObjectField.setAccessible(true);
+        constructor.setAccessible(true);
+        for (String fieldName : new String[] {"nameToLevels", "intToLevels"}) {
+            Field field = knownLevelClass.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            Map<Object, List<Object>> initial = (Map<Object, List<Object>>) field.get(null);
+            WeakLevelMap<Object> weakLevelMap = new WeakLevelMap<Object>(levelObjectField, constructor);
+            for (Entry<Object, List<Object>> entry : initial.entrySet()) {
+                weakLevelMap.get(entry.getKey()).addAll(entry.getValue());
+            }
+            field.set(null, weakLevelMap);
+        }
+        return true;
+    }
+
+    private static void benchStandIn(final Level[] levels) throws Exception {
+        final Map<String, List<Object>> hashMap = new HashMap<String, List<Object>>();
+        Constructor<StandInKnownLevel> constructor = StandInKnownLevel.class.getDeclaredConstructor(Level.class);
+        constructor.setAccessible(true);
+        Field levelObjectField = StandInKnownLevel.class.getDeclaredField("levelObject");
+        levelObjectField.setAccessible(true);
+        final WeakLevelMap<String> weakLevelMap = new WeakLevelMap<String>(levelObjectField, constructor);
+        for (Level level : levels) {
+            List<Object> list = hashMap.get(level.getName());
+            if (list == null) {
+                list = new ArrayList<Object>();
+                hashMap.put(level.getName(), list);
+            }
+            list.add(new StandInKnownLevel(level));
+            weakLevelMap.get(level.getName()).add(new StandInKnownLevel(level));
+        }
+        measure("HashMap findByName", new Runnable() {
+
+            private int i;
+
+            public void run() {
+                List<Object> list = hashMap.get(NAMES[i % NAMES.length]);
+                if (list != null) {
+                    list.get(0);
+                }
+                i++;
+            }
+
+        });
+        measure("WeakLevelMap findByName", new Runnable() {
+
+            private int i;
+
+            public void run() {
+                List<Object> list = weakLevelMap.get(NAMES[i % NAMES.length]);
+                if (list != null) {
+                    list.get(0);
+                }
+                i++;
+            }
+
+        });
+    }
+
+    public static void main(final String[] args) throws Exception {
+        // strongly held for the whole benchmark
+        Level[] levels = new Level[] {Level.INFO, Level.WARNING, Level.FINE, new CustomLevel("CUSTOM_1", 1001), new CustomLevel("CUSTOM_2", 1002)};
+        measure("Level.parse without enhancer", PARSE);
+        if (installWeakLevelMap()) {
+            measure("Level.parse with enhancer", PARSE);
+        } else {
+            System.out.println("Level$KnownLevel cannot be replaced on this JVM, measuring the maps only");
+            benchStandIn(levels);
+        }
+    }
+
+}
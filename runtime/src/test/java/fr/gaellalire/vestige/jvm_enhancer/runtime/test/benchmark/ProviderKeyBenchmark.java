@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test.benchmark;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentHashMap;
+
+/**
+ * Measures lookups keyed by the installed security providers, like the JceSecurity caches. A {@link Provider} is a <tt>Properties</tt>, its <tt>hashCode</tt> and
+ * <tt>equals</tt> walk all its services, which the identity mode of {@link WeakConcurrentHashMap} does not call. Run with
+ * <tt>java ProviderKeyBenchmark [threadCount...]</tt>.
+ * @author Gael Lalire
+ */
+public final class ProviderKeyBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final int ROUNDS = 5;
+
+    private static final int LOOKUP_PER_THREAD = 20000;
+
+    private ProviderKeyBenchmark() {
+    }
+
+    private static long run(final Map<Provider, Boolean> map, final Provider[] providers, final int threadCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < LOOKUP_PER_THREAD; i++) {
+                        if (map.get(providers[i % providers.length]) == null) {
+                            throw new IllegalStateException("Missing provider");
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static void bench(final String name, final boolean identity, final Provider[] providers, final int threadCount) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            Map<Provider, Boolean> map;
+            if (identity) {
+                map = WeakConcurrentHashMap.newIdentityMap();
+            } else {
+                map = new WeakConcurrentHashMap<Provider, Boolean>();
+            }
+            for (Provider provider : providers) {
+                map.put(provider, Boolean.TRUE);
+            }
+            long time = run(map, providers, threadCount);
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, time);
+            }
+        }
+        long operations = (long) threadCount * LOOKUP_PER_THREAD;
+        System.out.println(name + " threads=" + threadCount + " : " + (best / operations) + " ns/op, " + (best / 1000000L) + " ms");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Provider[] providers = Security.getProviders();
+        int processors = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = new int[] {1, processors};
+        if (args.length != 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int threadCount : threadCounts) {
+            bench("equality", false, providers, threadCount);
+            bench("identity", true, providers, threadCount);
+        }
+    }
+
+}
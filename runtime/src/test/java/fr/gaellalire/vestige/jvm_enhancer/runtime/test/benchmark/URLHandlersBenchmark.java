@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.gaellalire.vestige.jvm_enhancer.runtime.test.benchmark;
+
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakConcurrentHashtable;
+import fr.gaellalire.vestige.jvm_enhancer.runtime.WeakHashtable;
+
+/**
+ * Measures the lookups done by <tt>new URL(...)</tt> on the replaced <tt>java.net.URL.handlers</tt> table: every thread resolves a few protocols, one lookup out of
+ * {@value #PUT_PERIOD} registers a handler again. Run with <tt>java URLHandlersBenchmark [threadCount...]</tt>.
+ * @author Gael Lalire
+ */
+public final class URLHandlersBenchmark {
+
+    private static final String[] PROTOCOLS = new String[] {"http", "https", "file", "jar", "ftp", "mailto"};
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final int ROUNDS = 10;
+
+    private static final int LOOKUP_PER_THREAD = 1000000;
+
+    private static final int PUT_PERIOD = 100000;
+
+    private URLHandlersBenchmark() {
+    }
+
+    private static long run(final Hashtable<String, Object> handlers, final Object[] handlerValues, final int threadCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < LOOKUP_PER_THREAD; i++) {
+                        int p = i % PROTOCOLS.length;
+                        if (i % PUT_PERIOD == 0) {
+                            handlers.put(PROTOCOLS[p], handlerValues[p]);
+                        } else if (handlers.get(PROTOCOLS[p]) == null) {
+                            throw new IllegalStateException("Missing handler");
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static void bench(final String name, final Class<?> tableClass, final int threadCount) throws Exception {
+        // strongly held, as the JDK handlers are by their class loader
+        Object[] handlerValues = new Object[PROTOCOLS.length];
+        for (int i = 0; i < handlerValues.length; i++) {
+            handlerValues[i] = new Object();
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            @SuppressWarnings("unchecked")
+            Hashtable<String, Object> handlers = (Hashtable<String, Object>) tableClass.newInstance();
+            for (int i = 0; i < PROTOCOLS.length; i++) {
+                handlers.put(PROTOCOLS[i], handlerValues[i]);
+            }
+            long time = run(handlers, handlerValues, threadCount);
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, time);
+            }
+        }
+        long operations = (long) threadCount * LOOKUP_PER_THREAD;
+        System.out.println(name + " threads=" + threadCount + " : " + (operations * 1000L / best) + " ops/us, " + (best / 1000000L) + " ms");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = new int[] {1, 2, processors, processors * 2};
+        if (args.length != 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int threadCount : threadCounts) {
+            bench("Hashtable", Hashtable.class, threadCount);
+            bench("WeakHashtable", WeakHashtable.class, threadCount);
+            bench("WeakConcurrentHashtable", WeakConcurrentHashtable.class, threadCount);
+        }
+    }
+
+}